@@ -21,6 +21,10 @@ public class AuditMessages {
         CONSUMER_CONTENT_ERROR("General error reading SAML content out from HTTP POST request, rejecting request"),
         CONSUMER_RESPONSE_CONTENT_ERROR("SAML Response content provided is invalid, rejecting request"),
         CONSUMER_RESPONSE_REPLAY_ERROR("We have already seen the responseId %s in the past %s, not processing this response to avoid denial of service"),
+        CONSUMER_RESPONSE_ISSUER_ERROR("SAML Response issuer %s is not in our metadata, rejecting request"),
+        CONSUMER_RESPONSE_DESTINATION_ERROR("SAML Response is for %s and not for us at %s, rejecting request"),
+        CONSUMER_RESPONSE_INSTANT_ERROR("SAML Response issue instant %s is too old or in the future, rejecting request"),
+        CONSUMER_ASSERTION_REPLAY_ERROR("We have already seen the one time use assertion %s, rejecting request"),
         CONSUMER_SIGNATURE_ERROR("SAML Response signature is invalid, SAML Response has been touched in transit, rejecting request"),
         CONSUMER_DECRYPTION_ERROR("Error decrypting assertion: %s, rejecting request"),
         CONSUMER_EXPECTED_ENCRYPTED_ASSERTION_ERROR("We were expecting an encrypted assertion and never got one, rejecting request"),
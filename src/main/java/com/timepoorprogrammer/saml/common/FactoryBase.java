@@ -3,8 +3,12 @@ package com.timepoorprogrammer.saml.common;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.reflect.Constructor;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Abstract factory base holding helper methods all the factories use and all bespoke code can use.
@@ -21,6 +25,11 @@ import java.util.List;
  * of name SAML11AssertionConsumerProcessorImpl.java.
  * <p/>
  * Then if we called the factory with the bespoke code "BA" it would pick the specialised implementation class correctly.
+ * <p/>
+ * Whether or not a bespoke implementation exists for a given interface and bespoke code is looked up once and then
+ * remembered, along with the constructor to call, so after the first request for a customer creating their
+ * implementation is a map lookup and a constructor call.  Most customers have no bespoke code, and finding that out
+ * means a failed class load, which is far too expensive to do on every request.
  *
  * @author Jim Ball
  */
@@ -33,6 +42,16 @@ public abstract class FactoryBase {
      */
     private static final String IMPLEMENTATION_POSTFIX = "Impl";
 
+    /**
+     * Bespoke implementation constructors by implementation class name and constructor signature
+     */
+    private static final ConcurrentMap<String, Constructor<?>> BESPOKE_CONSTRUCTORS = new ConcurrentHashMap<String, Constructor<?>>();
+
+    /**
+     * Stands in for a bespoke implementation that doesn't exist, as a concurrent map can't hold a null
+     */
+    private static final Constructor<?> NO_BESPOKE_IMPLEMENTATION = Object.class.getConstructors()[0];
+
     /**
      * Parse the input className details given, in order to extract the
      * package location and the class name for this class. Used for relative
@@ -81,4 +100,39 @@ public abstract class FactoryBase {
         }
         return packagePath + bespokeCode.toLowerCase() + "." + subPackageName + "." + interfaceName + IMPLEMENTATION_POSTFIX;
     }
+
+    /**
+     * Find the constructor of the bespoke implementation of the interface for the bespoke code, if there is one.  The
+     * answer is remembered, so the class is only ever looked for the once.
+     *
+     * @param bespokeCode    bespoke code used to find the root directory holding customer specific code
+     * @param interfaceClass the interface the implementation meets
+     * @param subPackageName the sub-package within the customer specific code the implementation lives under
+     * @param argSignature   the parameter types of the constructor to use
+     * @return the constructor, or null if there is no bespoke implementation so the default should be used
+     * @throws NoSuchMethodException if there is a bespoke implementation but it doesn't have the constructor
+     */
+    public static Constructor<?> findBespokeConstructor(final String bespokeCode, final Class<?> interfaceClass,
+                                                        final String subPackageName, final Class<?>... argSignature)
+            throws NoSuchMethodException {
+        final List<String> details = parseClassName(interfaceClass.getName());
+        final String fullPath = buildPathToBespokeImplementation(bespokeCode, details.get(0), details.get(1), subPackageName);
+        final String key = fullPath + Arrays.toString(argSignature);
+        Constructor<?> constructor = BESPOKE_CONSTRUCTORS.get(key);
+        if (constructor == null) {
+            try {
+                final Class<?> implementation = Class.forName(fullPath);
+                if (!interfaceClass.isAssignableFrom(implementation)) {
+                    throw new ClassCastException(fullPath + " does not implement " + interfaceClass.getName());
+                }
+                constructor = implementation.getConstructor(argSignature);
+                log.debug("Found bespoke implementation {}", fullPath);
+            } catch (ClassNotFoundException recoverableE) {
+                log.debug("Class not found at {}, so the default implementation will be used", fullPath);
+                constructor = NO_BESPOKE_IMPLEMENTATION;
+            }
+            BESPOKE_CONSTRUCTORS.putIfAbsent(key, constructor);
+        }
+        return constructor == NO_BESPOKE_IMPLEMENTATION ? null : constructor;
+    }
 }
@@ -107,6 +107,29 @@ public class ConfigurationProperties implements Serializable {
         return config.getProperty(String.format("%1$s.%2$s.%3$s", functArea, setId, paramId));
     }
 
+    /**
+     * Get a whole number parameter from the properties, as taken from Aurora namespacing of properties.
+     *
+     * @param functArea    functional area
+     * @param setId        set name
+     * @param paramId      parameter name
+     * @param defaultValue value to use if the parameter isn't set
+     * @return value
+     */
+    public int getIntParameter(final String functArea, final String setId, final String paramId, final int defaultValue) {
+        final String value = getParameter(functArea, setId, paramId);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException anyE) {
+            final String errorMessage = "Parameter " + paramId + " for " + setId + " is not a whole number: " + value;
+            log.error(errorMessage);
+            throw new RuntimeException(errorMessage, anyE);
+        }
+    }
+
     /**
      * The SAML properties "may" hold a value for a producerCustomerCode.  This then gives us a
      * means of validating routes into customer specific installations of Northgate applications
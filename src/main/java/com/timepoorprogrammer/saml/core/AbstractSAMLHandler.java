@@ -1,5 +1,6 @@
 package com.timepoorprogrammer.saml.core;
 
+import com.timepoorprogrammer.saml.security.signature.SignatureAlgorithms;
 import org.opensaml.DefaultBootstrap;
 import org.opensaml.common.xml.SAMLSchemaBuilder;
 import org.opensaml.xml.Configuration;
@@ -11,14 +12,15 @@ import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import javax.xml.XMLConstants;
 import javax.xml.namespace.QName;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.validation.Schema;
-import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * SAML base library abstract class which handles whole library initialisation
@@ -29,6 +31,17 @@ public abstract class AbstractSAMLHandler {
     private static final Logger log = LoggerFactory.getLogger(AbstractSAMLHandler.class);
     protected static final int DEFAULT_BEFORE_SECONDS = 5;
     protected static final int DEFAULT_TIME_TO_LIVE = 30;
+    /**
+     * Number of document builders each parser pool holds
+     */
+    private static final int PARSER_POOL_SIZE = Math.max(5, Runtime.getRuntime().availableProcessors());
+    /**
+     * Parser pools by parse profile
+     */
+    private static final Map<ParseProfile, BasicParserPool> PARSER_POOLS = new EnumMap<ParseProfile, BasicParserPool>(ParseProfile.class);
+    /**
+     * Parser pool of the strict parse profile
+     */
     public static BasicParserPool parserPoolManager;
     /**
      * Any use of this class ensures that the OpenSAML library is bootstrapped once only, and
@@ -36,15 +49,20 @@ public abstract class AbstractSAMLHandler {
      * format unique identifiers, and so we use a pooled document parser to avoid poor XML
      * and document parsing performance, and finally so we are setup to cope with SAML that
      * is in 1.1 to 2.0 syntax, but NOT SAML 1.0.
+     * <p/>
+     * There is a parser pool per parse profile, each with its document builders made up
+     * front so the first documents parsed don't pay for them.  The pools are striped, so
+     * threads parsing at once don't wait on each other for a builder.
      */
     static {
         try {
             DefaultBootstrap.bootstrap();
+            SignatureAlgorithms.register(Configuration.getGlobalSecurityConfiguration());
+            // OpenSAML's SAML 1.1 schema takes in the SAML 2.0 schemas too, so it suits both
             Schema schema = SAMLSchemaBuilder.getSAML11Schema();
-            parserPoolManager = new BasicParserPool();
-            parserPoolManager.setNamespaceAware(true);
-            parserPoolManager.setIgnoreElementContentWhitespace(true);
-            parserPoolManager.setSchema(schema);
+            PARSER_POOLS.put(ParseProfile.STRICT, buildParserPool(schema));
+            PARSER_POOLS.put(ParseProfile.WELL_FORMED, buildParserPool(null));
+            parserPoolManager = PARSER_POOLS.get(ParseProfile.STRICT);
         }
         catch (Exception anyE) {
             final String errorMessage = "Error initialising OpenSAML library";
@@ -53,6 +71,77 @@ public abstract class AbstractSAMLHandler {
         }
     }
 
+    /**
+     * Parse profile used to read documents, see readFromFile and readFromStream
+     */
+    private ParseProfile parseProfile = ParseProfile.STRICT;
+
+    /**
+     * Build a parser pool that refuses DOCTYPE declarations, external entities and XInclude, and make
+     * its document builders ready for use.
+     *
+     * @param schema schema to validate against, or null to only check documents are well formed
+     * @return parser pool
+     * @throws Exception on error
+     */
+    private static BasicParserPool buildParserPool(final Schema schema) throws Exception {
+        final BasicParserPool pool = new StripedParserPool();
+        pool.setNamespaceAware(true);
+        pool.setIgnoreElementContentWhitespace(true);
+        pool.setExpandEntityReferences(false);
+        pool.setXincludeAware(false);
+        final Map<String, Boolean> features = new HashMap<String, Boolean>();
+        features.put(XMLConstants.FEATURE_SECURE_PROCESSING, Boolean.TRUE);
+        features.put("http://apache.org/xml/features/disallow-doctype-decl", Boolean.TRUE);
+        features.put("http://xml.org/sax/features/external-general-entities", Boolean.FALSE);
+        features.put("http://xml.org/sax/features/external-parameter-entities", Boolean.FALSE);
+        pool.setBuilderFeatures(features);
+        pool.setSchema(schema);
+        pool.setMaxPoolSize(PARSER_POOL_SIZE);
+        final DocumentBuilder[] builders = new DocumentBuilder[PARSER_POOL_SIZE];
+        for (int i = 0; i < builders.length; i++) {
+            builders[i] = pool.getBuilder();
+        }
+        for (DocumentBuilder builder : builders) {
+            pool.returnBuilder(builder);
+        }
+        return pool;
+    }
+
+    /**
+     * Get the parser pool of a parse profile, say to give to a message decoder
+     *
+     * @param profile parse profile
+     * @return parser pool
+     */
+    public static BasicParserPool getParserPool(final ParseProfile profile) {
+        if (profile == null) {
+            throw new IllegalArgumentException("Cannot provide a parser pool without a parse profile");
+        }
+        return PARSER_POOLS.get(profile);
+    }
+
+    /**
+     * Get the parse profile used to read documents
+     *
+     * @return parse profile
+     */
+    public ParseProfile getParseProfile() {
+        return parseProfile;
+    }
+
+    /**
+     * Set the parse profile used to read documents
+     *
+     * @param parseProfile parse profile
+     */
+    public void setParseProfile(final ParseProfile parseProfile) {
+        if (parseProfile == null) {
+            throw new IllegalArgumentException("Parse profile is missing");
+        }
+        this.parseProfile = parseProfile;
+    }
+
     /**
      * Create SAML objects on the basis of their QName or type
      *
@@ -95,7 +184,7 @@ public abstract class AbstractSAMLHandler {
      */
     public Document asDOMDocument(XMLObject object) {
         try {
-            Document document = parserPoolManager.getBuilder().newDocument();
+            Document document = getParserPool(parseProfile).newDocument();
             Marshaller out = Configuration.getMarshallerFactory().getMarshaller(object);
             out.marshall(object, document);
             return document;
@@ -129,14 +218,19 @@ public abstract class AbstractSAMLHandler {
      * @param oStream OuptutStream to write to
      */
     public void printToStream(XMLObject object, OutputStream oStream) {
+        printToStream(object, oStream, 0);
+    }
+
+    /**
+     * Helper method to print any XML object to an output stream as it is, written straight to the stream.
+     *
+     * @param object   object
+     * @param oStream  OuptutStream to write to
+     * @param sizeHint expected size of the output in bytes, or zero if not known
+     */
+    public void printToStream(XMLObject object, OutputStream oStream, int sizeHint) {
         try {
-            // Transform the XMLObject into a ByteArrayOutputStream result
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            TransformerFactory.newInstance().newTransformer().transform(new DOMSource(asDOMDocument(object)), new StreamResult(buffer));
-            // Write said ByteArrayOutput content down the wire
-            oStream.write(buffer.toByteArray());
-            // Close our buffer holding the transformed result
-            buffer.close();
+            DOMStreamWriter.write(asDOMDocument(object), oStream, sizeHint);
         } catch (Exception anyE) {
             final String errorMessage = "Error writing contents of XMLObject to stream";
             log.error(errorMessage, anyE);
@@ -184,7 +278,13 @@ public abstract class AbstractSAMLHandler {
      */
     public XMLObject readFromFile(String filename) {
         try {
-            return fromElement(parserPoolManager.getBuilder().parse(filename).getDocumentElement());
+            final BasicParserPool pool = getParserPool(parseProfile);
+            final DocumentBuilder builder = pool.getBuilder();
+            try {
+                return fromElement(builder.parse(filename).getDocumentElement());
+            } finally {
+                pool.returnBuilder(builder);
+            }
         } catch (Exception anyE) {
             final String errorMessage = "Error reading XMLObject from file";
             log.error(errorMessage, anyE);
@@ -200,7 +300,7 @@ public abstract class AbstractSAMLHandler {
      */
     public XMLObject readFromStream(final InputStream io) {
         try {
-            return fromElement(parserPoolManager.getBuilder().parse(io).getDocumentElement());
+            return fromElement(getParserPool(parseProfile).parse(io).getDocumentElement());
         } catch (Exception anyE) {
             final String errorMessage = "Error reading XMLObject from stream";
             log.error(errorMessage, anyE);
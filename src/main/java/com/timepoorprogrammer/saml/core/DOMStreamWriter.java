@@ -0,0 +1,142 @@
+package com.timepoorprogrammer.saml.core;
+
+import org.w3c.dom.Node;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a DOM node out to a stream as it is, for sending SAML down the wire.
+ * <p/>
+ * The output is that of an identity transform from the platform TransformerFactory with its default output
+ * properties, so is byte for byte what transforming into a buffer and copying the buffer to the stream gives, and
+ * signatures stay valid.  The difference is that the factory is looked up once, each thread keeps its own transformer
+ * as they aren't thread safe, and the output goes straight to the stream through a buffer each thread reuses, rather
+ * than into a new buffer per message that is then copied.
+ * <p/>
+ * As the output is no longer held back until the whole node is written, an error part way through can leave part of
+ * the node written to the stream.
+ *
+ * @author Jim Ball
+ */
+public final class DOMStreamWriter {
+    /**
+     * Size of each thread's buffer unless a size hint asks for more
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * Largest a size hint can make a thread's buffer
+     */
+    public static final int MAX_BUFFER_SIZE = 65536;
+
+    private static final TransformerFactory FACTORY = TransformerFactory.newInstance();
+
+    private static final ThreadLocal<Transformer> TRANSFORMERS = new ThreadLocal<Transformer>() {
+        @Override
+        protected Transformer initialValue() {
+            try {
+                synchronized (FACTORY) {
+                    return FACTORY.newTransformer();
+                }
+            } catch (Exception anyE) {
+                throw new RuntimeException("Error creating identity transformer", anyE);
+            }
+        }
+    };
+
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[DEFAULT_BUFFER_SIZE];
+        }
+    };
+
+    private DOMStreamWriter() {
+    }
+
+    /**
+     * Write the node to the stream, which is left open and unflushed
+     *
+     * @param node     DOM node, normally a document
+     * @param oStream  stream to write to
+     * @param sizeHint expected size of the output in bytes, or zero if not known, used to size this thread's buffer
+     * @throws Exception on error
+     */
+    public static void write(final Node node, final OutputStream oStream, final int sizeHint) throws Exception {
+        if (node == null || oStream == null) {
+            throw new IllegalArgumentException("Cannot write without a node and a stream to write to");
+        }
+        byte[] buffer = BUFFERS.get();
+        if (sizeHint > buffer.length && buffer.length < MAX_BUFFER_SIZE) {
+            buffer = new byte[Math.min(sizeHint, MAX_BUFFER_SIZE)];
+            BUFFERS.set(buffer);
+        }
+        final Transformer transformer = TRANSFORMERS.get();
+        final BufferedOutput output = new BufferedOutput(oStream, buffer);
+        try {
+            transformer.transform(new DOMSource(node), new StreamResult(output));
+            output.drain();
+        } finally {
+            transformer.reset();
+        }
+    }
+
+    /**
+     * Buffers writes to the stream in the thread's buffer, and unlike a BufferedOutputStream doesn't flush the stream
+     * itself
+     */
+    private static final class BufferedOutput extends OutputStream {
+        private final OutputStream oStream;
+        private final byte[] buffer;
+        private int count;
+
+        private BufferedOutput(final OutputStream oStream, final byte[] buffer) {
+            this.oStream = oStream;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (count == buffer.length) {
+                drain();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+            if (length >= buffer.length) {
+                drain();
+                oStream.write(bytes, offset, length);
+                return;
+            }
+            if (length > buffer.length - count) {
+                drain();
+            }
+            System.arraycopy(bytes, offset, buffer, count, length);
+            count += length;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+        }
+
+        /**
+         * Write out what is buffered
+         *
+         * @throws IOException on error
+         */
+        private void drain() throws IOException {
+            if (count > 0) {
+                oStream.write(buffer, 0, count);
+                count = 0;
+            }
+        }
+    }
+}
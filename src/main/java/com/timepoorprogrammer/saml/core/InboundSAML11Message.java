@@ -14,6 +14,7 @@ public class InboundSAML11Message {
     Response response;
     String relayState;
     String issuer;
+    ResponsePreScan preScan;
     Assertion assertion;
 
     /**
@@ -34,6 +35,18 @@ public class InboundSAML11Message {
         }
     }
 
+    /**
+     * Get the SAML1.1 payload contents from the inbound message context, along with the pre-scan the consumer made of
+     * the payload before decoding it, so we can check the response we decoded is the one that was pre-scanned
+     *
+     * @param context SAML inbound message context
+     * @param preScan pre-scan of the payload, see the consumer's preScan
+     */
+    public InboundSAML11Message(final SAMLMessageContext context, final ResponsePreScan preScan) {
+        this(context);
+        this.preScan = preScan;
+    }
+
     /**
      * A consumer cannot manage incoming SAML1.1 unless it has the basics needed to determine how to process the
      * message.  At a minimum these are the SAML response, the assertion itself, and the issuer details.  The relayState is
@@ -42,11 +55,25 @@ public class InboundSAML11Message {
      * Note we can get at the assertion straight off in SAML 1.1 as the SAML 1.1 specification doesn't allow for
      * encryption of assertions by clients of remote services, it just isn't as secure as SAML2, hence the existance
      * of the newer standard.
+     * <p/>
+     * If the payload was pre-scanned, the response must also be the one that was pre-scanned.
      *
      * @return true if the incoming message is manageable, false otherwise
      */
     public boolean hasRequiredDetails() {
-        return response != null && assertion != null && issuer != null;
+        return response != null && assertion != null && issuer != null && matchesPreScan();
+    }
+
+    /**
+     * Is the response the one that was pre-scanned, so has the same identifier and issuer?  Always true if there was
+     * no pre-scan.
+     *
+     * @return true if the response matches the pre-scan or there was none, false otherwise
+     */
+    private boolean matchesPreScan() {
+        return preScan == null
+                || (preScan.getResponseId() != null && preScan.getResponseId().equals(response.getID())
+                && preScan.getIssuer() != null && preScan.getIssuer().equals(issuer.trim()));
     }
 
     /**
@@ -106,4 +133,13 @@ public class InboundSAML11Message {
     public Assertion getAssertion() {
         return assertion;
     }
+
+    /**
+     * Get the pre-scan the consumer made of the payload before decoding it
+     *
+     * @return pre-scan, or null if there wasn't one
+     */
+    public ResponsePreScan getPreScan() {
+        return preScan;
+    }
 }
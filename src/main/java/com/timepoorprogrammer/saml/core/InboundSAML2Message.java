@@ -13,6 +13,7 @@ public class InboundSAML2Message {
     Response response;
     String relayState;
     String issuer;
+    ResponsePreScan preScan;
 
     /**
      * Get the SAML2 payload contents from the inbound message context, so the SAML response, the relay state, and the
@@ -29,15 +30,41 @@ public class InboundSAML2Message {
         issuer = response.getIssuer().getValue();
     }
 
+    /**
+     * Get the SAML2 payload contents from the inbound message context, along with the pre-scan the consumer made of
+     * the payload before decoding it, so we can check the response we decoded is the one that was pre-scanned
+     *
+     * @param context SAML inbound message context
+     * @param preScan pre-scan of the payload, see the consumer's preScan
+     */
+    public InboundSAML2Message(final SAMLMessageContext context, final ResponsePreScan preScan) {
+        this(context);
+        this.preScan = preScan;
+    }
+
     /**
      * A consumer cannot manage incoming SAML2 unless it has the basics needed to determine how to process the
      * message.  At a minimum these are the SAML response and the issuer details.  The relayState is
      * not mandatory.
+     * <p/>
+     * If the payload was pre-scanned, the response must also be the one that was pre-scanned.
      *
      * @return true if the incoming message is manageable, false otherwise
      */
     public boolean hasRequiredDetails() {
-        return response != null && issuer != null;
+        return response != null && issuer != null && matchesPreScan();
+    }
+
+    /**
+     * Is the response the one that was pre-scanned, so has the same identifier and issuer?  Always true if there was
+     * no pre-scan.
+     *
+     * @return true if the response matches the pre-scan or there was none, false otherwise
+     */
+    private boolean matchesPreScan() {
+        return preScan == null
+                || (preScan.getResponseId() != null && preScan.getResponseId().equals(response.getID())
+                && preScan.getIssuer() != null && preScan.getIssuer().equals(issuer.trim()));
     }
 
     /**
@@ -87,4 +114,13 @@ public class InboundSAML2Message {
     public String getIssuer() {
         return issuer;
     }
+
+    /**
+     * Get the pre-scan the consumer made of the payload before decoding it
+     *
+     * @return pre-scan, or null if there wasn't one
+     */
+    public ResponsePreScan getPreScan() {
+        return preScan;
+    }
 }
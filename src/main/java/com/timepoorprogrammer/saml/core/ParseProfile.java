@@ -0,0 +1,54 @@
+package com.timepoorprogrammer.saml.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How strictly incoming SAML documents are checked as they are parsed.  Each profile has a parser pool of its own,
+ * see AbstractSAMLHandler.getParserPool.
+ * <p/>
+ * Every profile refuses DOCTYPE declarations, external entities and XInclude, so a document can't pull anything in
+ * from elsewhere or blow up as it is read.  A consumer chooses its profile in saml.properties, and takes the strict
+ * one unless told otherwise:
+ * <p/>
+ * <ul>
+ * <li>saml.&lt;serviceCode&gt;.parseProfile = STRICT or WELL_FORMED</li>
+ * </ul>
+ *
+ * @author Jim Ball
+ */
+public enum ParseProfile {
+    /**
+     * Validate against the SAML schemas, which OpenSAML compiles as one schema that describes SAML 1.1 and SAML 2.0
+     * along with the XML signature and encryption schemas they use
+     */
+    STRICT,
+
+    /**
+     * Only check the document is well formed, leaving its content to the unmarshallers and to our validators.  Roughly
+     * halves the parse time, so is for partners whose documents we already trust to be valid.
+     */
+    WELL_FORMED;
+
+    private static final Logger log = LoggerFactory.getLogger(ParseProfile.class);
+
+    /**
+     * Get the parse profile of the given name
+     *
+     * @param name profile name, case doesn't matter, or null for the strict profile
+     * @return parse profile
+     */
+    public static ParseProfile fromName(final String name) {
+        if (name == null || name.trim().length() == 0) {
+            return STRICT;
+        }
+        for (ParseProfile profile : values()) {
+            if (profile.name().equalsIgnoreCase(name.trim())) {
+                return profile;
+            }
+        }
+        final String errorMessage = "Unknown parse profile " + name + ", expected STRICT or WELL_FORMED";
+        log.error(errorMessage);
+        throw new RuntimeException(errorMessage);
+    }
+}
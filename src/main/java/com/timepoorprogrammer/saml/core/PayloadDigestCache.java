@@ -0,0 +1,62 @@
+package com.timepoorprogrammer.saml.core;
+
+import com.timepoorprogrammer.saml.security.JCAEngines;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short lived cache of digests of the raw SAMLResponse payloads a consumer has been sent, so an exact copy of a
+ * payload can be turned away before we pay to Base64 decode it, parse it, unmarshal it and check its signature.
+ * <p/>
+ * Exact copies turn up when a browser submits the auto-POST form twice or a customer's gateway retries.  They would
+ * be rejected as replays by the response validator anyway, but only after all that work.  A payload that differs by
+ * so much as a byte isn't caught here and goes through to the full replay check as normal, so this is purely a short
+ * cut and never the only line of defence.
+ *
+ * @author Jim Ball
+ */
+public class PayloadDigestCache {
+    /**
+     * Default number of seconds we remember a payload digest for, which covers double submits and gateway retries
+     */
+    public static final int DEFAULT_RETENTION_SECONDS = 120;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ReplayCache digests;
+
+    /**
+     * Construct a payload digest cache with the default retention
+     */
+    public PayloadDigestCache() {
+        this(DEFAULT_RETENTION_SECONDS);
+    }
+
+    /**
+     * Construct a payload digest cache
+     *
+     * @param retentionSeconds number of seconds to remember a payload for
+     */
+    public PayloadDigestCache(final int retentionSeconds) {
+        this.digests = new ReplayCache(TimeUnit.SECONDS.toMillis(retentionSeconds), TimeUnit.SECONDS.toMillis(1));
+    }
+
+    /**
+     * Have we been sent exactly this payload within the retention period?  The payload is recorded if not.
+     *
+     * @param payload raw SAMLResponse parameter value, as POSTed to us and before any decoding
+     * @return true if this is an exact copy of a payload we've already been sent, false otherwise
+     */
+    public boolean isDuplicate(final String payload) {
+        if (payload == null) {
+            return false;
+        }
+        final byte[] hash = JCAEngines.getMessageDigest("SHA-256").digest(payload.getBytes(UTF8));
+        final char[] key = new char[hash.length / 2];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (char) (((hash[2 * i] & 0xff) << 8) | (hash[2 * i + 1] & 0xff));
+        }
+        return !digests.add(new String(key));
+    }
+}
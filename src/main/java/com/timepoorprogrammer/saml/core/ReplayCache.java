@@ -0,0 +1,217 @@
+package com.timepoorprogrammer.saml.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replay detection engine for inbound SAML response identifiers.
+ * <p/>
+ * Identifiers are held in a concurrent map keyed by the identifier itself, so checking for and recording a new
+ * identifier is a single insert-if-absent with no global lock.  Expiry is driven by a timing wheel, which is a ring of
+ * buckets each covering one tick of time.  An identifier is dropped into the bucket for the tick in which it expires,
+ * and whenever the clock moves on a tick the caller that notices drains only the buckets that have just come due, so
+ * we never scan the whole set of identifiers to find the old ones.
+ * <p/>
+ * This is the engine behind the InMemoryReplayStore, so use the ReplayStoreFactory to pick up the replay store for a
+ * given service provider rather than constructing one of these directly.
+ *
+ * @author Jim Ball
+ */
+public class ReplayCache {
+    /**
+     * Number of minutes within which we look for incoming SAML response bodies with an identifier we've already processed
+     */
+    public static final int DEFAULT_RETENTION_MINUTES = 30;
+
+    /**
+     * Width in milliseconds of each bucket on the timing wheel
+     */
+    public static final long DEFAULT_TICK_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Identifiers we have seen mapped to the time in milliseconds at which we can forget about them
+     */
+    private final ConcurrentMap<String, Long> expiries = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * The timing wheel, each bucket holding the identifiers due to expire in a given tick
+     */
+    private final ConcurrentLinkedQueue<String>[] wheel;
+
+    /**
+     * The last tick whose bucket has been drained
+     */
+    private final AtomicLong lastExpiredTick;
+
+    private final long tickMillis;
+    private final long retentionMillis;
+
+    /**
+     * Construct a replay cache that remembers identifiers for the given number of minutes
+     *
+     * @param retentionMinutes number of minutes to remember an identifier for
+     */
+    public ReplayCache(final int retentionMinutes) {
+        this(TimeUnit.MINUTES.toMillis(retentionMinutes), DEFAULT_TICK_MILLIS);
+    }
+
+    /**
+     * Construct a replay cache
+     *
+     * @param retentionMillis number of milliseconds to remember an identifier for
+     * @param tickMillis      width in milliseconds of each bucket on the timing wheel
+     */
+    @SuppressWarnings("unchecked")
+    public ReplayCache(final long retentionMillis, final long tickMillis) {
+        if (retentionMillis <= 0 || tickMillis <= 0) {
+            throw new IllegalArgumentException("Replay cache retention and tick must both be positive");
+        }
+        this.retentionMillis = retentionMillis;
+        this.tickMillis = tickMillis;
+        // Enough buckets to cover the retention period plus the partially elapsed tick at either end
+        final int wheelSize = (int) (retentionMillis / tickMillis) + 2;
+        this.wheel = new ConcurrentLinkedQueue[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<String>();
+        }
+        this.lastExpiredTick = new AtomicLong(System.currentTimeMillis() / tickMillis);
+    }
+
+    /**
+     * Record the identifier for the standard retention period if we haven't already seen it.
+     *
+     * @param id identifier
+     * @return true if the identifier is new to us, false if we have already seen it and this is a replay
+     */
+    public boolean add(final String id) {
+        return add(id, System.currentTimeMillis() + retentionMillis);
+    }
+
+    /**
+     * Record the identifier until the given expiry time if we haven't already seen it.
+     *
+     * @param id        identifier
+     * @param expiresAt time in milliseconds after which we can forget about the identifier
+     * @return true if the identifier is new to us, false if we have already seen it and this is a replay
+     */
+    public boolean add(final String id, final long expiresAt) {
+        if (id == null) {
+            throw new IllegalArgumentException("Cannot check a null identifier for replay");
+        }
+        final long now = System.currentTimeMillis();
+        expire(now);
+        while (true) {
+            final Long previous = expiries.putIfAbsent(id, expiresAt);
+            if (previous == null) {
+                schedule(id, expiresAt);
+                return true;
+            }
+            if (previous > now) {
+                return false;
+            }
+            // We have seen it before but it has lapsed and the wheel hasn't got round to it yet, so it counts as new
+            if (expiries.replace(id, previous, expiresAt)) {
+                schedule(id, expiresAt);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Have we seen the identifier within its retention period?
+     *
+     * @param id identifier
+     * @return true if seen, false otherwise
+     */
+    public boolean contains(final String id) {
+        final Long expiresAt = expiries.get(id);
+        return expiresAt != null && expiresAt > System.currentTimeMillis();
+    }
+
+    /**
+     * Get the standard retention period
+     *
+     * @return the number of minutes we remember an identifier for
+     */
+    public int getRetentionMinutes() {
+        return (int) TimeUnit.MILLISECONDS.toMinutes(retentionMillis);
+    }
+
+    /**
+     * Get the number of identifiers currently held, including any that have lapsed but are still to be drained
+     *
+     * @return number of identifiers held
+     */
+    public int size() {
+        return expiries.size();
+    }
+
+    /**
+     * Put the identifier in the wheel bucket that will be drained once the expiry time has passed.
+     *
+     * @param id        identifier
+     * @param expiresAt expiry time in milliseconds
+     */
+    private void schedule(final String id, final long expiresAt) {
+        final long tick = Math.max(expiresAt / tickMillis + 1, lastExpiredTick.get() + 1);
+        wheel[(int) (tick % wheel.length)].offer(id);
+    }
+
+    /**
+     * Drain any buckets that have come due since we last looked.  Only the caller that moves the wheel on drains, so
+     * everyone else carries straight on.
+     *
+     * @param now current time in milliseconds
+     */
+    private void expire(final long now) {
+        final long currentTick = now / tickMillis;
+        final long last = lastExpiredTick.get();
+        if (currentTick <= last || !lastExpiredTick.compareAndSet(last, currentTick)) {
+            return;
+        }
+        // Never go round the wheel more than once, however long it's been since the last drain
+        final long from = Math.max(last + 1, currentTick - wheel.length + 1);
+        for (long tick = from; tick <= currentTick; tick++) {
+            drain(wheel[(int) (tick % wheel.length)], now);
+        }
+    }
+
+    /**
+     * Forget the identifiers in a bucket that have expired.  A bucket can also hold identifiers for a later turn of
+     * the wheel, or identifiers that have since been recorded again with a later expiry, so those are put back.
+     *
+     * @param bucket bucket
+     * @param now    current time in milliseconds
+     */
+    private void drain(final ConcurrentLinkedQueue<String> bucket, final long now) {
+        List<String> notYetDue = null;
+        String id;
+        while ((id = bucket.poll()) != null) {
+            final Long expiresAt = expiries.get(id);
+            if (expiresAt == null) {
+                continue;
+            }
+            if (expiresAt <= now) {
+                expiries.remove(id, expiresAt);
+            } else {
+                if (notYetDue == null) {
+                    notYetDue = new ArrayList<String>();
+                }
+                notYetDue.add(id);
+            }
+        }
+        if (notYetDue != null) {
+            for (String later : notYetDue) {
+                final Long expiresAt = expiries.get(later);
+                if (expiresAt != null) {
+                    schedule(later, expiresAt);
+                }
+            }
+        }
+    }
+}
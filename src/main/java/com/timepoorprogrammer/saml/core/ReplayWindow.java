@@ -0,0 +1,146 @@
+package com.timepoorprogrammer.saml.core;
+
+import org.joda.time.DateTime;
+import org.opensaml.saml2.core.Conditions;
+
+/**
+ * Works out how long the identifier of a SAML response or assertion needs to be remembered to stop it being replayed.
+ * <p/>
+ * There is no point remembering an identifier once the assertion it came with can no longer pass validation, so the
+ * window runs to the Conditions NotOnOrAfter, plus the clock skew we allow between us and the issuer.  That keeps the
+ * replay store proportional to the real validity of the assertions we are sent rather than some worst case constant.
+ * <p/>
+ * The window must end no earlier than the last moment our assertion validators accept the assertion, otherwise a
+ * replay arriving after we have forgotten its identifier but before the assertion expires passes as new.  The
+ * validators only enforce the Conditions NotOnOrAfter, so that is the only bound used, and an earlier
+ * SubjectConfirmationData NotOnOrAfter doesn't shorten the window.
+ *
+ * @author Jim Ball
+ */
+public class ReplayWindow {
+    /**
+     * Default number of seconds we allow for the clocks of an issuer and ourselves to disagree
+     */
+    public static final int DEFAULT_CLOCK_SKEW_SECONDS = 60;
+
+    /**
+     * Returned when an assertion places no time limit on itself
+     */
+    public static final long UNBOUNDED = -1;
+
+    private ReplayWindow() {
+    }
+
+    /**
+     * Get the time until which the identifier of a SAML2 assertion must be remembered, which is its Conditions
+     * NotOnOrAfter as that is what SAML2AssertionValidatorImpl checks.
+     *
+     * @param assertion        assertion
+     * @param clockSkewSeconds allowed clock skew in seconds
+     * @return expiry time in milliseconds or UNBOUNDED if the assertion has no NotOnOrAfter limit
+     */
+    public static long getExpiry(final org.opensaml.saml2.core.Assertion assertion, final int clockSkewSeconds) {
+        long earliest = UNBOUNDED;
+        final Conditions conditions = assertion.getConditions();
+        if (conditions != null) {
+            earliest = earliest(earliest, conditions.getNotOnOrAfter());
+        }
+        return withSkew(earliest, clockSkewSeconds);
+    }
+
+    /**
+     * Get the time until which the identifier of a SAML1.1 assertion must be remembered.  SAML1.1 has no subject
+     * confirmation data, so this is the Conditions NotOnOrAfter.
+     *
+     * @param assertion        assertion
+     * @param clockSkewSeconds allowed clock skew in seconds
+     * @return expiry time in milliseconds or UNBOUNDED if the assertion has no NotOnOrAfter limit
+     */
+    public static long getExpiry(final org.opensaml.saml1.core.Assertion assertion, final int clockSkewSeconds) {
+        long earliest = UNBOUNDED;
+        if (assertion.getConditions() != null) {
+            earliest = earliest(earliest, assertion.getConditions().getNotOnOrAfter());
+        }
+        return withSkew(earliest, clockSkewSeconds);
+    }
+
+    /**
+     * Get the time until which the identifier of a SAML2 response must be remembered, which is until none of the
+     * assertions it carries in the clear can validate.  Encrypted assertions can't be looked into at this point, so
+     * if there are no assertions in the clear the window is unbounded and the replay store's default applies.
+     *
+     * @param response         response
+     * @param clockSkewSeconds allowed clock skew in seconds
+     * @return expiry time in milliseconds or UNBOUNDED
+     */
+    public static long getExpiry(final org.opensaml.saml2.core.Response response, final int clockSkewSeconds) {
+        if (response.getAssertions().isEmpty() || !response.getEncryptedAssertions().isEmpty()) {
+            return UNBOUNDED;
+        }
+        long latest = 0;
+        for (org.opensaml.saml2.core.Assertion assertion : response.getAssertions()) {
+            final long expiry = getExpiry(assertion, clockSkewSeconds);
+            if (expiry == UNBOUNDED) {
+                return UNBOUNDED;
+            }
+            latest = Math.max(latest, expiry);
+        }
+        return latest;
+    }
+
+    /**
+     * Get the time until which the identifier of a SAML1.1 response must be remembered, which is until none of the
+     * assertions it carries can validate.
+     *
+     * @param response         response
+     * @param clockSkewSeconds allowed clock skew in seconds
+     * @return expiry time in milliseconds or UNBOUNDED
+     */
+    public static long getExpiry(final org.opensaml.saml1.core.Response response, final int clockSkewSeconds) {
+        if (response.getAssertions().isEmpty()) {
+            return UNBOUNDED;
+        }
+        long latest = 0;
+        for (org.opensaml.saml1.core.Assertion assertion : response.getAssertions()) {
+            final long expiry = getExpiry(assertion, clockSkewSeconds);
+            if (expiry == UNBOUNDED) {
+                return UNBOUNDED;
+            }
+            latest = Math.max(latest, expiry);
+        }
+        return latest;
+    }
+
+    /**
+     * Is the SAML2 assertion for one time use only, so its own identifier must not be accepted twice?
+     *
+     * @param assertion assertion
+     * @return true if the assertion carries a OneTimeUse condition
+     */
+    public static boolean isOneTimeUse(final org.opensaml.saml2.core.Assertion assertion) {
+        return assertion.getConditions() != null && assertion.getConditions().getOneTimeUse() != null;
+    }
+
+    /**
+     * Is the SAML1.1 assertion for one time use only?  SAML1.1 has no OneTimeUse, but its DoNotCacheCondition says
+     * the assertion must be used immediately and not kept, so we treat it the same way.
+     *
+     * @param assertion assertion
+     * @return true if the assertion carries a DoNotCacheCondition
+     */
+    public static boolean isOneTimeUse(final org.opensaml.saml1.core.Assertion assertion) {
+        return assertion.getConditions() != null && !assertion.getConditions().getDoNotCacheConditions().isEmpty();
+    }
+
+    private static long earliest(final long current, final DateTime candidate) {
+        if (candidate == null) {
+            return current;
+        }
+        final long millis = candidate.getMillis();
+        return current == UNBOUNDED ? millis : Math.min(current, millis);
+    }
+
+    private static long withSkew(final long expiry, final int clockSkewSeconds) {
+        return expiry == UNBOUNDED ? UNBOUNDED : expiry + clockSkewSeconds * 1000L;
+    }
+}
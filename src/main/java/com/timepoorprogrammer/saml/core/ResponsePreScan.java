@@ -0,0 +1,294 @@
+package com.timepoorprogrammer.saml.core;
+
+import org.joda.time.DateTime;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.XMLConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+
+/**
+ * What a quick streaming read of the start of a SAMLResponse payload tells us about the response, before we pay to
+ * build its DOM and unmarshall it.
+ * <p/>
+ * Only the first few KB of the payload are decoded, which is enough to get past the response's own attributes, its
+ * issuer and signature and on to its first assertion, at which point the read stops.  From a SAML2 response we get the
+ * ID, Issuer, Destination and IssueInstant, and from a SAML1.1 response the ResponseID, Recipient and IssueInstant,
+ * with the issuer taken from the first assertion.  We also note whether the response is signed and whether it holds
+ * encrypted assertions.
+ * <p/>
+ * Nothing here is trusted, as the signature hasn't been checked, so the pre-scan is only good for turning away
+ * responses that can't be valid, say from an issuer we don't know or that we've already seen.  A response that gets
+ * past it still gets the full parse and every check.  The reader won't read DTDs or external entities.
+ *
+ * @author Jim Ball
+ */
+public final class ResponsePreScan {
+    private static final Logger log = LoggerFactory.getLogger(ResponsePreScan.class);
+
+    /**
+     * Number of Base64 characters decoded, which is 6KB of XML
+     */
+    private static final int PRESCAN_CHARS = 8192;
+
+    /**
+     * XMLInputFactory instances are costly to make and not promised to be thread safe, so each thread keeps its own
+     */
+    private static final ThreadLocal<XMLInputFactory> FACTORIES = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            final XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+            factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+            return factory;
+        }
+    };
+
+    private final boolean saml2;
+    private final String responseId;
+    private final String issuer;
+    private final String destination;
+    private final DateTime issueInstant;
+    private final boolean signed;
+    private final boolean encrypted;
+
+    private ResponsePreScan(final boolean saml2, final String responseId, final String issuer, final String destination,
+                            final DateTime issueInstant, final boolean signed, final boolean encrypted) {
+        this.saml2 = saml2;
+        this.responseId = responseId;
+        this.issuer = issuer;
+        this.destination = destination;
+        this.issueInstant = issueInstant;
+        this.signed = signed;
+        this.encrypted = encrypted;
+    }
+
+    /**
+     * Pre-scan the raw value of a SAMLResponse parameter as POSTed to a SAML2 or SAML1.1 assertion consumer
+     *
+     * @param samlResponse raw value of the SAMLResponse parameter
+     * @return pre-scan, or null if the payload doesn't start like a SAML response
+     */
+    public static ResponsePreScan scan(final String samlResponse) {
+        if (samlResponse == null) {
+            return null;
+        }
+        final byte[] xml;
+        try {
+            xml = Base64.decode(prefix(samlResponse));
+        } catch (Exception anyE) {
+            log.debug("SAMLResponse payload is not Base64", anyE);
+            return null;
+        }
+        if (xml == null) {
+            return null;
+        }
+        return scan(xml);
+    }
+
+    /**
+     * Pre-scan the start of an XML SAML response, which can be cut off anywhere after the first assertion begins
+     *
+     * @param xml start of the XML
+     * @return pre-scan, or null if the XML doesn't start like a SAML response
+     */
+    public static ResponsePreScan scan(final byte[] xml) {
+        if (xml == null) {
+            return null;
+        }
+        final Reading reading = new Reading();
+        XMLStreamReader reader = null;
+        try {
+            reader = FACTORIES.get().createXMLStreamReader(new ByteArrayInputStream(xml));
+            read(reader, reading);
+        } catch (XMLStreamException anyE) {
+            // Most likely where we cut the payload off, so go with what we have
+            log.debug("Stopped pre-scanning SAML response", anyE);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    log.debug("Unable to close pre-scan reader", e);
+                }
+            }
+        }
+        if (reading.namespace == null) {
+            return null;
+        }
+        DateTime issueInstant = null;
+        if (reading.issueInstant != null) {
+            try {
+                issueInstant = new DateTime(reading.issueInstant.trim());
+            } catch (IllegalArgumentException anyE) {
+                log.debug("SAML response IssueInstant {} is not a date time", reading.issueInstant);
+            }
+        }
+        return new ResponsePreScan(SAMLConstants.SAML20P_NS.equals(reading.namespace), reading.responseId,
+                reading.issuer, reading.destination, issueInstant, reading.signed, reading.encrypted);
+    }
+
+    /**
+     * Read up to the first assertion, or to the end of the response if it holds none
+     *
+     * @param reader  reader
+     * @param reading what we have read so far
+     * @throws XMLStreamException if the XML is cut off or not well formed
+     */
+    private static void read(final XMLStreamReader reader, final Reading reading) throws XMLStreamException {
+        int depth = 0;
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            depth++;
+            final String namespace = reader.getNamespaceURI();
+            final String name = reader.getLocalName();
+            if (depth == 1) {
+                if (!"Response".equals(name)) {
+                    return;
+                }
+                if (SAMLConstants.SAML20P_NS.equals(namespace)) {
+                    reading.responseId = reader.getAttributeValue(null, "ID");
+                    reading.destination = reader.getAttributeValue(null, "Destination");
+                } else if (SAMLConstants.SAML10P_NS.equals(namespace)) {
+                    reading.responseId = reader.getAttributeValue(null, "ResponseID");
+                    reading.destination = reader.getAttributeValue(null, "Recipient");
+                } else {
+                    return;
+                }
+                reading.namespace = namespace;
+                reading.issueInstant = reader.getAttributeValue(null, "IssueInstant");
+            } else if (depth == 2) {
+                if (XMLConstants.XMLSIG_NS.equals(namespace) && "Signature".equals(name)) {
+                    reading.signed = true;
+                } else if (SAMLConstants.SAML20_NS.equals(namespace) && "Issuer".equals(name)) {
+                    reading.issuer = reader.getElementText();
+                    depth--;
+                } else if (SAMLConstants.SAML20_NS.equals(namespace) && "EncryptedAssertion".equals(name)) {
+                    reading.encrypted = true;
+                    return;
+                } else if (SAMLConstants.SAML20_NS.equals(namespace) && "Assertion".equals(name)) {
+                    return;
+                } else if (SAMLConstants.SAML1_NS.equals(namespace) && "Assertion".equals(name)) {
+                    reading.issuer = reader.getAttributeValue(null, "Issuer");
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Take the first few KB of the Base64 payload, ignoring any line breaks, to a whole number of Base64 quanta
+     *
+     * @param samlResponse raw value of the SAMLResponse parameter
+     * @return start of the payload
+     */
+    private static String prefix(final String samlResponse) {
+        final StringBuilder prefix = new StringBuilder(Math.min(samlResponse.length(), PRESCAN_CHARS));
+        for (int i = 0; i < samlResponse.length() && prefix.length() < PRESCAN_CHARS; i++) {
+            final char c = samlResponse.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                prefix.append(c);
+            }
+        }
+        prefix.setLength(prefix.length() - prefix.length() % 4);
+        return prefix.toString();
+    }
+
+    /**
+     * Is this a SAML2 response rather than a SAML1.1 one?
+     *
+     * @return true if SAML2, false if SAML1.1
+     */
+    public boolean isSAML2() {
+        return saml2;
+    }
+
+    /**
+     * Get the response identifier
+     *
+     * @return response identifier, or null if it has none
+     */
+    public String getResponseId() {
+        return responseId;
+    }
+
+    /**
+     * Get the issuer, being the response's Issuer in SAML2 and the first assertion's Issuer in SAML1.1
+     *
+     * @return issuer, or null if not found
+     */
+    public String getIssuer() {
+        return issuer == null ? null : issuer.trim();
+    }
+
+    /**
+     * Get where the response says it is for, being its Destination in SAML2 and its Recipient in SAML1.1
+     *
+     * @return destination, or null if it doesn't say
+     */
+    public String getDestination() {
+        return destination;
+    }
+
+    /**
+     * Get when the response says it was issued
+     *
+     * @return issue instant, or null if missing or not a date time
+     */
+    public DateTime getIssueInstant() {
+        return issueInstant;
+    }
+
+    /**
+     * Does the response carry a signature of its own?
+     *
+     * @return true if signed, false otherwise
+     */
+    public boolean isSigned() {
+        return signed;
+    }
+
+    /**
+     * Does the response hold encrypted assertions?
+     *
+     * @return true if an encrypted assertion was found, false otherwise
+     */
+    public boolean isEncrypted() {
+        return encrypted;
+    }
+
+    @Override
+    public String toString() {
+        return "ResponsePreScan{" + (saml2 ? "SAML2" : "SAML1.1") + ", responseId=" + responseId + ", issuer="
+                + getIssuer() + ", destination=" + destination + ", issueInstant=" + issueInstant + ", signed=" + signed
+                + ", encrypted=" + encrypted + '}';
+    }
+
+    /**
+     * What has been read so far
+     */
+    private static final class Reading {
+        private String namespace;
+        private String responseId;
+        private String issuer;
+        private String destination;
+        private String issueInstant;
+        private boolean signed;
+        private boolean encrypted;
+    }
+}
@@ -0,0 +1,103 @@
+package com.timepoorprogrammer.saml.core;
+
+import org.opensaml.saml2.core.Assertion;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Capture the results of decrypting and validating every assertion in a SAML2 response, one outcome per assertion in
+ * the order they appear in the response, plain assertions first and then encrypted ones.
+ *
+ * @author Jim Ball
+ */
+public class SAMLAssertionsValidationResult {
+    private final List<Assertion> assertions;
+    private final List<SAMLAssertionValidationResult> results;
+
+    /**
+     * Construct the result from the per assertion outcomes
+     *
+     * @param assertions assertions, with a null wherever an assertion couldn't be decrypted
+     * @param results    validation result for each assertion
+     */
+    public SAMLAssertionsValidationResult(final List<Assertion> assertions, final List<SAMLAssertionValidationResult> results) {
+        if (assertions == null || results == null || assertions.size() != results.size()) {
+            throw new IllegalArgumentException("Need a validation result for every assertion");
+        }
+        this.assertions = Collections.unmodifiableList(new ArrayList<Assertion>(assertions));
+        this.results = Collections.unmodifiableList(new ArrayList<SAMLAssertionValidationResult>(results));
+    }
+
+    /**
+     * Are there assertions and are they all valid?
+     *
+     * @return true if every assertion is valid, false otherwise
+     */
+    public boolean isValid() {
+        if (results.isEmpty()) {
+            return false;
+        }
+        for (SAMLAssertionValidationResult result : results) {
+            if (!result.isValid()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the error details of every assertion that isn't valid
+     *
+     * @return error details, or null if every assertion is valid
+     */
+    public String getErrorDetails() {
+        if (results.isEmpty()) {
+            return "Response holds no assertions";
+        }
+        final StringBuilder details = new StringBuilder();
+        for (int i = 0; i < results.size(); i++) {
+            if (!results.get(i).isValid()) {
+                if (details.length() > 0) {
+                    details.append("; ");
+                }
+                details.append("assertion ").append(i).append(": ").append(results.get(i).getErrorDetails());
+            }
+        }
+        return details.length() == 0 ? null : details.toString();
+    }
+
+    /**
+     * Get the assertions that are valid
+     *
+     * @return valid assertions
+     */
+    public List<Assertion> getValidAssertions() {
+        final List<Assertion> valid = new ArrayList<Assertion>(assertions.size());
+        for (int i = 0; i < assertions.size(); i++) {
+            if (results.get(i).isValid()) {
+                valid.add(assertions.get(i));
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Get every assertion, with a null wherever an assertion couldn't be decrypted
+     *
+     * @return assertions
+     */
+    public List<Assertion> getAssertions() {
+        return assertions;
+    }
+
+    /**
+     * Get the validation result for every assertion
+     *
+     * @return validation results
+     */
+    public List<SAMLAssertionValidationResult> getResults() {
+        return results;
+    }
+}
@@ -3,17 +3,10 @@ package com.timepoorprogrammer.saml.core;
 import com.timepoorprogrammer.common.utilities.io.ArtifactHelper;
 import com.timepoorprogrammer.common.utilities.io.Common;
 import com.timepoorprogrammer.common.utilities.io.artifacts.Artifact;
-import com.timepoorprogrammer.saml.security.KeyStoreCredentialHandler;
+import com.timepoorprogrammer.saml.security.CredentialRegistry;
 import com.timepoorprogrammer.saml.security.signature.X509SAMLSignatureCreator;
 import com.timepoorprogrammer.saml.security.signature.X509SAMLSignatureCreator;
 import org.opensaml.saml2.encryption.Decrypter;
-import org.opensaml.saml2.encryption.EncryptedElementTypeEncryptedKeyResolver;
-import org.opensaml.xml.encryption.ChainingEncryptedKeyResolver;
-import org.opensaml.xml.encryption.InlineEncryptedKeyResolver;
-import org.opensaml.xml.encryption.SimpleRetrievalMethodEncryptedKeyResolver;
-import org.opensaml.xml.security.credential.BasicCredential;
-import org.opensaml.xml.security.keyinfo.KeyInfoCredentialResolver;
-import org.opensaml.xml.security.keyinfo.StaticKeyInfoCredentialResolver;
 
 import java.io.InputStream;
 import java.net.URL;
@@ -200,15 +193,10 @@ public class SAMLHelper {
         if (encryptionAlgorithm != null && decryptionKeyStoreFileStream != null
                 && decryptionKeyStoreFilePassword != null && decryptionKeyAlias != null
                 && decryptionKeyPassword != null) {
-            final KeyStoreCredentialHandler keyStoreCredentialHandler =
-                    new KeyStoreCredentialHandler(decryptionKeyStoreFileStream, decryptionKeyStoreFilePassword);
-            final BasicCredential privateCredentials = keyStoreCredentialHandler.getPrivateCredentials(decryptionKeyAlias, decryptionKeyPassword);
-            KeyInfoCredentialResolver kekResolver = new StaticKeyInfoCredentialResolver(privateCredentials);
-            ChainingEncryptedKeyResolver encryptedKeyResolver = new ChainingEncryptedKeyResolver();
-            encryptedKeyResolver.getResolverChain().add(new InlineEncryptedKeyResolver());
-            encryptedKeyResolver.getResolverChain().add(new EncryptedElementTypeEncryptedKeyResolver());
-            encryptedKeyResolver.getResolverChain().add(new SimpleRetrievalMethodEncryptedKeyResolver());
-            return new Decrypter(null, kekResolver, encryptedKeyResolver);
+            // Keystores, unwrapped keys and their decryption engines are registered once, so this is only expensive
+            // the first time through, and the decrypter handed back is shared
+            return CredentialRegistry.getHandler(decryptionKeyStoreFileStream, decryptionKeyStoreFilePassword)
+                    .getDecrypter(decryptionKeyAlias, decryptionKeyPassword);
         } else {
             return null;
         }
@@ -232,15 +220,10 @@ public class SAMLHelper {
         if (encryptionAlgorithm != null && decryptionKeyStoreFilePath != null
                 && decryptionKeyStoreFilePassword != null && decryptionKeyAlias != null
                 && decryptionKeyPassword != null) {
-            final KeyStoreCredentialHandler keyStoreCredentialHandler =
-                    new KeyStoreCredentialHandler(decryptionKeyStoreFilePath, decryptionKeyStoreFilePassword);
-            final BasicCredential privateCredentials = keyStoreCredentialHandler.getPrivateCredentials(decryptionKeyAlias, decryptionKeyPassword);
-            KeyInfoCredentialResolver kekResolver = new StaticKeyInfoCredentialResolver(privateCredentials);
-            ChainingEncryptedKeyResolver encryptedKeyResolver = new ChainingEncryptedKeyResolver();
-            encryptedKeyResolver.getResolverChain().add(new InlineEncryptedKeyResolver());
-            encryptedKeyResolver.getResolverChain().add(new EncryptedElementTypeEncryptedKeyResolver());
-            encryptedKeyResolver.getResolverChain().add(new SimpleRetrievalMethodEncryptedKeyResolver());
-            return new Decrypter(null, kekResolver, encryptedKeyResolver);
+            // Keystores, unwrapped keys and their decryption engines are registered once, so this is only expensive
+            // the first time through, and the decrypter handed back is shared
+            return CredentialRegistry.getHandler(decryptionKeyStoreFilePath, decryptionKeyStoreFilePassword)
+                    .getDecrypter(decryptionKeyAlias, decryptionKeyPassword);
         } else {
             return null;
         }
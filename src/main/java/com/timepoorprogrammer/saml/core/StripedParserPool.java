@@ -0,0 +1,402 @@
+package com.timepoorprogrammer.saml.core;
+
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.parse.LoggingErrorHandler;
+import org.opensaml.xml.parse.XMLParserException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.validation.Schema;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parser pool that hands out document builders without taking a lock, so request threads parsing at the same time
+ * don't queue up behind each other the way they do on the one monitor of a BasicParserPool.
+ * <p/>
+ * Each thread keeps the last builder it gave back and takes that one again next time, which is the usual case and
+ * touches nothing shared.  A thread that has no builder of its own, say on first use or when it needs two at once,
+ * takes an idle one from a lock free queue shared by all threads, and only if that is empty is a new builder made by
+ * the BasicParserPool underneath.  So the number of builders grows to meet the load, and shrinks again as builders
+ * left idle in the shared queue for too long are dropped, as are any given back while the queue is already full.
+ * <p/>
+ * It is a BasicParserPool, so is configured in the same way and can be used anywhere one is, but the configuration
+ * must be finished before the first builder is handed out, as builders already made are kept as they are.  Only give
+ * back builders taken from this pool, as any others are ignored.
+ * <p/>
+ * A builder is reset as it is given back, which undoes any error handler or entity resolver the caller set on it, and
+ * gets this pool's error handler and entity resolver put back.  The error handler throws on every error, so a document
+ * that fails schema validation fails to parse whichever builder it meets, and the entity resolver refuses to resolve
+ * anything.
+ *
+ * @author Jim Ball
+ */
+public class StripedParserPool extends BasicParserPool {
+    private static final Logger log = LoggerFactory.getLogger(StripedParserPool.class);
+
+    /**
+     * Most idle builders kept in the shared queue unless told otherwise
+     */
+    public static final int DEFAULT_MAX_IDLE = 64;
+
+    /**
+     * Number of seconds a builder may sit idle in the shared queue before it is dropped unless told otherwise
+     */
+    public static final int DEFAULT_IDLE_SECONDS = 300;
+
+    /**
+     * Builder each thread gave back last
+     */
+    private final ThreadLocal<DocumentBuilder> threadBuilders = new ThreadLocal<DocumentBuilder>();
+
+    /**
+     * Builders given back while the thread already had one, oldest first
+     */
+    private final ConcurrentLinkedQueue<IdleBuilder> idleBuilders = new ConcurrentLinkedQueue<IdleBuilder>();
+
+    /**
+     * Error handler put on every builder, which throws on errors rather than just logging them
+     */
+    private final ErrorHandler errorHandler = new LoggingErrorHandler(log);
+
+    /**
+     * Entity resolver put on every builder, which refuses to resolve anything
+     */
+    private final EntityResolver entityResolver = new EntityResolver() {
+        public InputSource resolveEntity(final String publicId, final String systemId) throws SAXException {
+            throw new SAXException("Refusing to resolve entity " + systemId);
+        }
+    };
+
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final int maxIdle;
+    private final long idleNanos;
+
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong threadHits = new AtomicLong();
+    private final AtomicLong sharedHits = new AtomicLong();
+    private final AtomicLong buildersCreated = new AtomicLong();
+    private final AtomicLong buildersDropped = new AtomicLong();
+    private final AtomicLong borrowNanos = new AtomicLong();
+    private final AtomicLong maxBorrowNanos = new AtomicLong();
+
+    /**
+     * Construct a striped parser pool with the default idle limits
+     */
+    public StripedParserPool() {
+        this(DEFAULT_MAX_IDLE, DEFAULT_IDLE_SECONDS);
+    }
+
+    /**
+     * Construct a striped parser pool
+     *
+     * @param maxIdle     most idle builders to keep in the shared queue
+     * @param idleSeconds number of seconds a builder may sit idle in the shared queue before it is dropped
+     */
+    public StripedParserPool(final int maxIdle, final int idleSeconds) {
+        super();
+        if (maxIdle < 0 || idleSeconds <= 0) {
+            throw new IllegalArgumentException("Idle builder limit can't be negative and idle time must be positive");
+        }
+        this.maxIdle = maxIdle;
+        this.idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+    }
+
+    /**
+     * Get a document builder, which should be given back with returnBuilder once finished with
+     *
+     * @return document builder
+     * @throws XMLParserException if a new builder is needed and can't be made
+     */
+    @Override
+    public DocumentBuilder getBuilder() throws XMLParserException {
+        final long start = System.nanoTime();
+        DocumentBuilder builder = threadBuilders.get();
+        if (builder != null) {
+            threadBuilders.set(null);
+            threadHits.incrementAndGet();
+        } else {
+            builder = takeIdleBuilder(start);
+            if (builder != null) {
+                sharedHits.incrementAndGet();
+            } else {
+                builder = new PooledBuilder(this, super.getBuilder());
+                prepare(builder);
+                buildersCreated.incrementAndGet();
+            }
+        }
+        recordBorrow(System.nanoTime() - start);
+        return builder;
+    }
+
+    /**
+     * Give back a document builder got from getBuilder
+     *
+     * @param builder document builder
+     */
+    @Override
+    public void returnBuilder(final DocumentBuilder builder) {
+        if (!(builder instanceof PooledBuilder) || ((PooledBuilder) builder).owner != this) {
+            return;
+        }
+        builder.reset();
+        prepare(builder);
+        if (threadBuilders.get() == null) {
+            threadBuilders.set(builder);
+        } else if (idleCount.incrementAndGet() <= maxIdle) {
+            idleBuilders.offer(new IdleBuilder(builder, System.nanoTime()));
+        } else {
+            idleCount.decrementAndGet();
+            buildersDropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Parse a document with a builder from the pool
+     *
+     * @param input document
+     * @return parsed document
+     * @throws XMLParserException on error
+     */
+    @Override
+    public Document parse(final InputStream input) throws XMLParserException {
+        final DocumentBuilder builder = getBuilder();
+        try {
+            return builder.parse(input);
+        } catch (Exception anyE) {
+            throw new XMLParserException("Unable to parse inputstream, it contained invalid XML", anyE);
+        } finally {
+            returnBuilder(builder);
+        }
+    }
+
+    /**
+     * Parse a document with a builder from the pool
+     *
+     * @param input document
+     * @return parsed document
+     * @throws XMLParserException on error
+     */
+    @Override
+    public Document parse(final Reader input) throws XMLParserException {
+        final DocumentBuilder builder = getBuilder();
+        try {
+            return builder.parse(new InputSource(input));
+        } catch (Exception anyE) {
+            throw new XMLParserException("Unable to parse reader, it contained invalid XML", anyE);
+        } finally {
+            returnBuilder(builder);
+        }
+    }
+
+    /**
+     * Make a new empty document with a builder from the pool
+     *
+     * @return empty document
+     * @throws XMLParserException if a new builder is needed and can't be made
+     */
+    @Override
+    public Document newDocument() throws XMLParserException {
+        final DocumentBuilder builder = getBuilder();
+        try {
+            return builder.newDocument();
+        } finally {
+            returnBuilder(builder);
+        }
+    }
+
+    /**
+     * Put this pool's error handler and entity resolver on the builder
+     *
+     * @param builder document builder
+     */
+    private void prepare(final DocumentBuilder builder) {
+        builder.setErrorHandler(errorHandler);
+        builder.setEntityResolver(entityResolver);
+    }
+
+    /**
+     * Take the oldest idle builder from the shared queue, dropping any that have been idle too long on the way
+     *
+     * @param now time now in nanoseconds
+     * @return idle builder, or null if there isn't one
+     */
+    private DocumentBuilder takeIdleBuilder(final long now) {
+        IdleBuilder idle;
+        while ((idle = idleBuilders.poll()) != null) {
+            idleCount.decrementAndGet();
+            if (now - idle.returnedAt < idleNanos) {
+                return idle.builder;
+            }
+            buildersDropped.incrementAndGet();
+        }
+        return null;
+    }
+
+    private void recordBorrow(final long nanos) {
+        borrows.incrementAndGet();
+        borrowNanos.addAndGet(nanos);
+        long max = maxBorrowNanos.get();
+        while (nanos > max && !maxBorrowNanos.compareAndSet(max, nanos)) {
+            max = maxBorrowNanos.get();
+        }
+    }
+
+    /**
+     * Get the number of builders handed out
+     *
+     * @return borrows
+     */
+    public long getBorrows() {
+        return borrows.get();
+    }
+
+    /**
+     * Get the number of builders handed out that were the thread's own
+     *
+     * @return thread hits
+     */
+    public long getThreadHits() {
+        return threadHits.get();
+    }
+
+    /**
+     * Get the number of builders handed out from the shared queue
+     *
+     * @return shared hits
+     */
+    public long getSharedHits() {
+        return sharedHits.get();
+    }
+
+    /**
+     * Get the number of builders made because none was idle
+     *
+     * @return builders created
+     */
+    public long getBuildersCreated() {
+        return buildersCreated.get();
+    }
+
+    /**
+     * Get the number of builders dropped for sitting idle too long or for the shared queue being full
+     *
+     * @return builders dropped
+     */
+    public long getBuildersDropped() {
+        return buildersDropped.get();
+    }
+
+    /**
+     * Get the number of builders idle in the shared queue, not counting those kept by threads
+     *
+     * @return idle builders
+     */
+    public int getIdleBuilders() {
+        return idleCount.get();
+    }
+
+    /**
+     * Get the average time callers have waited for a builder, including any time spent making one
+     *
+     * @return average borrow wait in nanoseconds
+     */
+    public long getAverageBorrowNanos() {
+        final long count = borrows.get();
+        return count == 0 ? 0 : borrowNanos.get() / count;
+    }
+
+    /**
+     * Get the longest time a caller has waited for a builder, including any time spent making one
+     *
+     * @return longest borrow wait in nanoseconds
+     */
+    public long getMaxBorrowNanos() {
+        return maxBorrowNanos.get();
+    }
+
+    private static final class IdleBuilder {
+        private final DocumentBuilder builder;
+        private final long returnedAt;
+
+        private IdleBuilder(final DocumentBuilder builder, final long returnedAt) {
+            this.builder = builder;
+            this.returnedAt = returnedAt;
+        }
+    }
+
+    /**
+     * Builder made by the BasicParserPool underneath, marked as belonging to this pool
+     */
+    private static final class PooledBuilder extends DocumentBuilder {
+        private final StripedParserPool owner;
+        private final DocumentBuilder builder;
+
+        private PooledBuilder(final StripedParserPool owner, final DocumentBuilder builder) {
+            this.owner = owner;
+            this.builder = builder;
+        }
+
+        @Override
+        public Document parse(final InputSource is) throws SAXException, IOException {
+            return builder.parse(is);
+        }
+
+        @Override
+        public boolean isNamespaceAware() {
+            return builder.isNamespaceAware();
+        }
+
+        @Override
+        public boolean isValidating() {
+            return builder.isValidating();
+        }
+
+        @Override
+        public void setEntityResolver(final EntityResolver er) {
+            builder.setEntityResolver(er);
+        }
+
+        @Override
+        public void setErrorHandler(final ErrorHandler eh) {
+            builder.setErrorHandler(eh);
+        }
+
+        @Override
+        public Document newDocument() {
+            return builder.newDocument();
+        }
+
+        @Override
+        public DOMImplementation getDOMImplementation() {
+            return builder.getDOMImplementation();
+        }
+
+        @Override
+        public void reset() {
+            builder.reset();
+        }
+
+        @Override
+        public Schema getSchema() {
+            return builder.getSchema();
+        }
+
+        @Override
+        public boolean isXIncludeAware() {
+            return builder.isXIncludeAware();
+        }
+    }
+}
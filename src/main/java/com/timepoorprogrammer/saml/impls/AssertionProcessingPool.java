@@ -0,0 +1,257 @@
+package com.timepoorprogrammer.saml.impls;
+
+import com.timepoorprogrammer.saml.core.AbstractSAMLHandler;
+import com.timepoorprogrammer.saml.core.ParseProfile;
+import com.timepoorprogrammer.saml.core.SAMLAssertionValidationResult;
+import com.timepoorprogrammer.saml.core.SAMLAssertionsValidationResult;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.encryption.Decrypter;
+import org.opensaml.xml.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Worker pool the SAML2AssertionConsumer uses to decrypt and validate the assertions of a response that holds more
+ * than one, say one for authentication, one for attributes and one for entitlements, at the same time rather than one
+ * after another.
+ * <p/>
+ * There is one pool per JVM with a worker per processor, as decryption is CPU bound.  A response holding a single
+ * assertion never leaves the calling thread.
+ * <p/>
+ * Every assertion in a response starts out in the response's own document, and DOM documents aren't thread safe, even
+ * to read, while decrypting an assertion writes to the document that holds it.  So only the calling thread ever works
+ * on the response's document, handling the plain assertions, or the first encrypted assertion if there are none.
+ * Before any work starts, the calling thread copies each of the other encrypted assertions into a document of its own,
+ * and those copies are what the workers decrypt and validate, each in its own document throughout.
+ *
+ * @author Jim Ball
+ */
+final class AssertionProcessingPool {
+    private static final Logger log = LoggerFactory.getLogger(AssertionProcessingPool.class);
+
+    private static AssertionProcessingPool shared;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Construct an assertion processing pool
+     *
+     * @param workers number of workers
+     */
+    AssertionProcessingPool(final int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Need at least one worker");
+        }
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "saml-assertion-processor-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Get the pool shared by every consumer, starting it the first time it is needed
+     *
+     * @return assertion processing pool
+     */
+    static synchronized AssertionProcessingPool getInstance() {
+        if (shared == null) {
+            shared = new AssertionProcessingPool(Runtime.getRuntime().availableProcessors());
+        }
+        return shared;
+    }
+
+    /**
+     * Decrypt and validate every assertion in the response
+     *
+     * @param processor processor for the issuer
+     * @param response  response
+     * @param issuer    issuer
+     * @return outcome for every assertion
+     */
+    SAMLAssertionsValidationResult process(final SAML2AssertionConsumerProcessor processor, final Response response,
+                                           final String issuer) {
+        final List<Assertion> plainAssertions = response.getAssertions();
+        final List<EncryptedAssertion> encryptedAssertions = response.getEncryptedAssertions();
+        final Decrypter decrypter = processor.getDecrypter();
+        final List<Assertion> assertions = new ArrayList<Assertion>();
+        final List<SAMLAssertionValidationResult> results = new ArrayList<SAMLAssertionValidationResult>();
+
+        // A decrypter that puts what it decrypts into the document of the encrypted assertion can only do one at a time
+        final boolean parallel = (decrypter == null || decrypter.isRootInNewDocument())
+                && plainAssertions.size() + encryptedAssertions.size() > 1;
+        if (!parallel) {
+            for (Assertion assertion : plainAssertions) {
+                add(new OutcomeTask(processor, plain(assertion), issuer).call(), assertions, results);
+            }
+            for (EncryptedAssertion encryptedAssertion : encryptedAssertions) {
+                add(new OutcomeTask(processor, decryption(decrypter, encryptedAssertion), issuer).call(),
+                        assertions, results);
+            }
+            return new SAMLAssertionsValidationResult(assertions, results);
+        }
+
+        // Copy out what the workers will have before any of them starts, as only this thread may touch the response
+        final int local = plainAssertions.isEmpty() ? 1 : 0;
+        final List<Callable<Assertion>> detached = new ArrayList<Callable<Assertion>>();
+        for (int i = local; i < encryptedAssertions.size(); i++) {
+            detached.add(detachedDecryption(decrypter, encryptedAssertions.get(i)));
+        }
+        final List<Future<Outcome>> futures = new ArrayList<Future<Outcome>>(detached.size());
+        for (Callable<Assertion> assertionSource : detached) {
+            futures.add(executor.submit(new OutcomeTask(processor, assertionSource, issuer)));
+        }
+        for (Assertion assertion : plainAssertions) {
+            add(new OutcomeTask(processor, plain(assertion), issuer).call(), assertions, results);
+        }
+        if (local == 1) {
+            add(new OutcomeTask(processor, decryption(decrypter, encryptedAssertions.get(0)), issuer).call(),
+                    assertions, results);
+        }
+        for (Future<Outcome> future : futures) {
+            add(get(future), assertions, results);
+        }
+        return new SAMLAssertionsValidationResult(assertions, results);
+    }
+
+    private static Callable<Assertion> plain(final Assertion assertion) {
+        return new Callable<Assertion>() {
+            public Assertion call() {
+                return assertion;
+            }
+        };
+    }
+
+    private static Callable<Assertion> decryption(final Decrypter decrypter,
+                                                  final EncryptedAssertion encryptedAssertion) {
+        return new Callable<Assertion>() {
+            public Assertion call() throws Exception {
+                if (decrypter == null) {
+                    throw new RuntimeException("We have no private key to decrypt the assertion with");
+                }
+                return decrypter.decrypt(encryptedAssertion);
+            }
+        };
+    }
+
+    /**
+     * Copy the encrypted assertion into a document of its own, and decrypt the copy, so the decryption can run on
+     * another thread without touching the response's document.  A copy that can't be made counts against the
+     * assertion when decrypted.
+     *
+     * @param decrypter          decrypter, may be null
+     * @param encryptedAssertion encrypted assertion in the response's document
+     * @return decryption of a copy of the encrypted assertion
+     */
+    private static Callable<Assertion> detachedDecryption(final Decrypter decrypter,
+                                                         final EncryptedAssertion encryptedAssertion) {
+        try {
+            return decryption(decrypter, detach(encryptedAssertion));
+        } catch (final Exception anyE) {
+            log.error("Error copying encrypted assertion", anyE);
+            return new Callable<Assertion>() {
+                public Assertion call() throws Exception {
+                    throw anyE;
+                }
+            };
+        }
+    }
+
+    private static EncryptedAssertion detach(final EncryptedAssertion encryptedAssertion) throws Exception {
+        Element element = encryptedAssertion.getDOM();
+        if (element == null) {
+            element = Configuration.getMarshallerFactory().getMarshaller(encryptedAssertion)
+                    .marshall(encryptedAssertion);
+        }
+        final Document document = AbstractSAMLHandler.getParserPool(ParseProfile.STRICT).newDocument();
+        final Element copy = (Element) document.importNode(element, true);
+        document.appendChild(copy);
+        return (EncryptedAssertion) Configuration.getUnmarshallerFactory().getUnmarshaller(copy).unmarshall(copy);
+    }
+
+    private static void add(final Outcome outcome, final List<Assertion> assertions,
+                            final List<SAMLAssertionValidationResult> results) {
+        assertions.add(outcome.assertion);
+        results.add(outcome.result);
+    }
+
+    private static Outcome get(final Future<Outcome> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for an assertion to be processed", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error processing assertion", e.getCause());
+        }
+    }
+
+    /**
+     * Stop taking work, letting that already submitted finish
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private static final class Outcome {
+        private final Assertion assertion;
+        private final SAMLAssertionValidationResult result;
+
+        private Outcome(final Assertion assertion, final SAMLAssertionValidationResult result) {
+            this.assertion = assertion;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Gets an assertion, decrypting it if need be, and validates it.  Errors count against the assertion rather than
+     * the response, so one bad assertion doesn't lose the outcomes of the others.
+     */
+    private static final class OutcomeTask implements Callable<Outcome> {
+        private final SAML2AssertionConsumerProcessor processor;
+        private final Callable<Assertion> assertionSource;
+        private final String issuer;
+
+        private OutcomeTask(final SAML2AssertionConsumerProcessor processor, final Callable<Assertion> assertionSource,
+                            final String issuer) {
+            this.processor = processor;
+            this.assertionSource = assertionSource;
+            this.issuer = issuer;
+        }
+
+        public Outcome call() {
+            final Assertion assertion;
+            try {
+                assertion = assertionSource.call();
+            } catch (Exception anyE) {
+                log.error("Error decrypting assertion", anyE);
+                return new Outcome(null, new SAMLAssertionValidationResult(false, "Error decrypting assertion: " + anyE.getMessage()));
+            }
+            try {
+                return new Outcome(assertion, processor.validate(assertion, issuer));
+            } catch (Exception anyE) {
+                log.error("Error validating assertion", anyE);
+                return new Outcome(assertion, new SAMLAssertionValidationResult(false, "Error validating assertion: " + anyE.getMessage()));
+            }
+        }
+    }
+}
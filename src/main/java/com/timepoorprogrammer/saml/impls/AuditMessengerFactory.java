@@ -7,7 +7,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Constructor;
-import java.util.List;
 
 
 /**
@@ -52,21 +51,15 @@ public class AuditMessengerFactory extends FactoryBase {
             return new AuditMessengerImpl();
         } else {
             log.debug("Looking for bespoke audit messenger implementation");
-            final List<String> details = parseClassName(AuditMessenger.class.getName());
-            String fullPath = null;
-            try {               
-                fullPath = buildPathToBespokeImplementation(bespokeCode, details.get(0), details.get(1), BESPOKE_IMPL_SUB_PACKAGE_LOCATION);
-                final Class implementation = Class.forName(fullPath);
+            try {
                 final Class[] argSignature = new Class[]{};
-                final Constructor constructor = implementation.getConstructor(argSignature);
+                final Constructor constructor = findBespokeConstructor(bespokeCode, AuditMessenger.class, BESPOKE_IMPL_SUB_PACKAGE_LOCATION, argSignature);
+                if (constructor == null) {
+                    // No bespoke implementation so use the default
+                    return new AuditMessengerImpl();
+                }
                 return (AuditMessenger) constructor.newInstance();
             }
-            catch (ClassNotFoundException recoverableE) {
-                final String debugMessage = "Class not found at " + fullPath + ", issue is " +
-                        recoverableE.getClass().getName() + ", so returning the default implementation.";
-                log.debug(debugMessage);
-                return new AuditMessengerImpl();
-            }
             catch (Throwable anyE) {
                 final String errorMessage = "Error obtaining implementation";
                 log.error(errorMessage, anyE);
@@ -0,0 +1,100 @@
+package com.timepoorprogrammer.saml.impls;
+
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.saml2.metadata.provider.ObservableMetadataProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Cache of assertion consumer processors by issuer, used by the SAML2AssertionConsumer and SAML11AssertionConsumer
+ * so a processor is built once per issuer rather than once per request.
+ * <p/>
+ * Building a processor means metadata lookups, reflective factory calls for the audit messenger and validators, and
+ * for SAML2 loading the keystore to set up a decrypter, which is most of the cost of handling a login.  A built
+ * processor is only read from afterwards, so the one instance can serve every request from the issuer at once.
+ * <p/>
+ * The first request from an issuer puts a pending build in the cache before running it, so any requests from the same
+ * issuer arriving while it runs wait for that build rather than starting their own.  If the build fails it is taken
+ * back out so the next request tries again.  The whole cache is emptied if the metadata provider tells us it has
+ * reloaded, and can be emptied on demand if the configuration or keystore a consumer was set up with change.
+ *
+ * @param <T> processor type
+ * @author Jim Ball
+ */
+abstract class ConsumerProcessorCache<T> {
+    private static final Logger log = LoggerFactory.getLogger(ConsumerProcessorCache.class);
+
+    private final ConcurrentMap<String, Future<T>> processors = new ConcurrentHashMap<String, Future<T>>();
+
+    /**
+     * Construct a processor cache, listening for metadata reloads if the metadata provider can tell us about them
+     *
+     * @param mdProvider metadata provider the processors are built from
+     */
+    ConsumerProcessorCache(final MetadataProvider mdProvider) {
+        if (mdProvider instanceof ObservableMetadataProvider) {
+            ((ObservableMetadataProvider) mdProvider).getObservers().add(new ObservableMetadataProvider.Observer() {
+                public void onEvent(final MetadataProvider provider) {
+                    log.info("Metadata has changed, discarding cached assertion consumer processors");
+                    clear();
+                }
+            });
+        }
+    }
+
+    /**
+     * Build a new processor for the issuer
+     *
+     * @param issuer issuer
+     * @return processor
+     */
+    protected abstract T build(final String issuer);
+
+    /**
+     * Get the processor for the issuer, building it if need be
+     *
+     * @param issuer issuer
+     * @return processor
+     */
+    T get(final String issuer) {
+        Future<T> processor = processors.get(issuer);
+        if (processor == null) {
+            final FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+                public T call() {
+                    return build(issuer);
+                }
+            });
+            processor = processors.putIfAbsent(issuer, task);
+            if (processor == null) {
+                processor = task;
+                task.run();
+            }
+        }
+        try {
+            return processor.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for the assertion consumer processor for " + issuer, e);
+        } catch (ExecutionException e) {
+            processors.remove(issuer, processor);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Error building the assertion consumer processor for " + issuer, e.getCause());
+        }
+    }
+
+    /**
+     * Discard every cached processor, so each issuer's next request builds a new one
+     */
+    void clear() {
+        processors.clear();
+    }
+}
@@ -8,7 +8,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Constructor;
-import java.util.List;
 
 /**
  * Metadata handler factory
@@ -60,21 +59,15 @@ public class MetaDataHandlerFactory extends FactoryBase {
             return new MetaDataHandlerImpl();
         } else {
             log.debug("Looking for bespoke metadata handling implementation");
-            final List<String> details = parseClassName(MetaDataHandler.class.getName());
-            String fullPath = null;
             try {
-                fullPath = buildPathToBespokeImplementation(bespokeCode, details.get(0), details.get(1), BESPOKE_IMPL_SUB_PACKAGE_LOCATION);
-                final Class implementation = Class.forName(fullPath);
                 final Class[] argSignature = new Class[]{};
-                final Constructor constructor = implementation.getConstructor(argSignature);
+                final Constructor constructor = findBespokeConstructor(bespokeCode, MetaDataHandler.class, BESPOKE_IMPL_SUB_PACKAGE_LOCATION, argSignature);
+                if (constructor == null) {
+                    // No bespoke implementation so use the default
+                    return new MetaDataHandlerImpl();
+                }
                 return (MetaDataHandler) constructor.newInstance();
             }
-            catch (ClassNotFoundException recoverableE) {
-                final String debugMessage = "Class not found at " + fullPath + ", issue is " +
-                        recoverableE.getClass().getName() + ", so returning the default implementation.";
-                log.debug(debugMessage);
-                return new MetaDataHandlerImpl();
-            }
             catch (Throwable anyE) {
                 final String errorMessage = "Error obtaining implementation";
                 log.error(errorMessage, anyE);
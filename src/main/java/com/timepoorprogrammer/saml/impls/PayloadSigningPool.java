@@ -0,0 +1,109 @@
+package com.timepoorprogrammer.saml.impls;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Worker pool the SAML2AssertionProducer and SAML11AssertionProducer use to build, marshal and sign payloads off the
+ * caller's thread, for jobs that want thousands of payloads at once.
+ * <p/>
+ * There is one pool per JVM with a worker per processor, as signing is CPU bound and more workers than processors
+ * would only take turns.  Each worker takes a payload from start to finish, so with every worker busy one payload is
+ * being marshalled while another is being signed, without handing half built responses between threads.
+ * <p/>
+ * Only so many payloads can be waiting for a worker at once.  Submitting more than that blocks the caller until a
+ * worker finishes one, so a job feeding in a stream of users can't queue up more than we can sign and run out of
+ * memory doing it.
+ *
+ * @author Jim Ball
+ */
+final class PayloadSigningPool {
+    /**
+     * Number of payloads that can be waiting for each worker before callers are held back
+     */
+    private static final int PENDING_PER_WORKER = 4;
+
+    private static PayloadSigningPool shared;
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore pending;
+
+    /**
+     * Construct a payload signing pool
+     *
+     * @param workers    number of workers
+     * @param maxPending most payloads that can be submitted and not yet finished before callers are held back
+     */
+    PayloadSigningPool(final int workers, final int maxPending) {
+        if (workers < 1 || maxPending < workers) {
+            throw new IllegalArgumentException("Need at least one worker and room for a payload per worker");
+        }
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "saml-payload-signer-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.pending = new Semaphore(maxPending);
+    }
+
+    /**
+     * Get the pool shared by every producer, starting it the first time it is needed
+     *
+     * @return payload signing pool
+     */
+    static synchronized PayloadSigningPool getInstance() {
+        if (shared == null) {
+            final int workers = Runtime.getRuntime().availableProcessors();
+            shared = new PayloadSigningPool(workers, workers * PENDING_PER_WORKER);
+        }
+        return shared;
+    }
+
+    /**
+     * Hand a payload to a worker, waiting for room if too many are already waiting
+     *
+     * @param work payload to produce
+     * @param <T>  payload type
+     * @return future of the payload
+     */
+    <T> Future<T> submit(final Callable<T> work) {
+        try {
+            pending.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting to submit a SAML payload", e);
+        }
+        try {
+            return executor.submit(new Callable<T>() {
+                public T call() throws Exception {
+                    try {
+                        return work.call();
+                    } finally {
+                        pending.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop taking payloads, letting those already submitted finish
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,50 @@
+package com.timepoorprogrammer.saml.impls;
+
+/**
+ * Replay store interface.  A replay store remembers the identifiers of the SAML responses a service provider has
+ * already processed, so a consumer processor can reject a response that is presented more than once.
+ * <p/>
+ * Implementations must be safe to call from many request threads at once, and checking for and recording an
+ * identifier must happen as one atomic step, otherwise two copies of the same response arriving together could both
+ * be let through.  If the store is shared between several consumer processes (say behind a load balancer) then the
+ * check must be atomic across all of them.
+ * <p/>
+ * Use the ReplayStoreFactory to pick up the right store for a service provider.
+ *
+ * @author Jim Ball
+ */
+public interface ReplayStore {
+    /**
+     * Record the identifier for the standard retention period if it isn't already held.
+     *
+     * @param id identifier
+     * @return true if the identifier is new, false if it is already held and this is a replay
+     */
+    public boolean add(String id);
+
+    /**
+     * Record the identifier until the given expiry time if it isn't already held.  A store that can't hold an
+     * identifier for as long as asked must say so in its documentation and log it.
+     *
+     * @param id        identifier
+     * @param expiresAt time in milliseconds after which the identifier can be forgotten
+     * @return true if the identifier is new, false if it is already held and this is a replay
+     */
+    public boolean add(String id, long expiresAt);
+
+    /**
+     * Is the identifier already held?  This records nothing, so is only good for turning away a response early, and
+     * a response that gets past it must still be checked with add.
+     *
+     * @param id identifier
+     * @return true if the identifier is held, false otherwise
+     */
+    public boolean contains(String id);
+
+    /**
+     * Get the standard retention period
+     *
+     * @return the number of minutes an identifier is held for by default
+     */
+    public int getRetentionMinutes();
+}
@@ -0,0 +1,186 @@
+package com.timepoorprogrammer.saml.impls;
+
+import com.timepoorprogrammer.saml.configuration.ConfigurationProperties;
+import com.timepoorprogrammer.saml.core.ReplayCache;
+import com.timepoorprogrammer.saml.impls.standard.consumer.replay.FilteredReplayStore;
+import com.timepoorprogrammer.saml.impls.standard.consumer.replay.InMemoryReplayStore;
+import com.timepoorprogrammer.saml.impls.standard.consumer.replay.JournalledReplayStore;
+import com.timepoorprogrammer.saml.impls.standard.consumer.replay.SharedFileReplayStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Replay store factory.  There is one replay store per service provider, so every consumer processor for a service
+ * provider checks inbound responses against the same set of identifiers, however the processor was built.
+ * <p/>
+ * By default a service provider gets an InMemoryReplayStore.  If several consumer nodes serve the same service
+ * provider, point them all at the same file in saml.properties and they will share a SharedFileReplayStore instead.
+ * A single node that needs to remember identifiers across restarts can be given a journal directory of its own, and
+ * will get a JournalledReplayStore:
+ * <p/>
+ * <ul>
+ * <li>saml.&lt;serviceCode&gt;.replayStoreFileName = path to the shared replay store file</li>
+ * <li>saml.&lt;serviceCode&gt;.replayStoreSlots = optional number of slots in the shared file</li>
+ * <li>saml.&lt;serviceCode&gt;.replayJournalDirectory = path to the directory for the replay journal</li>
+ * <li>saml.&lt;serviceCode&gt;.replayJournalSegmentRecords = optional number of records in each journal segment</li>
+ * <li>saml.&lt;serviceCode&gt;.replayRetentionMinutes = optional number of minutes to remember response identifiers for</li>
+ * <li>saml.&lt;serviceCode&gt;.replayFilterBits = optional size of a FilteredReplayStore Bloom filter to put in front of
+ * an in-memory or journalled store, ignored for a shared file store</li>
+ * </ul>
+ *
+ * @author Jim Ball
+ */
+public class ReplayStoreFactory {
+    private static final Logger log = LoggerFactory.getLogger(ReplayStoreFactory.class);
+
+    /**
+     * Replay stores by service provider
+     */
+    private static final ConcurrentMap<String, ReplayStore> STORES = new ConcurrentHashMap<String, ReplayStore>();
+
+    /**
+     * Default in-memory replay stores by service provider, for processors built before or without a configured store
+     */
+    private static final ConcurrentMap<String, ReplayStore> DEFAULT_STORES = new ConcurrentHashMap<String, ReplayStore>();
+
+    /**
+     * File backed replay stores by canonical file or directory path, as a JVM should only map and lock a given file
+     * the once
+     */
+    private static final ConcurrentMap<String, ReplayStore> SHARED_STORES = new ConcurrentHashMap<String, ReplayStore>();
+
+    /**
+     * Get the replay store for the service provider, being the one configured for it if an assertion consumer has
+     * already set it up, and otherwise an in-memory one shared by everyone else asking for the same service provider.
+     * <p/>
+     * The in-memory store is kept apart from the configured stores, so asking for it never stops the service provider
+     * being given its configured store later on.  Processors handed the in-memory store before then keep it, which is
+     * why the assertion consumers give their processors the configured store themselves.
+     *
+     * @param spId service provider SAML entity identifier
+     * @return replay store
+     */
+    public static ReplayStore getInstance(final String spId) {
+        if (spId == null) {
+            throw new IllegalArgumentException("Cannot provide a replay store without service provider details");
+        }
+        ReplayStore store = STORES.get(spId);
+        if (store == null) {
+            store = DEFAULT_STORES.get(spId);
+            if (store == null) {
+                final ReplayStore created = new InMemoryReplayStore();
+                store = DEFAULT_STORES.putIfAbsent(spId, created);
+                if (store == null) {
+                    store = created;
+                }
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Get the replay store for the service provider as configured in the SAML configuration properties.
+     *
+     * @param properties  SAML configuration properties
+     * @param serviceCode service code, which is also the service provider identifier the consumer processors use
+     * @return replay store
+     */
+    public static ReplayStore getInstance(final ConfigurationProperties properties, final String serviceCode) {
+        if (properties == null || serviceCode == null) {
+            throw new IllegalArgumentException("Cannot provide a replay store without configuration and service code");
+        }
+        ReplayStore store = STORES.get(serviceCode);
+        if (store == null) {
+            final String fileName = properties.getParameter("saml", serviceCode, "replayStoreFileName");
+            final String journalDirectory = properties.getParameter("saml", serviceCode, "replayJournalDirectory");
+            final int retention = properties.getIntParameter("saml", serviceCode, "replayRetentionMinutes", ReplayCache.DEFAULT_RETENTION_MINUTES);
+            if (fileName != null) {
+                final int slots = properties.getIntParameter("saml", serviceCode, "replayStoreSlots", SharedFileReplayStore.DEFAULT_SLOTS);
+                store = getSharedStore(fileName, slots, retention);
+            } else if (journalDirectory != null) {
+                final int segmentRecords = properties.getIntParameter("saml", serviceCode, "replayJournalSegmentRecords", JournalledReplayStore.DEFAULT_SEGMENT_RECORDS);
+                store = getJournalledStore(journalDirectory, segmentRecords, retention);
+            } else {
+                store = new InMemoryReplayStore(retention);
+            }
+            final int filterBits = properties.getIntParameter("saml", serviceCode, "replayFilterBits", 0);
+            if (filterBits > 0) {
+                if (fileName != null) {
+                    log.warn("Ignoring replayFilterBits for {} as a filter can't see what other processes record in a shared replay store", serviceCode);
+                } else {
+                    store = new FilteredReplayStore(store, filterBits);
+                }
+            }
+            store = register(serviceCode, store);
+        }
+        return store;
+    }
+
+    /**
+     * Get the shared store for the given file, opening it if this JVM hasn't already.
+     *
+     * @param fileName  path to the shared file
+     * @param slots     slots per table
+     * @param retention retention in minutes
+     * @return shared replay store
+     */
+    private static ReplayStore getSharedStore(final String fileName, final int slots, final int retention) {
+        final String canonicalPath = getCanonicalPath(fileName);
+        synchronized (SHARED_STORES) {
+            ReplayStore store = SHARED_STORES.get(canonicalPath);
+            if (store == null) {
+                store = new SharedFileReplayStore(canonicalPath, slots, retention);
+                SHARED_STORES.put(canonicalPath, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Get the journalled store for the given directory, opening it if this JVM hasn't already.
+     *
+     * @param directory      path to the journal directory
+     * @param segmentRecords records per journal segment
+     * @param retention      retention in minutes
+     * @return journalled replay store
+     */
+    private static ReplayStore getJournalledStore(final String directory, final int segmentRecords, final int retention) {
+        final String canonicalPath = getCanonicalPath(directory);
+        synchronized (SHARED_STORES) {
+            ReplayStore store = SHARED_STORES.get(canonicalPath);
+            if (store == null) {
+                store = new JournalledReplayStore(canonicalPath, segmentRecords, retention);
+                SHARED_STORES.put(canonicalPath, store);
+            }
+            return store;
+        }
+    }
+
+    private static String getCanonicalPath(final String fileName) {
+        try {
+            return new File(fileName).getCanonicalPath();
+        } catch (Exception anyE) {
+            throw new RuntimeException("Cannot resolve replay store path " + fileName, anyE);
+        }
+    }
+
+    /**
+     * Register a store for the service provider unless another thread got there first
+     *
+     * @param spId  service provider
+     * @param store store
+     * @return the store that is registered for the service provider
+     */
+    private static ReplayStore register(final String spId, final ReplayStore store) {
+        final ReplayStore existing = STORES.putIfAbsent(spId, store);
+        if (existing != null) {
+            return existing;
+        }
+        log.debug("Registered replay store {} for service provider {}", store.getClass().getName(), spId);
+        return store;
+    }
+}
@@ -0,0 +1,79 @@
+package com.timepoorprogrammer.saml.impls;
+
+import com.timepoorprogrammer.saml.common.AuditMessages;
+import com.timepoorprogrammer.saml.core.ResponsePreScan;
+import com.timepoorprogrammer.saml.core.SAMLResponseValidationResult;
+import org.joda.time.DateTime;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks the SAML2AssertionConsumer and SAML11AssertionConsumer make on a ResponsePreScan, to turn away a response
+ * that can't be valid before its DOM is built.
+ * <p/>
+ * A response is turned away if its issuer isn't in our metadata, if we already hold its identifier, if it says it is
+ * for somewhere other than where it arrived, or if it was issued longer ago than we remember response identifiers for,
+ * meaning we could no longer tell a replay from a new response, or is from the future.  Nothing is recorded, so a
+ * response that passes still gets the full checks, replay included.
+ *
+ * @author Jim Ball
+ */
+final class ResponsePreScanValidator {
+    private static final Logger log = LoggerFactory.getLogger(ResponsePreScanValidator.class);
+
+    private ResponsePreScanValidator() {
+    }
+
+    /**
+     * Check the pre-scan of a response
+     *
+     * @param preScan          pre-scan of the response
+     * @param saml2            whether the consumer takes SAML2 rather than SAML1.1
+     * @param destination      URL the response was posted to, or null not to check the destination
+     * @param mdProvider       metadata the issuer must be in
+     * @param replayStore      replay store of the consumer
+     * @param clockSkewSeconds clock skew allowed between the issuer and ourselves
+     * @return validation result
+     */
+    static SAMLResponseValidationResult validate(final ResponsePreScan preScan, final boolean saml2,
+                                                 final String destination, final MetadataProvider mdProvider,
+                                                 final ReplayStore replayStore, final int clockSkewSeconds) {
+        if (preScan == null || preScan.isSAML2() != saml2 || preScan.getResponseId() == null || preScan.getIssuer() == null) {
+            return invalid(AuditMessages.ConsumerCode.CONSUMER_RESPONSE_CONTENT_ERROR.getDetailsPattern());
+        }
+        try {
+            if (mdProvider.getEntityDescriptor(preScan.getIssuer()) == null) {
+                return invalid(String.format(AuditMessages.ConsumerCode.CONSUMER_RESPONSE_ISSUER_ERROR.getDetailsPattern(),
+                        preScan.getIssuer()));
+            }
+        } catch (Exception anyE) {
+            log.error("Error looking up issuer " + preScan.getIssuer() + " in metadata", anyE);
+            return invalid(String.format(AuditMessages.ConsumerCode.CONSUMER_RESPONSE_ISSUER_ERROR.getDetailsPattern(),
+                    preScan.getIssuer()));
+        }
+        if (replayStore.contains(preScan.getResponseId())) {
+            return invalid(String.format(AuditMessages.ConsumerCode.CONSUMER_RESPONSE_REPLAY_ERROR.getDetailsPattern(),
+                    preScan.getResponseId(), replayStore.getRetentionMinutes()));
+        }
+        if (destination != null && preScan.getDestination() != null && !destination.equals(preScan.getDestination())) {
+            return invalid(String.format(AuditMessages.ConsumerCode.CONSUMER_RESPONSE_DESTINATION_ERROR.getDetailsPattern(),
+                    preScan.getDestination(), destination));
+        }
+        final DateTime issueInstant = preScan.getIssueInstant();
+        if (issueInstant == null) {
+            return invalid(AuditMessages.ConsumerCode.CONSUMER_RESPONSE_CONTENT_ERROR.getDetailsPattern());
+        }
+        final DateTime now = new DateTime();
+        if (issueInstant.isAfter(now.plusSeconds(clockSkewSeconds))
+                || issueInstant.isBefore(now.minusMinutes(replayStore.getRetentionMinutes()).minusSeconds(clockSkewSeconds))) {
+            return invalid(String.format(AuditMessages.ConsumerCode.CONSUMER_RESPONSE_INSTANT_ERROR.getDetailsPattern(),
+                    issueInstant));
+        }
+        return new SAMLResponseValidationResult(true, null);
+    }
+
+    private static SAMLResponseValidationResult invalid(final String errorDetails) {
+        return new SAMLResponseValidationResult(false, errorDetails);
+    }
+}
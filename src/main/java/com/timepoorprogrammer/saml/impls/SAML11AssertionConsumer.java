@@ -3,7 +3,13 @@ package com.timepoorprogrammer.saml.impls;
 import com.timepoorprogrammer.saml.configuration.ConfigurationProperties;
 import com.timepoorprogrammer.saml.configuration.ConsumerRedirectionConfiguration;
 import com.timepoorprogrammer.saml.configuration.EntityTranslation;
+import com.timepoorprogrammer.saml.core.AbstractSAMLHandler;
 import com.timepoorprogrammer.saml.core.InboundSAML11Message;
+import com.timepoorprogrammer.saml.core.ParseProfile;
+import com.timepoorprogrammer.saml.core.PayloadDigestCache;
+import com.timepoorprogrammer.saml.core.ReplayWindow;
+import com.timepoorprogrammer.saml.core.ResponsePreScan;
+import com.timepoorprogrammer.saml.core.SAMLResponseValidationResult;
 import com.timepoorprogrammer.saml.impls.standard.consumer.processor.SAML11AssertionConsumerProcessorImpl;
 import com.timepoorprogrammer.saml.configuration.ConsumerRedirectionConfiguration;
 import com.timepoorprogrammer.saml.configuration.EntityTranslation;
@@ -11,6 +17,7 @@ import com.timepoorprogrammer.saml.core.InboundSAML11Message;
 import org.opensaml.common.binding.SAMLMessageContext;
 import org.opensaml.common.xml.SAMLConstants;
 import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.xml.parse.BasicParserPool;
 
 import java.io.InputStream;
 import java.net.URL;
@@ -31,6 +38,11 @@ public class SAML11AssertionConsumer {
     private MetaDataHandler mdHandler;
     private MetadataProvider mdProvider;
     private String serviceCode;
+    private ReplayStore replayStore;
+    private int clockSkewSeconds;
+    private PayloadDigestCache payloadDigestCache;
+    private ParseProfile parseProfile;
+    private ConsumerProcessorCache<SAML11AssertionConsumerProcessor> processors;
 
     /**
      * Setup an assertion consumer from file paths
@@ -53,8 +65,13 @@ public class SAML11AssertionConsumer {
         configurationProperties = new ConfigurationProperties(configurationPropertiesPath);
         this.serviceCode = serviceCode;
         entityTranslation = new EntityTranslation(entityTranslationPropertiesPath);
+        replayStore = ReplayStoreFactory.getInstance(configurationProperties, this.serviceCode);
+        clockSkewSeconds = configurationProperties.getIntParameter("saml", this.serviceCode, "clockSkewSeconds", ReplayWindow.DEFAULT_CLOCK_SKEW_SECONDS);
+        payloadDigestCache = new PayloadDigestCache(configurationProperties.getIntParameter("saml", this.serviceCode, "duplicatePayloadSeconds", PayloadDigestCache.DEFAULT_RETENTION_SECONDS));
+        parseProfile = ParseProfile.fromName(configurationProperties.getParameter("saml", this.serviceCode, "parseProfile"));
         mdHandler = MetaDataHandlerFactory.getInstance(null);
         mdProvider = mdHandler.getMetadata(metaDataPath);
+        processors = newProcessorCache();
     }
 
     /**
@@ -77,8 +94,13 @@ public class SAML11AssertionConsumer {
         configurationProperties = new ConfigurationProperties(configurationPropertiesURL);
         this.serviceCode = serviceCode;
         entityTranslation = new EntityTranslation(entityTranslationPropertiesURL);
+        replayStore = ReplayStoreFactory.getInstance(configurationProperties, this.serviceCode);
+        clockSkewSeconds = configurationProperties.getIntParameter("saml", this.serviceCode, "clockSkewSeconds", ReplayWindow.DEFAULT_CLOCK_SKEW_SECONDS);
+        payloadDigestCache = new PayloadDigestCache(configurationProperties.getIntParameter("saml", this.serviceCode, "duplicatePayloadSeconds", PayloadDigestCache.DEFAULT_RETENTION_SECONDS));
+        parseProfile = ParseProfile.fromName(configurationProperties.getParameter("saml", this.serviceCode, "parseProfile"));
         mdHandler = MetaDataHandlerFactory.getInstance(null);
         mdProvider = mdHandler.getMetadata(metaDataURL);
+        processors = newProcessorCache();
     }
 
     /**
@@ -102,8 +124,13 @@ public class SAML11AssertionConsumer {
         configurationProperties = new ConfigurationProperties(configurationPropertiesStream);
         this.serviceCode = serviceCode;
         entityTranslation = new EntityTranslation(entityTranslationPropertiesStream);
+        replayStore = ReplayStoreFactory.getInstance(configurationProperties, this.serviceCode);
+        clockSkewSeconds = configurationProperties.getIntParameter("saml", this.serviceCode, "clockSkewSeconds", ReplayWindow.DEFAULT_CLOCK_SKEW_SECONDS);
+        payloadDigestCache = new PayloadDigestCache(configurationProperties.getIntParameter("saml", this.serviceCode, "duplicatePayloadSeconds", PayloadDigestCache.DEFAULT_RETENTION_SECONDS));
+        parseProfile = ParseProfile.fromName(configurationProperties.getParameter("saml", this.serviceCode, "parseProfile"));
         mdHandler = MetaDataHandlerFactory.getInstance(null);
         mdProvider = mdHandler.getMetadata(metaDataStream);
+        processors = newProcessorCache();
     }
 
     /**
@@ -126,8 +153,73 @@ public class SAML11AssertionConsumer {
         configurationProperties = new ConfigurationProperties(configProperties);
         this.serviceCode = serviceCode;
         entityTranslation = new EntityTranslation(entityTranslationProperties);
+        replayStore = ReplayStoreFactory.getInstance(configurationProperties, this.serviceCode);
+        clockSkewSeconds = configurationProperties.getIntParameter("saml", this.serviceCode, "clockSkewSeconds", ReplayWindow.DEFAULT_CLOCK_SKEW_SECONDS);
+        payloadDigestCache = new PayloadDigestCache(configurationProperties.getIntParameter("saml", this.serviceCode, "duplicatePayloadSeconds", PayloadDigestCache.DEFAULT_RETENTION_SECONDS));
+        parseProfile = ParseProfile.fromName(configurationProperties.getParameter("saml", this.serviceCode, "parseProfile"));
         mdHandler = MetaDataHandlerFactory.getInstance(null);
         mdProvider = mdHandler.getMetadata(metaDataStream);
+        processors = newProcessorCache();
+    }
+
+    /**
+     * Is the raw SAMLResponse payload an exact copy of one we've been sent in the last couple of minutes?  Call this
+     * with the POSTed SAMLResponse parameter before decoding the message, and turn the request away if it is, as a
+     * browser double submit or a gateway retry is otherwise only caught as a replay after the full decode, parse and
+     * signature check.  Anything else goes on to be decoded and checked as normal.
+     *
+     * @param samlResponse raw value of the SAMLResponse parameter
+     * @return true if the payload is a duplicate, false otherwise
+     */
+    public boolean isDuplicatePayload(final String samlResponse) {
+        return payloadDigestCache.isDuplicate(samlResponse);
+    }
+
+    /**
+     * Get the parse profile set up for this consumer, which says how strictly incoming documents are checked as they
+     * are parsed.  It has to be known before the message is decoded, and so before we know who issued it, which is why
+     * it goes with the consumer's service code rather than the issuer.
+     *
+     * @return parse profile
+     */
+    public ParseProfile getParseProfile() {
+        return parseProfile;
+    }
+
+    /**
+     * Get the parser pool for this consumer's parse profile, to give to the message decoder, e.g.
+     * new HTTPPostDecoder(consumer.getParserPool())
+     *
+     * @return parser pool
+     */
+    public BasicParserPool getParserPool() {
+        return AbstractSAMLHandler.getParserPool(parseProfile);
+    }
+
+    /**
+     * Pre-scan the raw value of the SAMLResponse parameter, reading just enough of it to check with validatePreScan
+     * before it is decoded.
+     *
+     * @param samlResponse raw value of the SAMLResponse parameter
+     * @return pre-scan, or null if the payload doesn't start like a SAML response
+     */
+    public ResponsePreScan preScan(final String samlResponse) {
+        return ResponsePreScan.scan(samlResponse);
+    }
+
+    /**
+     * Turn away a response that can't be valid before paying to decode it, that being one not in SAML1.1, one whose
+     * issuer isn't in our metadata, one whose identifier we already hold, one whose Recipient isn't the URL it was
+     * posted to, or one issued longer ago than we hold response identifiers for.  A response that passes must still be
+     * decoded and go through all the usual checks, and its message details got with the pre-scan so we know the
+     * response decoded is the one that was pre-scanned.
+     *
+     * @param preScan     pre-scan of the payload
+     * @param destination URL the payload was posted to, or null not to check it
+     * @return validation result
+     */
+    public SAMLResponseValidationResult validatePreScan(final ResponsePreScan preScan, final String destination) {
+        return ResponsePreScanValidator.validate(preScan, false, destination, mdProvider, replayStore, clockSkewSeconds);
     }
 
     /**
@@ -141,7 +233,19 @@ public class SAML11AssertionConsumer {
     }
 
     /**
-     * Given the input issuer, return the right processor details
+     * Get inbound SAML11 message details from the context provided, for a payload that was pre-scanned
+     *
+     * @param context context from which the inbound SAML11 message can be obtained
+     * @param preScan pre-scan of the payload
+     * @return Inbound SAML11 message
+     */
+    public InboundSAML11Message getMessageDetails(final SAMLMessageContext context, final ResponsePreScan preScan) {
+        return new InboundSAML11Message(context, preScan);
+    }
+
+    /**
+     * Given the input issuer, return the appropriate processor details.  Processors are built once per issuer and then
+     * shared between requests, so don't change the one you are given.
      *
      * @param issuer issuer details
      * @return vanilla SAML11 processor
@@ -150,9 +254,40 @@ public class SAML11AssertionConsumer {
         if (issuer == null) {
             throw new IllegalArgumentException("Cannot provide a processor without issuer details");
         }
+        return processors.get(issuer);
+    }
+
+    /**
+     * Discard the processors built so far, so they are built again on next use.  The processors are rebuilt for you
+     * when the metadata reloads, so this is for when the configuration or keystore the processors depend on changes.
+     */
+    public void invalidateProcessors() {
+        processors.clear();
+    }
+
+    /**
+     * Build a new processor for the issuer
+     *
+     * @param issuer issuer details
+     * @return vanilla SAML11 processor
+     */
+    private SAML11AssertionConsumerProcessor buildProcessor(final String issuer) {
         final String customerCode = entityTranslation.lookupInternalCodeUsingEntityIdentifier(issuer);
-        return new SAML11AssertionConsumerProcessorImpl(mdProvider, issuer, customerCode,
-                SAMLConstants.SAML11P_NS, serviceCode, mdHandler);
+        final SAML11AssertionConsumerProcessorImpl processor = new SAML11AssertionConsumerProcessorImpl(mdProvider, issuer,
+                customerCode, SAMLConstants.SAML11P_NS, serviceCode, mdHandler);
+        // Check responses against the replay store configured for our service
+        processor.setReplayStore(replayStore);
+        processor.setClockSkewSeconds(clockSkewSeconds);
+        return processor;
+    }
+
+    private ConsumerProcessorCache<SAML11AssertionConsumerProcessor> newProcessorCache() {
+        return new ConsumerProcessorCache<SAML11AssertionConsumerProcessor>(mdProvider) {
+            @Override
+            protected SAML11AssertionConsumerProcessor build(final String issuer) {
+                return buildProcessor(issuer);
+            }
+        };
     }
 
     /**
@@ -7,7 +7,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Constructor;
-import java.util.List;
 
 /**
  * SAML1.1 Assertion consumer processor factory.  As a SAML consumer, we may need to apply a bespoke processor for SAML
@@ -77,24 +76,19 @@ public class SAML11AssertionConsumerProcessorFactory extends FactoryBase {
                                                                final String spId,
                                                                final MetaDataHandler mdHandler) {
         if (idpId != null && customerCode != null) {
-            final List<String> details = parseClassName(SAML11AssertionConsumerProcessor.class.getName());
-            String fullPath = null;
             try {
                 // If a customer needs a bespoke assertion consumer, then we would need to create a
                 // customer specific directory holding a sub package consumer.processor with a
                 // bespoke implementation within it that matches a Northgate customer code.
-                fullPath = buildPathToBespokeImplementation(customerCode, details.get(0), details.get(1), BESPOKE_IMPL_SUB_PACKAGE_LOCATION);
-                final Class implementation = Class.forName(fullPath);
                 final Class[] argSignature = new Class[]{String.class, String.class, String.class, String.class, String.class, MetaDataHandler.class};
-                final Constructor constructor = implementation.getConstructor(argSignature);
+                final Constructor constructor = findBespokeConstructor(customerCode, SAML11AssertionConsumerProcessor.class, BESPOKE_IMPL_SUB_PACKAGE_LOCATION, argSignature);
+                if (constructor == null) {
+                    // No bespoke implementation so use the default
+                    return new SAML11AssertionConsumerProcessorImpl(metaDataFilePath, idpId, customerCode,
+                            idpProtocol, spId, mdHandler);
+                }
                 return (SAML11AssertionConsumerProcessor) constructor.newInstance(metaDataFilePath, idpId, customerCode, idpProtocol, spId, mdHandler);
             }
-            catch (ClassNotFoundException recoverableE) {
-                final String debugMessage = "Class not found at " + fullPath + ", issue is " +
-                        recoverableE.getClass().getName() + ", so returning the default implementation.";
-                log.debug(debugMessage);
-                return new SAML11AssertionConsumerProcessorImpl(metaDataFilePath, idpId, customerCode, idpProtocol, spId, mdHandler);
-            }
             catch (Throwable anyE) {
                 final String errorMessage = "Error obtaining implementation";
                 log.error(errorMessage, anyE);
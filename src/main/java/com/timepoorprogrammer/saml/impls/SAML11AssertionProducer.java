@@ -24,8 +24,13 @@ import org.w3c.dom.Element;
 
 import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 /**
  * Simplified encapsulation of a SAML1.1 assertion producer for use by any of our applications that will provide
@@ -297,6 +302,40 @@ public class SAML11AssertionProducer {
         return Base64.encodeBytes(samlResponseString.getBytes());
     }
 
+    /**
+     * Submit a SAML response payload to be built, encrypted and signed by a worker rather than on this thread, for
+     * jobs that need payloads for lots of users at once.  If too many payloads are already waiting for a worker this
+     * blocks until there is room, so a job can feed in users as fast as it likes without getting ahead of the signing.
+     *
+     * @param userIdentifier user identifier
+     * @param attributes     attributes
+     * @return future of the encoded payload
+     */
+    public Future<String> submitSAMLResponsePayload(final String userIdentifier, final Map<String, String> attributes) {
+        return PayloadSigningPool.getInstance().submit(new Callable<String>() {
+            public String call() {
+                return getSAMLResponsePayload(userIdentifier, attributes);
+            }
+        });
+    }
+
+    /**
+     * Submit SAML response payloads for a batch of users, see submitSAMLResponsePayload.
+     *
+     * @param userIdentifiers user identifiers
+     * @return futures of the encoded payloads, in the same order as the user identifiers
+     */
+    public List<Future<String>> submitSAMLResponsePayloads(final Collection<String> userIdentifiers) {
+        if (userIdentifiers == null) {
+            throw new IllegalArgumentException("Missing user identifiers");
+        }
+        final List<Future<String>> payloads = new ArrayList<Future<String>>(userIdentifiers.size());
+        for (String userIdentifier : userIdentifiers) {
+            payloads.add(submitSAMLResponsePayload(userIdentifier, null));
+        }
+        return payloads;
+    }
+
     /**
      * Return the SAML 1.1 payload as XML
      *
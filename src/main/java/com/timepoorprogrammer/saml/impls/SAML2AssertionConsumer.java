@@ -5,14 +5,23 @@ import com.timepoorprogrammer.saml.configuration.ConfigurationProperties;
 import com.timepoorprogrammer.saml.configuration.ConsumerConfiguration;
 import com.timepoorprogrammer.saml.configuration.ConsumerRedirectionConfiguration;
 import com.timepoorprogrammer.saml.configuration.EntityTranslation;
+import com.timepoorprogrammer.saml.core.AbstractSAMLHandler;
 import com.timepoorprogrammer.saml.core.InboundSAML2Message;
+import com.timepoorprogrammer.saml.core.ParseProfile;
+import com.timepoorprogrammer.saml.core.PayloadDigestCache;
+import com.timepoorprogrammer.saml.core.ReplayWindow;
+import com.timepoorprogrammer.saml.core.ResponsePreScan;
+import com.timepoorprogrammer.saml.core.SAMLResponseValidationResult;
+import com.timepoorprogrammer.saml.core.SAMLAssertionsValidationResult;
 import com.timepoorprogrammer.saml.impls.standard.consumer.processor.SAML2AssertionConsumerProcessorImpl;
 import com.timepoorprogrammer.saml.common.CopyInputStream;
 import com.timepoorprogrammer.saml.core.InboundSAML2Message;
 import com.timepoorprogrammer.saml.impls.standard.consumer.processor.SAML2AssertionConsumerProcessorImpl;
 import org.opensaml.common.binding.SAMLMessageContext;
 import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.Response;
 import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.xml.parse.BasicParserPool;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -36,6 +45,11 @@ public class SAML2AssertionConsumer {
     private MetaDataHandler mdHandler;
     private MetadataProvider mdProvider;
     private String serviceCode;
+    private ReplayStore replayStore;
+    private int clockSkewSeconds;
+    private PayloadDigestCache payloadDigestCache;
+    private ParseProfile parseProfile;
+    private ConsumerProcessorCache<SAML2AssertionConsumerProcessor> processors;
     private CopyInputStream keyStoreStreamCopy;
 
     /**
@@ -63,8 +77,13 @@ public class SAML2AssertionConsumer {
         configurationProperties = new ConfigurationProperties(configurationPropertiesPath);
         config = new ConsumerConfiguration(configurationProperties, this.serviceCode);
         entityTranslation = new EntityTranslation(entityTranslationPropertiesPath);
+        replayStore = ReplayStoreFactory.getInstance(configurationProperties, this.serviceCode);
+        clockSkewSeconds = configurationProperties.getIntParameter("saml", this.serviceCode, "clockSkewSeconds", ReplayWindow.DEFAULT_CLOCK_SKEW_SECONDS);
+        payloadDigestCache = new PayloadDigestCache(configurationProperties.getIntParameter("saml", this.serviceCode, "duplicatePayloadSeconds", PayloadDigestCache.DEFAULT_RETENTION_SECONDS));
+        parseProfile = ParseProfile.fromName(configurationProperties.getParameter("saml", this.serviceCode, "parseProfile"));
         mdHandler = MetaDataHandlerFactory.getInstance(null);
         mdProvider = mdHandler.getMetadata(metaDataPath);
+        processors = newProcessorCache();
         if (privateKeyStorePath != null) {
             try {
                 keyStoreStreamCopy = new CopyInputStream(new FileInputStream(new File(privateKeyStorePath)));
@@ -97,8 +116,13 @@ public class SAML2AssertionConsumer {
         configurationProperties = new ConfigurationProperties(configurationPropertiesURL);
         config = new ConsumerConfiguration(configurationProperties, this.serviceCode);
         entityTranslation = new EntityTranslation(entityTranslationPropertiesURL);
+        replayStore = ReplayStoreFactory.getInstance(configurationProperties, this.serviceCode);
+        clockSkewSeconds = configurationProperties.getIntParameter("saml", this.serviceCode, "clockSkewSeconds", ReplayWindow.DEFAULT_CLOCK_SKEW_SECONDS);
+        payloadDigestCache = new PayloadDigestCache(configurationProperties.getIntParameter("saml", this.serviceCode, "duplicatePayloadSeconds", PayloadDigestCache.DEFAULT_RETENTION_SECONDS));
+        parseProfile = ParseProfile.fromName(configurationProperties.getParameter("saml", this.serviceCode, "parseProfile"));
         mdHandler = MetaDataHandlerFactory.getInstance(null);
         mdProvider = mdHandler.getMetadata(metaDataURL);
+        processors = newProcessorCache();
         if (privateKeyStoreURL != null) {
             try {
                 keyStoreStreamCopy = new CopyInputStream(privateKeyStoreURL.openStream());
@@ -132,8 +156,13 @@ public class SAML2AssertionConsumer {
         configurationProperties = new ConfigurationProperties(configurationPropertiesStream);
         config = new ConsumerConfiguration(configurationProperties, this.serviceCode);
         entityTranslation = new EntityTranslation(entityTranslationPropertiesStream);
+        replayStore = ReplayStoreFactory.getInstance(configurationProperties, this.serviceCode);
+        clockSkewSeconds = configurationProperties.getIntParameter("saml", this.serviceCode, "clockSkewSeconds", ReplayWindow.DEFAULT_CLOCK_SKEW_SECONDS);
+        payloadDigestCache = new PayloadDigestCache(configurationProperties.getIntParameter("saml", this.serviceCode, "duplicatePayloadSeconds", PayloadDigestCache.DEFAULT_RETENTION_SECONDS));
+        parseProfile = ParseProfile.fromName(configurationProperties.getParameter("saml", this.serviceCode, "parseProfile"));
         mdHandler = MetaDataHandlerFactory.getInstance(null);
         mdProvider = mdHandler.getMetadata(metaDataStream);
+        processors = newProcessorCache();
         keyStoreStreamCopy = new CopyInputStream(privateKeyStoreStream);
     }
 
@@ -160,11 +189,76 @@ public class SAML2AssertionConsumer {
         configurationProperties = new ConfigurationProperties(configProperties);
         config = new ConsumerConfiguration(configurationProperties, this.serviceCode);
         entityTranslation = new EntityTranslation(entityTranslationProperties);
+        replayStore = ReplayStoreFactory.getInstance(configurationProperties, this.serviceCode);
+        clockSkewSeconds = configurationProperties.getIntParameter("saml", this.serviceCode, "clockSkewSeconds", ReplayWindow.DEFAULT_CLOCK_SKEW_SECONDS);
+        payloadDigestCache = new PayloadDigestCache(configurationProperties.getIntParameter("saml", this.serviceCode, "duplicatePayloadSeconds", PayloadDigestCache.DEFAULT_RETENTION_SECONDS));
+        parseProfile = ParseProfile.fromName(configurationProperties.getParameter("saml", this.serviceCode, "parseProfile"));
         mdHandler = MetaDataHandlerFactory.getInstance(null);
         mdProvider = mdHandler.getMetadata(metaDataStream);
+        processors = newProcessorCache();
         keyStoreStreamCopy = new CopyInputStream(privateKeyStoreStream);
     }
 
+    /**
+     * Is the raw SAMLResponse payload an exact copy of one we've been sent in the last couple of minutes?  Call this
+     * with the POSTed SAMLResponse parameter before decoding the message, and turn the request away if it is, as a
+     * browser double submit or a gateway retry is otherwise only caught as a replay after the full decode, parse and
+     * signature check.  Anything else goes on to be decoded and checked as normal.
+     *
+     * @param samlResponse raw value of the SAMLResponse parameter
+     * @return true if the payload is a duplicate, false otherwise
+     */
+    public boolean isDuplicatePayload(final String samlResponse) {
+        return payloadDigestCache.isDuplicate(samlResponse);
+    }
+
+    /**
+     * Get the parse profile set up for this consumer, which says how strictly incoming documents are checked as they
+     * are parsed.  It has to be known before the message is decoded, and so before we know who issued it, which is why
+     * it goes with the consumer's service code rather than the issuer.
+     *
+     * @return parse profile
+     */
+    public ParseProfile getParseProfile() {
+        return parseProfile;
+    }
+
+    /**
+     * Get the parser pool for this consumer's parse profile, to give to the message decoder, e.g.
+     * new HTTPPostDecoder(consumer.getParserPool())
+     *
+     * @return parser pool
+     */
+    public BasicParserPool getParserPool() {
+        return AbstractSAMLHandler.getParserPool(parseProfile);
+    }
+
+    /**
+     * Pre-scan the raw value of the SAMLResponse parameter, reading just enough of it to check with validatePreScan
+     * before it is decoded.
+     *
+     * @param samlResponse raw value of the SAMLResponse parameter
+     * @return pre-scan, or null if the payload doesn't start like a SAML response
+     */
+    public ResponsePreScan preScan(final String samlResponse) {
+        return ResponsePreScan.scan(samlResponse);
+    }
+
+    /**
+     * Turn away a response that can't be valid before paying to decode it, that being one not in SAML2, one whose
+     * issuer isn't in our metadata, one whose identifier we already hold, one whose Destination isn't the URL it was
+     * posted to, or one issued longer ago than we hold response identifiers for.  A response that passes must still be
+     * decoded and go through all the usual checks, and its message details got with the pre-scan so we know the
+     * response decoded is the one that was pre-scanned.
+     *
+     * @param preScan     pre-scan of the payload
+     * @param destination URL the payload was posted to, or null not to check it
+     * @return validation result
+     */
+    public SAMLResponseValidationResult validatePreScan(final ResponsePreScan preScan, final String destination) {
+        return ResponsePreScanValidator.validate(preScan, true, destination, mdProvider, replayStore, clockSkewSeconds);
+    }
+
     /**
      * Get inbound SAML2 message details from the context provided
      *
@@ -176,7 +270,19 @@ public class SAML2AssertionConsumer {
     }
 
     /**
-     * Given the input issuer, return the appropriate processor details
+     * Get inbound SAML2 message details from the context provided, for a payload that was pre-scanned
+     *
+     * @param context context from which the inbound SAML2 message can be obtained
+     * @param preScan pre-scan of the payload
+     * @return Inbound SAML2 message
+     */
+    public InboundSAML2Message getMessageDetails(final SAMLMessageContext context, final ResponsePreScan preScan) {
+        return new InboundSAML2Message(context, preScan);
+    }
+
+    /**
+     * Given the input issuer, return the appropriate processor details.  Processors are built once per issuer and then
+     * shared between requests, so don't change the one you are given.
      *
      * @param issuer issuer details
      * @return vanilla SAML2 processor
@@ -185,15 +291,62 @@ public class SAML2AssertionConsumer {
         if (issuer == null) {
             throw new IllegalArgumentException("Cannot provide a processor without issuer details");
         }
+        return processors.get(issuer);
+    }
+
+    /**
+     * Decrypt and validate every assertion in the response with the issuer's processor.  A response holding several
+     * assertions has them handled at the same time, each on a thread of its own, and one holding a single assertion
+     * is handled on the calling thread.  Validate the response itself and check its signature first.
+     *
+     * @param response response
+     * @param issuer   issuer details
+     * @return outcome for every assertion in the response
+     */
+    public SAMLAssertionsValidationResult processAssertions(final Response response, final String issuer) {
+        if (response == null || issuer == null) {
+            throw new IllegalArgumentException("Cannot process assertions without the response and issuer details");
+        }
+        return AssertionProcessingPool.getInstance().process(getProcessor(issuer), response, issuer);
+    }
+
+    /**
+     * Discard the processors built so far, so they are built again on next use.  The processors are rebuilt for you
+     * when the metadata reloads, so this is for when the configuration or keystore the processors depend on changes.
+     */
+    public void invalidateProcessors() {
+        processors.clear();
+    }
+
+    /**
+     * Build a new processor for the issuer
+     *
+     * @param issuer issuer details
+     * @return vanilla SAML2 processor
+     */
+    private SAML2AssertionConsumerProcessor buildProcessor(final String issuer) {
         final String customerCode = entityTranslation.lookupInternalCodeUsingEntityIdentifier(issuer);
         // Given the keystore is presented as a stream, to avoid an end of stream fiasco when
         // an assertion consumer is constructed once, but is used repeatedly to obtain different
         // processors depending on the issuer, then take a copy of the keystore stream each time
         // we build a new consumer
-        return new SAML2AssertionConsumerProcessorImpl(mdProvider, issuer, customerCode,
-                SAMLConstants.SAML20P_NS, serviceCode, mdHandler, keyStoreStreamCopy.getCopy(),
+        final SAML2AssertionConsumerProcessorImpl processor = new SAML2AssertionConsumerProcessorImpl(mdProvider, issuer,
+                customerCode, SAMLConstants.SAML20P_NS, serviceCode, mdHandler, keyStoreStreamCopy.getCopy(),
                 config.getKeyStorePassword(), config.getDecryptionKeyAlias(),
                 config.getDecryptionKeyPassword());
+        // Check responses against the replay store configured for our service
+        processor.setReplayStore(replayStore);
+        processor.setClockSkewSeconds(clockSkewSeconds);
+        return processor;
+    }
+
+    private ConsumerProcessorCache<SAML2AssertionConsumerProcessor> newProcessorCache() {
+        return new ConsumerProcessorCache<SAML2AssertionConsumerProcessor>(mdProvider) {
+            @Override
+            protected SAML2AssertionConsumerProcessor build(final String issuer) {
+                return buildProcessor(issuer);
+            }
+        };
     }
 
     /**
@@ -8,6 +8,7 @@ import com.timepoorprogrammer.saml.core.SAML2Handler;
 import com.timepoorprogrammer.saml.core.SAMLHelper;
 import com.timepoorprogrammer.saml.impls.standard.producer.processor.SAML2AssertionProducerProcessorImpl;
 import com.timepoorprogrammer.saml.security.encryption.AsymmetricalSessionKeySAMLEncrypter;
+import com.timepoorprogrammer.saml.security.encryption.EncryptionContext;
 import com.timepoorprogrammer.saml.security.signature.X509SAMLSignatureCreator;
 import com.timepoorprogrammer.saml.common.AuditMessages;
 import com.timepoorprogrammer.saml.core.SAML2Handler;
@@ -26,8 +27,13 @@ import org.w3c.dom.Element;
 
 import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 /**
  * Simplified encapsulation of a SAML2 assertion producer for use by any of our applications that will use
@@ -88,9 +94,7 @@ public class SAML2AssertionProducer {
         producerConfiguration = new ProducerConfiguration(this.configurationProperties, overriddenProducerCode);
         final String privateKeyStorePassword = producerConfiguration.getKeyStorePassword();
         sigCreator = SAMLHelper.createSignatureCreator(privateKeyStorePath, privateKeyStorePassword);
-        processor = new SAML2AssertionProducerProcessorImpl(mdProvider, issuer, SAMLConstants.SAML20P_NS,
-                serviceCode, serviceIdentifier, mdHandler, sigCreator,
-                producerConfiguration.getSigningKeyAlias(), producerConfiguration.getSigningKeyPassword());
+        processor = buildProcessor(issuer, serviceCode, serviceIdentifier);
     }
 
     /**
@@ -131,9 +135,7 @@ public class SAML2AssertionProducer {
         producerConfiguration = new ProducerConfiguration(this.configurationProperties, overriddenProducerCode);
         final String privateKeyStorePassword = producerConfiguration.getKeyStorePassword();
         sigCreator = SAMLHelper.createSignatureCreator(privateKeyStoreURL, privateKeyStorePassword);
-        processor = new SAML2AssertionProducerProcessorImpl(mdProvider, issuer, SAMLConstants.SAML20P_NS,
-                serviceCode, serviceIdentifier, mdHandler, sigCreator,
-                producerConfiguration.getSigningKeyAlias(), producerConfiguration.getSigningKeyPassword());
+        processor = buildProcessor(issuer, serviceCode, serviceIdentifier);
     }
 
     /**
@@ -173,9 +175,7 @@ public class SAML2AssertionProducer {
         producerConfiguration = new ProducerConfiguration(this.configurationProperties, overriddenProducerCode);
         final String privateKeyStorePassword = producerConfiguration.getKeyStorePassword();
         sigCreator = SAMLHelper.createSignatureCreator(privateKeyStorePath, privateKeyStorePassword);
-        processor = new SAML2AssertionProducerProcessorImpl(mdProvider, issuer, SAMLConstants.SAML20P_NS,
-                serviceCode, serviceIdentifier, mdHandler, sigCreator,
-                producerConfiguration.getSigningKeyAlias(), producerConfiguration.getSigningKeyPassword());
+        processor = buildProcessor(issuer, serviceCode, serviceIdentifier);
     }
 
     /**
@@ -218,9 +218,27 @@ public class SAML2AssertionProducer {
         producerConfiguration = new ProducerConfiguration(this.configurationProperties, overriddenProducerCode);
         final String privateKeyStorePassword = producerConfiguration.getKeyStorePassword();
         sigCreator = SAMLHelper.createSignatureCreator(privateKeyStoreStream, privateKeyStorePassword);
-        processor = new SAML2AssertionProducerProcessorImpl(mdProvider, issuer, SAMLConstants.SAML20P_NS,
-                serviceCode, serviceIdentifier, mdHandler, sigCreator,
+        processor = buildProcessor(issuer, serviceCode, serviceIdentifier);
+    }
+
+    /**
+     * Build the processor for the destination service, which encrypts with the session key reuse policy our
+     * configuration has for the service
+     *
+     * @param issuer            our issuer identifier
+     * @param serviceCode       destination service code
+     * @param serviceIdentifier destination service entity identifier
+     * @return vanilla SAML2 processor
+     */
+    private SAML2AssertionProducerProcessor buildProcessor(final String issuer,
+                                                           final String serviceCode,
+                                                           final String serviceIdentifier) {
+        final SAML2AssertionProducerProcessorImpl processor = new SAML2AssertionProducerProcessorImpl(mdProvider, issuer,
+                SAMLConstants.SAML20P_NS, serviceCode, serviceIdentifier, mdHandler, sigCreator,
                 producerConfiguration.getSigningKeyAlias(), producerConfiguration.getSigningKeyPassword());
+        processor.setSessionKeyReusePolicy(
+                SessionKeyReusePolicyFactory.getInstance(configurationProperties, serviceCode));
+        return processor;
     }
 
     /**
@@ -232,6 +250,17 @@ public class SAML2AssertionProducer {
         return processor;
     }
 
+    /**
+     * Get the encryption context for the destination service, whose counts of assertions encrypted and session keys
+     * wrapped show how much session key reuse is saving.
+     *
+     * @return encryption context, or null if we don't encrypt for the destination service
+     */
+    public EncryptionContext getEncryptionContext() {
+        return processor instanceof SAML2AssertionProducerProcessorImpl
+                ? ((SAML2AssertionProducerProcessorImpl) processor).getEncryptionContext() : null;
+    }
+
     /**
      * Get details of the producer configuration
      *
@@ -300,6 +329,40 @@ public class SAML2AssertionProducer {
         return Base64.encodeBytes(samlResponseString.getBytes());
     }
 
+    /**
+     * Submit a SAML response payload to be built, encrypted and signed by a worker rather than on this thread, for
+     * jobs that need payloads for lots of users at once.  If too many payloads are already waiting for a worker this
+     * blocks until there is room, so a job can feed in users as fast as it likes without getting ahead of the signing.
+     *
+     * @param userIdentifier user identifier
+     * @param attributes     attributes
+     * @return future of the encoded payload
+     */
+    public Future<String> submitSAMLResponsePayload(final String userIdentifier, final Map<String, String> attributes) {
+        return PayloadSigningPool.getInstance().submit(new Callable<String>() {
+            public String call() {
+                return getSAMLResponsePayload(userIdentifier, attributes);
+            }
+        });
+    }
+
+    /**
+     * Submit SAML response payloads for a batch of users, see submitSAMLResponsePayload.
+     *
+     * @param userIdentifiers user identifiers
+     * @return futures of the encoded payloads, in the same order as the user identifiers
+     */
+    public List<Future<String>> submitSAMLResponsePayloads(final Collection<String> userIdentifiers) {
+        if (userIdentifiers == null) {
+            throw new IllegalArgumentException("Missing user identifiers");
+        }
+        final List<Future<String>> payloads = new ArrayList<Future<String>>(userIdentifiers.size());
+        for (String userIdentifier : userIdentifiers) {
+            payloads.add(submitSAMLResponsePayload(userIdentifier, null));
+        }
+        return payloads;
+    }
+
     /**
      * Get the SAML response payload as XML (encrypted or signed as the case may be).
      *
@@ -7,7 +7,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Constructor;
-import java.util.List;
 
 /**
  * SAML2 Assertion producer processor factory.  As a SAML producer, we may need to apply a bespoke processor for SAML
@@ -86,31 +85,25 @@ public class SAML2AssertionProducerProcessorFactory extends FactoryBase {
                                                               final String signingKeyAlias,
                                                               final String signingKeyPassword) {
         if (spId != null && serviceCode != null) {
-            final List<String> details = parseClassName(SAML2AssertionProducerProcessor.class.getName());
-            String fullPath = null;
             try {
                 // If a partner needs a bespoke assertion producer, then we would need to create a
                 // partner specific directory holding a sub package producer.processor with a
                 // bespoke implementation within it.
-                fullPath = buildPathToBespokeImplementation(serviceCode, details.get(0), details.get(1), BESPOKE_IMPL_SUB_PACKAGE_LOCATION);
-                final Class implementation = Class.forName(fullPath);
                 final Class[] argSignature = new Class[]{String.class, String.class, String.class, String.class,
                         String.class, MetaDataHandler.class, String.class, String.class, String.class,
                         String.class};
-                final Constructor constructor = implementation.getConstructor(argSignature);
+                final Constructor constructor = findBespokeConstructor(serviceCode, SAML2AssertionProducerProcessor.class, BESPOKE_IMPL_SUB_PACKAGE_LOCATION, argSignature);
+                if (constructor == null) {
+                    // No bespoke implementation so use the default
+                    return new SAML2AssertionProducerProcessorImpl(metaDataFilePath, idpId, idpProtocol, serviceCode,
+                            spId, mdHandler, signingKeyStoreFilePath, signingKeyStoreFilePassword, signingKeyAlias,
+                            signingKeyPassword);
+                }
                 return (SAML2AssertionProducerProcessor) constructor.newInstance(metaDataFilePath, idpId, idpProtocol,
                         serviceCode, spId, mdHandler, signingKeyStoreFilePath,
                         signingKeyStoreFilePassword, signingKeyAlias,
                         signingKeyPassword);
             }
-            catch (ClassNotFoundException recoverableE) {
-                final String debugMessage = "Class not found " + fullPath + ", issue is " +
-                        recoverableE.getClass().getName() + ", so returning the default implementation.";
-                log.debug(debugMessage);
-                // Return the default implementation
-                return new SAML2AssertionProducerProcessorImpl(metaDataFilePath, idpId, idpProtocol, serviceCode, spId,
-                        mdHandler, signingKeyStoreFilePath, signingKeyStoreFilePassword, signingKeyAlias, signingKeyPassword);
-            }
             catch (Throwable anyE) {
                 final String errorMessage = "Error obtaining implementation";
                 log.error(errorMessage, anyE);
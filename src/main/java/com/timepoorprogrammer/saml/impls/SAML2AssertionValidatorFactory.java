@@ -7,7 +7,7 @@ import com.timepoorprogrammer.saml.impls.standard.consumer.processor.SAML2Assert
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.List;
+import java.lang.reflect.Constructor;
 
 /**
  * SAML2 Assertion validator factory.  As a SAML consumer, we may need to apply a bespoke validator for SAML2
@@ -65,21 +65,16 @@ public class SAML2AssertionValidatorFactory extends FactoryBase {
     @SuppressWarnings("unchecked")
     public static SAML2AssertionValidator getInstance(final String customerCode) {
         if (customerCode != null) {
-            final List<String> details = parseClassName(SAML2AssertionValidator.class.getName());
-            String fullPath = null;
             try {
                 // If a customer needs a bespoke assertion validator, then we would need to create a
                 // customer specific directory holding a sub package consumer.processor with a
                 // bespoke implementation within it.
-                fullPath = buildPathToBespokeImplementation(customerCode, details.get(0), details.get(1), BESPOKE_IMPL_SUB_PACKAGE_LOCATION);
-                final Class implementation = Class.forName(fullPath);
-                return (SAML2AssertionValidator) implementation.newInstance();
-            } catch (ClassNotFoundException recoverableE) {
-                final String debugMessage = "Class not found at " + fullPath + ", issue is " +
-                        recoverableE.getClass().getName() + ", so returning the default implementation.";
-                log.debug(debugMessage);
-                // Return the default implementation
-                return new SAML2AssertionValidatorImpl();
+                final Constructor constructor = findBespokeConstructor(customerCode, SAML2AssertionValidator.class, BESPOKE_IMPL_SUB_PACKAGE_LOCATION);
+                if (constructor == null) {
+                    // No bespoke implementation so use the default
+                    return new SAML2AssertionValidatorImpl();
+                }
+                return (SAML2AssertionValidator) constructor.newInstance();
             } catch (Throwable anyE) {
                 final String errorMessage = "Error obtaining implementation";
                 log.error(errorMessage, anyE);
@@ -1,12 +1,8 @@
 package com.timepoorprogrammer.saml.impls;
 
 import com.timepoorprogrammer.saml.core.SAMLResponseValidationResult;
-import com.timepoorprogrammer.saml.core.SAMLResponseValidationResult;
-import org.joda.time.DateTime;
 import org.opensaml.saml2.core.Response;
 
-import java.util.Map;
-
 /**
  * SAML 2 response validator interface.
  *
@@ -14,15 +10,17 @@ import java.util.Map;
  */
 public interface SAML2ResponseValidator {
     /**
-     * Validate the incoming response relative to the responses already seen in the last X minutes.  You can get free
+     * Validate the incoming response relative to the responses already held in the replay store.  You can get free
      * form if you must in your impl, just be careful as SAML is quite strict, so if you are going to implement one of
      * these yourself, you need to known what you are doing from a SAML response processing specification point of view.
      *
-     * @param response             response to validate
-     * @param responsesAlreadySeen responses already seen
-     * @param maxMinutes           The number of minutes we go back in time to see if we've seen a SAML response
-     *                             with the same identifier as the identifier provided in the new response.
+     * @param response         response to validate
+     * @param replayStore      replay store for the service provider, holding the identifiers of the responses already seen
+     *                         and recording the identifier of this response if it is new
+     * @param clockSkewSeconds The number of seconds we allow for the issuer's clock to disagree with ours, which is
+     *                         added on to the validity of the response's assertions when working out how long to
+     *                         remember its identifier for
      * @return SAML response validation results
      */
-    SAMLResponseValidationResult validate(Response response, Map<DateTime, String> responsesAlreadySeen, int maxMinutes);
+    SAMLResponseValidationResult validate(Response response, ReplayStore replayStore, int clockSkewSeconds);
 }
@@ -0,0 +1,82 @@
+package com.timepoorprogrammer.saml.impls;
+
+import com.timepoorprogrammer.saml.configuration.ConfigurationProperties;
+import com.timepoorprogrammer.saml.security.encryption.SessionKeyReusePolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Session key reuse policy factory.  There is one policy per destination service, which every producer processor
+ * encrypting assertions for the service uses.
+ * <p/>
+ * By default there is no reuse, and every encrypted assertion gets a session key of its own.  A service we send a lot
+ * of encrypted assertions to can be set up in saml.properties to reuse a session key for up to a number of assertions
+ * or seconds, whichever comes first, see the SessionKeyReusePolicy.  Both must be set for there to be any reuse:
+ * <p/>
+ * <ul>
+ * <li>saml.&lt;serviceCode&gt;.sessionKeyReuseAssertions = most assertions to encrypt with one session key</li>
+ * <li>saml.&lt;serviceCode&gt;.sessionKeyReuseSeconds = most seconds to keep using one session key for</li>
+ * </ul>
+ * <p/>
+ * The policy is read from the configuration the first time it is asked for with configuration, which the
+ * SAML2AssertionProducer does as it builds its processor, and the processor keeps hold of it.  From then on the service
+ * keeps that policy for the life of the JVM, as encryption contexts already in use have been built with it.  A later
+ * lookup with configuration that says something different is logged and the configuration ignored until a restart.
+ *
+ * @author Jim Ball
+ */
+public class SessionKeyReusePolicyFactory {
+    private static final Logger log = LoggerFactory.getLogger(SessionKeyReusePolicyFactory.class);
+
+    /**
+     * Policies by service code
+     */
+    private static final ConcurrentMap<String, SessionKeyReusePolicy> POLICIES = new ConcurrentHashMap<String, SessionKeyReusePolicy>();
+
+    /**
+     * Get the session key reuse policy the service has been set up with by an earlier lookup with configuration, or
+     * no reuse if there hasn't been one.  Use the lookup with configuration wherever the configuration is to hand.
+     *
+     * @param serviceCode destination service code
+     * @return session key reuse policy
+     */
+    public static SessionKeyReusePolicy getInstance(final String serviceCode) {
+        if (serviceCode == null) {
+            throw new IllegalArgumentException("Cannot provide a session key reuse policy without a service code");
+        }
+        final SessionKeyReusePolicy policy = POLICIES.get(serviceCode);
+        return policy == null ? SessionKeyReusePolicy.NONE : policy;
+    }
+
+    /**
+     * Get the session key reuse policy for the service as configured in the SAML configuration properties, or as
+     * first configured if the service already has a policy.
+     *
+     * @param properties  SAML configuration properties
+     * @param serviceCode destination service code
+     * @return session key reuse policy
+     */
+    public static SessionKeyReusePolicy getInstance(final ConfigurationProperties properties, final String serviceCode) {
+        if (properties == null || serviceCode == null) {
+            throw new IllegalArgumentException("Cannot provide a session key reuse policy without configuration and service code");
+        }
+        final int maxAssertions = properties.getIntParameter("saml", serviceCode, "sessionKeyReuseAssertions", 1);
+        final int maxSeconds = properties.getIntParameter("saml", serviceCode, "sessionKeyReuseSeconds", 0);
+        final SessionKeyReusePolicy configured = new SessionKeyReusePolicy(maxAssertions, maxSeconds);
+        final SessionKeyReusePolicy existing = POLICIES.putIfAbsent(serviceCode, configured);
+        if (existing == null) {
+            if (configured.isReuse()) {
+                log.info("Service {} reuses session keys with {}", serviceCode, configured);
+            }
+            return configured;
+        }
+        if (!existing.equals(configured)) {
+            log.warn("Service {} is configured with session key reuse {} but already uses {}, which it keeps until " +
+                    "restarted", new Object[]{serviceCode, configured, existing});
+        }
+        return existing;
+    }
+}
@@ -1,37 +1,19 @@
 package com.timepoorprogrammer.saml.impls.standard.consumer.processor;
 
+import com.timepoorprogrammer.saml.core.ReplayWindow;
 import com.timepoorprogrammer.saml.core.SAMLAssertionValidationResult;
 import com.timepoorprogrammer.saml.core.SAMLResponseValidationResult;
 import com.timepoorprogrammer.saml.impls.*;
-import org.joda.time.DateTime;
 import org.opensaml.saml1.core.Assertion;
 import org.opensaml.saml1.core.Response;
 import org.opensaml.saml2.metadata.provider.MetadataProvider;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Default SAML1.1 assertion consumer processor.
  *
  * @author Jim Ball
  */
 public class SAML11AssertionConsumerProcessorImpl extends SAMLAssertionConsumerProcessorBase implements SAML11AssertionConsumerProcessor {
-    /**
-     * Number of minutes within which we look for incoming SAML response bodies with an identifier we've already processed
-     */
-    private static final int MAX_MINUTES = 30;
-
-    /**
-     * The map of responses already seen within the last MAX_MINUTES
-     */
-    private static Map<DateTime, String> SEEN_RESPONSE_IDS = new HashMap<DateTime, String>(0);
-
-    /**
-     * Lock for checking whether we've seen the same SAML response body within the last MAX_MINUTES or not
-     */
-    private static final Object LOCK = new Object();
-
     /**
      * Response validator
      */
@@ -102,15 +84,17 @@ public class SAML11AssertionConsumerProcessorImpl extends SAMLAssertionConsumerP
      * @see SAML11AssertionConsumerProcessor#validate(org.opensaml.saml1.core.Response)
      */
     public SAMLResponseValidationResult validate(Response response) {
-        synchronized (LOCK) {
-            return responseValidator.validate(response, SEEN_RESPONSE_IDS, MAX_MINUTES);
-        }
+        return responseValidator.validate(response, replayStore, clockSkewSeconds);
     }
 
     /**
      * @see SAML11AssertionConsumerProcessor#validate(org.opensaml.saml1.core.Assertion, String)
      */
     public SAMLAssertionValidationResult validate(Assertion assertion, String issuer) {
-        return assertionValidator.validate(assertion, issuer);
+        final SAMLAssertionValidationResult result = assertionValidator.validate(assertion, issuer);
+        if (result.isValid() && ReplayWindow.isOneTimeUse(assertion)) {
+            checkOneTimeUse(result, assertion.getID(), ReplayWindow.getExpiry(assertion, clockSkewSeconds));
+        }
+        return result;
     }
 }
\ No newline at end of file
@@ -1,20 +1,17 @@
 package com.timepoorprogrammer.saml.impls.standard.consumer.processor;
 
 import com.timepoorprogrammer.saml.common.AuditMessages;
+import com.timepoorprogrammer.saml.core.ReplayWindow;
 import com.timepoorprogrammer.saml.core.SAMLResponseValidationResult;
+import com.timepoorprogrammer.saml.impls.ReplayStore;
 import com.timepoorprogrammer.saml.impls.SAML11ResponseValidator;
 import com.timepoorprogrammer.saml.common.AuditMessages;
-import org.joda.time.DateTime;
 import org.opensaml.saml1.core.Response;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-
 /**
  * Standard SAML1.1 response validator that prevents SAML response replay attacks where the same identifier is provided
- * for a SAML response as has already been seen in the past maxMinutes.
+ * for a SAML response as is already held in the service provider's replay store.  Identifiers are only held for as
+ * long as the assertions in the response could still validate.
  * <p/>
  * If you need a special one of these for a given customer or service then provide one in the right place and ensure
  * the SAML11AssertionConsumerProcessor implementation you are using picks up its validator via the
@@ -25,34 +22,20 @@ import java.util.Set;
 public class SAML11ResponseValidatorImpl implements SAML11ResponseValidator {
 
     @Override
-    public SAMLResponseValidationResult validate(Response response,
-                                                 Map<DateTime, String> responsesAlreadySeen,
-                                                 int maxMinutes) {
+    public SAMLResponseValidationResult validate(Response response, ReplayStore replayStore, int clockSkewSeconds) {
         SAMLResponseValidationResult result = new SAMLResponseValidationResult();
         try {
-            // Remove any "old" request identifiers, older than maxMinutes from our responsesAlreadySeen as we do not
-            // want the "queue" of responses the processor has already seen to grow and grow uncontrollably.
-            final DateTime now = new DateTime();
-            List<DateTime> keysToRemove = new ArrayList<DateTime>(0);
-            Set<DateTime> keys = responsesAlreadySeen.keySet();
-            for (DateTime key : keys) {
-                if (key.plusMinutes(maxMinutes).isBefore(now)) {
-                    keysToRemove.add(key);
-                }
-            }
-            for (DateTime removeMe : keysToRemove) {
-                responsesAlreadySeen.remove(removeMe);
-            }
-            // See if the responses already seen in the last maxMinutes already hold an identifier that is the same
-            // as the identifier of the response being processed, and if not, add the response ID
             final String responseId = response.getID();
-            if (responsesAlreadySeen.containsValue(responseId)) {
-                result.setErrorDetails(String.format(AuditMessages.ConsumerCode.CONSUMER_RESPONSE_REPLAY_ERROR.getDetailsPattern(),
-                        response.getID(), maxMinutes));
+            if (responseId == null) {
+                result.setErrorDetails(AuditMessages.ConsumerCode.CONSUMER_RESPONSE_CONTENT_ERROR.getDetailsPattern());
                 result.setValid(false);
-            } else {
-                responsesAlreadySeen.put(now, responseId);
+            } else if (isNew(responseId, ReplayWindow.getExpiry(response, clockSkewSeconds), replayStore)) {
+                // First time we've seen this identifier within its window, and the store has now recorded it
                 result.setValid(true);
+            } else {
+                result.setErrorDetails(String.format(AuditMessages.ConsumerCode.CONSUMER_RESPONSE_REPLAY_ERROR.getDetailsPattern(),
+                        responseId, replayStore.getRetentionMinutes()));
+                result.setValid(false);
             }
         } catch (Exception anyE) {
             result.setValid(false);
@@ -60,4 +43,20 @@ public class SAML11ResponseValidatorImpl implements SAML11ResponseValidator {
         }
         return result;
     }
+
+    /**
+     * Record the response identifier for as long as the response's assertions can validate, or for the store's
+     * standard retention period if we can't tell how long that is.
+     *
+     * @param responseId  response identifier
+     * @param expiresAt   time in milliseconds until which the identifier must be remembered, or ReplayWindow.UNBOUNDED
+     * @param replayStore replay store
+     * @return true if the identifier is new, false if this is a replay
+     */
+    protected boolean isNew(final String responseId, final long expiresAt, final ReplayStore replayStore) {
+        if (expiresAt == ReplayWindow.UNBOUNDED) {
+            return replayStore.add(responseId);
+        }
+        return replayStore.add(responseId, expiresAt);
+    }
 }
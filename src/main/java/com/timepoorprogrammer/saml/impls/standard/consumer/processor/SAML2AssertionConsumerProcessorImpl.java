@@ -1,18 +1,16 @@
 package com.timepoorprogrammer.saml.impls.standard.consumer.processor;
 
+import com.timepoorprogrammer.saml.core.ReplayWindow;
 import com.timepoorprogrammer.saml.core.SAMLAssertionValidationResult;
 import com.timepoorprogrammer.saml.core.SAMLHelper;
 import com.timepoorprogrammer.saml.core.SAMLResponseValidationResult;
 import com.timepoorprogrammer.saml.impls.*;
-import org.joda.time.DateTime;
 import org.opensaml.saml2.core.Assertion;
 import org.opensaml.saml2.core.Response;
 import org.opensaml.saml2.encryption.Decrypter;
 import org.opensaml.saml2.metadata.provider.MetadataProvider;
 
 import java.io.InputStream;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * Default SAML2 assertion consumer processor.
@@ -25,21 +23,6 @@ public class SAML2AssertionConsumerProcessorImpl extends SAMLAssertionConsumerPr
      */
     private Decrypter decrypter = null;
 
-    /**
-     * Number of minutes within which we look for incoming SAML response bodies with an identifier we've already processed
-     */
-    private static final int MAX_MINUTES = 30;
-
-    /**
-     * The map of responses already seen within the last MAX_MINUTES
-     */
-    private static Map<DateTime, String> SEEN_RESPONSE_IDS = new HashMap<DateTime, String>(0);
-
-    /**
-     * Lock for checking whether we've seen the same SAML response body within the last MAX_MINUTES or not
-     */
-    private static final Object LOCK = new Object();
-
     /**
      * Response validator
      */
@@ -167,15 +150,17 @@ public class SAML2AssertionConsumerProcessorImpl extends SAMLAssertionConsumerPr
      * @see com.timepoorprogrammer.saml.impls.SAML2AssertionConsumerProcessor#validate(org.opensaml.saml2.core.Response)
      */
     public SAMLResponseValidationResult validate(Response response) {
-        synchronized (LOCK) {
-            return responseValidator.validate(response, SEEN_RESPONSE_IDS, MAX_MINUTES);
-        }
+        return responseValidator.validate(response, replayStore, clockSkewSeconds);
     }
 
     /**
      * @see com.timepoorprogrammer.saml.impls.SAML2AssertionConsumerProcessor#validate(org.opensaml.saml2.core.Assertion, String)
      */
     public SAMLAssertionValidationResult validate(Assertion assertion, String issuer) {
-        return assertionValidator.validate(assertion, issuer);
+        final SAMLAssertionValidationResult result = assertionValidator.validate(assertion, issuer);
+        if (result.isValid() && ReplayWindow.isOneTimeUse(assertion)) {
+            checkOneTimeUse(result, assertion.getID(), ReplayWindow.getExpiry(assertion, clockSkewSeconds));
+        }
+        return result;
     }
 }
\ No newline at end of file
@@ -1,17 +1,20 @@
 package com.timepoorprogrammer.saml.impls.standard.consumer.processor;
 
+import com.timepoorprogrammer.saml.common.AuditMessages;
+import com.timepoorprogrammer.saml.core.ReplayWindow;
+import com.timepoorprogrammer.saml.core.SAMLAssertionValidationResult;
 import com.timepoorprogrammer.saml.impls.AuditMessenger;
 import com.timepoorprogrammer.saml.impls.AuditMessengerFactory;
 import com.timepoorprogrammer.saml.impls.MetaDataHandler;
+import com.timepoorprogrammer.saml.impls.ReplayStore;
+import com.timepoorprogrammer.saml.impls.ReplayStoreFactory;
 import com.timepoorprogrammer.saml.impls.AuditMessenger;
 import com.timepoorprogrammer.saml.impls.AuditMessengerFactory;
 import com.timepoorprogrammer.saml.impls.MetaDataHandler;
 import org.opensaml.saml2.metadata.IDPSSODescriptor;
 import org.opensaml.saml2.metadata.SPSSODescriptor;
 import org.opensaml.saml2.metadata.provider.MetadataProvider;
-import org.opensaml.xml.security.CriteriaSet;
 import org.opensaml.xml.signature.Signature;
-import org.opensaml.xml.signature.impl.ExplicitKeySignatureTrustEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,6 +34,8 @@ public class SAMLAssertionConsumerProcessorBase {
     protected IDPSSODescriptor identityProvider;
     protected SPSSODescriptor serviceProvider;
     protected AuditMessenger auditMessenger;
+    protected ReplayStore replayStore;
+    protected int clockSkewSeconds = ReplayWindow.DEFAULT_CLOCK_SKEW_SECONDS;
 
     /**
      * Construct a SAML assertion consumer processor base passing the following arguments
@@ -53,6 +58,8 @@ public class SAMLAssertionConsumerProcessorBase {
         this.customerCode = customerCode;
         // Pick up an audit messenger which may or may not be bespoked according to customer code
         auditMessenger = AuditMessengerFactory.getInstance(this.customerCode);
+        // Check responses against the replay store shared by every processor for the service provider
+        replayStore = ReplayStoreFactory.getInstance(this.spId);
     }
 
     /**
@@ -76,6 +83,8 @@ public class SAMLAssertionConsumerProcessorBase {
         this.customerCode = customerCode;
         // Pick up an audit messenger which may or may not be bespoked according to customer code
         auditMessenger = AuditMessengerFactory.getInstance(this.customerCode);
+        // Check responses against the replay store shared by every processor for the service provider
+        replayStore = ReplayStoreFactory.getInstance(this.spId);
     }
 
     /**
@@ -95,18 +104,9 @@ public class SAMLAssertionConsumerProcessorBase {
      */
     public boolean isSignatureGood(final Signature signature) {
         if (signature != null) {
-            try {
-                log.debug("Issuer " + idpId + " signs its SAML content according to our shared metadata, checking signature");
-                // Create a trust engine and signature validation criteria given the issuer
-                ExplicitKeySignatureTrustEngine trustEngine = mdHandler.getTrustEngine(mdProvider);
-                CriteriaSet sigValidationCriteria = mdHandler.getSignatureValidationCriteria(idpId, idpProtocol);
-                // Check the signature given the metadata and the signature validation criteria
-                return trustEngine.validate(signature, sigValidationCriteria);
-            } catch (Exception anyE) {
-                final String errorMessage = "Error checking signature";
-                log.error(errorMessage, anyE);
-                throw new RuntimeException(errorMessage, anyE);
-            }
+            log.debug("Issuer " + idpId + " signs its SAML content according to our shared metadata, checking signature");
+            // Check the signature against the issuer's signing credentials, resolved from the metadata once
+            return SignatureVerificationContext.getInstance(mdHandler, mdProvider, idpId, idpProtocol).validate(signature);
         } else {
             final String errorMessage = "Signature is missing from message";
             log.error(errorMessage);
@@ -114,6 +114,74 @@ public class SAMLAssertionConsumerProcessorBase {
         }
     }
 
+    /**
+     * Get the replay store this processor checks response identifiers against
+     *
+     * @return replay store
+     */
+    public ReplayStore getReplayStore() {
+        return replayStore;
+    }
+
+    /**
+     * Inject the replay store this processor checks response identifiers against, for example a store shared
+     * with the other consumer nodes serving the same service provider.  Until this is called the processor uses the
+     * store the ReplayStoreFactory has for the service provider.
+     *
+     * @param replayStore replay store
+     */
+    public void setReplayStore(final ReplayStore replayStore) {
+        if (replayStore == null) {
+            throw new IllegalArgumentException("Cannot check for replayed responses without a replay store");
+        }
+        this.replayStore = replayStore;
+    }
+
+    /**
+     * Get the number of seconds we allow for the issuer's clock to disagree with ours
+     *
+     * @return clock skew in seconds
+     */
+    public int getClockSkewSeconds() {
+        return clockSkewSeconds;
+    }
+
+    /**
+     * Set the number of seconds we allow for the issuer's clock to disagree with ours.  This is added on to the
+     * validity of an assertion when working out how long to remember its identifier, or that of its response, for.
+     *
+     * @param clockSkewSeconds clock skew in seconds
+     */
+    public void setClockSkewSeconds(final int clockSkewSeconds) {
+        if (clockSkewSeconds < 0) {
+            throw new IllegalArgumentException("Clock skew cannot be negative");
+        }
+        this.clockSkewSeconds = clockSkewSeconds;
+    }
+
+    /**
+     * An assertion that is for one time use only can't be accepted twice, even when it arrives in a different
+     * response, so record its identifier until it can no longer validate and fail the result if we've seen it before.
+     *
+     * @param result      assertion validation result so far, which is failed if the assertion is a replay
+     * @param assertionId assertion identifier
+     * @param expiresAt   time in milliseconds until which the identifier must be remembered, or ReplayWindow.UNBOUNDED
+     */
+    protected void checkOneTimeUse(final SAMLAssertionValidationResult result, final String assertionId, final long expiresAt) {
+        final boolean isNew;
+        if (assertionId == null) {
+            isNew = false;
+        } else if (expiresAt == ReplayWindow.UNBOUNDED) {
+            isNew = replayStore.add(assertionId);
+        } else {
+            isNew = replayStore.add(assertionId, expiresAt);
+        }
+        if (!isNew) {
+            result.setErrorDetails(String.format(AuditMessages.ConsumerCode.CONSUMER_ASSERTION_REPLAY_ERROR.getDetailsPattern(), assertionId));
+            result.setValid(false);
+        }
+    }
+
     /**
      * Setup the identity provider and service provider details.
      *
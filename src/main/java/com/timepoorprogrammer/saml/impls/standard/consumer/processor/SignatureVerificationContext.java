@@ -0,0 +1,154 @@
+package com.timepoorprogrammer.saml.impls.standard.consumer.processor;
+
+import com.timepoorprogrammer.saml.impls.MetaDataHandler;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.saml2.metadata.provider.ObservableMetadataProvider;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.StaticCredentialResolver;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.impl.ExplicitKeySignatureTrustEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Everything needed to check an identity provider's signatures, worked out once from the metadata rather than on
+ * every check.
+ * <p/>
+ * Getting a trust engine from the metadata handler builds a new metadata credential resolver, which walks the
+ * metadata key descriptors and decodes the X509 certificates in them the first time it is asked for an issuer's
+ * signing keys.  As a new one was built for every signature, that work was done every time.  A context resolves the
+ * issuer's signing credentials once and puts them behind a static resolver, so checking a signature costs the
+ * signature verification and nothing more.
+ * <p/>
+ * Contexts are shared by every processor using the same metadata provider, and are thrown away if the provider tells
+ * us it has reloaded, so the next check picks up any change to the issuer's keys.
+ *
+ * @author Jim Ball
+ */
+public class SignatureVerificationContext {
+    private static final Logger log = LoggerFactory.getLogger(SignatureVerificationContext.class);
+
+    /**
+     * Contexts by metadata provider, then issuer and protocol.  Providers are held weakly so one that has been
+     * finished with can go.
+     */
+    private static final Map<MetadataProvider, ConcurrentMap<String, SignatureVerificationContext>> CONTEXTS =
+            new WeakHashMap<MetadataProvider, ConcurrentMap<String, SignatureVerificationContext>>();
+
+    private final ExplicitKeySignatureTrustEngine trustEngine;
+    private final CriteriaSet criteria;
+    private final List<Credential> trustedCredentials;
+
+    /**
+     * Work out the trusted signing credentials for the issuer from the metadata
+     *
+     * @param mdHandler   metadata handler
+     * @param mdProvider  metadata provider
+     * @param idpId       identity provider SAML entity identifier
+     * @param idpProtocol identity provider SAML protocol
+     */
+    private SignatureVerificationContext(final MetaDataHandler mdHandler, final MetadataProvider mdProvider,
+                                         final String idpId, final String idpProtocol) {
+        final ExplicitKeySignatureTrustEngine metadataTrustEngine = mdHandler.getTrustEngine(mdProvider);
+        this.criteria = mdHandler.getSignatureValidationCriteria(idpId, idpProtocol);
+        this.trustedCredentials = new ArrayList<Credential>();
+        try {
+            for (Credential credential : metadataTrustEngine.getCredentialResolver().resolve(criteria)) {
+                trustedCredentials.add(credential);
+            }
+        } catch (Exception anyE) {
+            final String errorMessage = "Error resolving signing credentials for " + idpId + " from metadata";
+            log.error(errorMessage, anyE);
+            throw new RuntimeException(errorMessage, anyE);
+        }
+        this.trustEngine = new ExplicitKeySignatureTrustEngine(new StaticCredentialResolver(trustedCredentials),
+                metadataTrustEngine.getKeyInfoResolver());
+        log.debug("Resolved {} signing credentials for {} from metadata", trustedCredentials.size(), idpId);
+    }
+
+    /**
+     * Get the signature verification context for the issuer, working it out if it hasn't been already.
+     *
+     * @param mdHandler   metadata handler
+     * @param mdProvider  metadata provider
+     * @param idpId       identity provider SAML entity identifier
+     * @param idpProtocol identity provider SAML protocol
+     * @return signature verification context
+     */
+    public static SignatureVerificationContext getInstance(final MetaDataHandler mdHandler, final MetadataProvider mdProvider,
+                                                           final String idpId, final String idpProtocol) {
+        if (mdHandler == null || mdProvider == null || idpId == null || idpProtocol == null) {
+            throw new IllegalArgumentException("Cannot verify signatures without metadata and issuer details");
+        }
+        final ConcurrentMap<String, SignatureVerificationContext> contexts = getContexts(mdProvider);
+        final String key = idpId + " " + idpProtocol;
+        SignatureVerificationContext context = contexts.get(key);
+        if (context == null) {
+            context = new SignatureVerificationContext(mdHandler, mdProvider, idpId, idpProtocol);
+            final SignatureVerificationContext existing = contexts.putIfAbsent(key, context);
+            if (existing != null) {
+                context = existing;
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Is the signature good against the issuer's trusted signing credentials?
+     *
+     * @param signature signature
+     * @return true if good, false otherwise
+     */
+    public boolean validate(final Signature signature) {
+        try {
+            return trustEngine.validate(signature, criteria);
+        } catch (Exception anyE) {
+            final String errorMessage = "Error checking signature";
+            log.error(errorMessage, anyE);
+            throw new RuntimeException(errorMessage, anyE);
+        }
+    }
+
+    /**
+     * Get the number of signing credentials the issuer has in the metadata
+     *
+     * @return number of trusted credentials
+     */
+    public int getTrustedCredentialCount() {
+        return trustedCredentials.size();
+    }
+
+    /**
+     * Get the contexts for the metadata provider, listening for it reloading the first time we see it.
+     *
+     * @param mdProvider metadata provider
+     * @return contexts by issuer and protocol
+     */
+    private static ConcurrentMap<String, SignatureVerificationContext> getContexts(final MetadataProvider mdProvider) {
+        synchronized (CONTEXTS) {
+            ConcurrentMap<String, SignatureVerificationContext> contexts = CONTEXTS.get(mdProvider);
+            if (contexts == null) {
+                contexts = new ConcurrentHashMap<String, SignatureVerificationContext>();
+                CONTEXTS.put(mdProvider, contexts);
+                if (mdProvider instanceof ObservableMetadataProvider) {
+                    final ConcurrentMap<String, SignatureVerificationContext> toClear = contexts;
+                    ((ObservableMetadataProvider) mdProvider).getObservers().add(new ObservableMetadataProvider.Observer() {
+                        public void onEvent(final MetadataProvider provider) {
+                            log.info("Metadata has changed, discarding resolved signing credentials");
+                            toClear.clear();
+                        }
+                    });
+                }
+            }
+            return contexts;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.timepoorprogrammer.saml.impls.standard.consumer.replay;
+
+import com.timepoorprogrammer.saml.impls.ReplayStore;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replay store that puts a time rotated Bloom filter in front of an in-process replay store, being an
+ * InMemoryReplayStore or a JournalledReplayStore, and counts how often the filter is right so it can be sized from
+ * what production actually sees.
+ * <p/>
+ * Every response a consumer is sent is looked up in the replay store by the pre-scan, and then recorded in it once
+ * the response has been checked.  Nearly every response is new, and the filter can say so for certain, in which case
+ * the lookup is answered there and then without touching the store behind, and the response goes straight on to
+ * being recorded.  Only a "maybe seen" answer is looked up in the store behind.  Recording always goes to the store
+ * behind, as its insert is also the atomic check that stops two copies of a response arriving together both getting
+ * through, and the filter can't promise that on its own.
+ * <p/>
+ * The filter only knows about identifiers recorded through it, so it must never be put in front of a
+ * SharedFileReplayStore, whose other processes record identifiers the filter never sees.  It remembers an identifier
+ * for at least the retention period of the store behind, so an identifier recorded with a later expiry than that can
+ * be forgotten by the filter first, in which case the lookup misses it but recording it again still fails.
+ * <p/>
+ * A hit is a "maybe seen" from the filter and a miss a definite "never seen".  A false positive is a hit for an
+ * identifier the store behind then doesn't hold.  If the false positive rate climbs much above a percent or so, give
+ * the filter more bits.
+ *
+ * @author Jim Ball
+ */
+public class FilteredReplayStore implements ReplayStore {
+    /**
+     * Default number of bits in each generation of the filter, which is about ten bits per identifier for the
+     * responses a busy service provider sees in a default retention period
+     */
+    public static final int DEFAULT_FILTER_BITS = 1 << 22;
+
+    private final ReplayStore store;
+    private final ReplayFilter filter;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    /**
+     * Construct a filtered replay store with the default filter size
+     *
+     * @param store the in-process replay store behind the filter
+     */
+    public FilteredReplayStore(final ReplayStore store) {
+        this(store, DEFAULT_FILTER_BITS);
+    }
+
+    /**
+     * Construct a filtered replay store
+     *
+     * @param store      the in-process replay store behind the filter
+     * @param filterBits number of bits in each generation of the filter
+     */
+    public FilteredReplayStore(final ReplayStore store, final int filterBits) {
+        if (!(store instanceof InMemoryReplayStore) && !(store instanceof JournalledReplayStore)) {
+            throw new IllegalArgumentException("Can only filter an in-memory or journalled replay store");
+        }
+        this.store = store;
+        this.filter = new ReplayFilter(filterBits, TimeUnit.MINUTES.toMillis(store.getRetentionMinutes()));
+    }
+
+    /**
+     * @see com.timepoorprogrammer.saml.impls.ReplayStore#add(String)
+     */
+    public boolean add(final String id) {
+        if (id == null) {
+            throw new IllegalArgumentException("Cannot check a null identifier for replay");
+        }
+        filter.put(id);
+        return store.add(id);
+    }
+
+    /**
+     * @see com.timepoorprogrammer.saml.impls.ReplayStore#add(String, long)
+     */
+    public boolean add(final String id, final long expiresAt) {
+        if (id == null) {
+            throw new IllegalArgumentException("Cannot check a null identifier for replay");
+        }
+        filter.put(id);
+        return store.add(id, expiresAt);
+    }
+
+    /**
+     * Only looks in the store behind when the filter says the identifier has maybe been seen.
+     *
+     * @see com.timepoorprogrammer.saml.impls.ReplayStore#contains(String)
+     */
+    public boolean contains(final String id) {
+        if (id == null) {
+            throw new IllegalArgumentException("Cannot check a null identifier for replay");
+        }
+        if (!filter.mightContain(id)) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        final boolean held = store.contains(id);
+        if (!held) {
+            falsePositives.incrementAndGet();
+        }
+        return held;
+    }
+
+    /**
+     * @see com.timepoorprogrammer.saml.impls.ReplayStore#getRetentionMinutes()
+     */
+    public int getRetentionMinutes() {
+        return store.getRetentionMinutes();
+    }
+
+    /**
+     * Get the replay store behind the filter
+     *
+     * @return replay store
+     */
+    public ReplayStore getStore() {
+        return store;
+    }
+
+    /**
+     * Get the number of lookups the filter said had maybe been seen, which went on to the store behind
+     *
+     * @return hit count
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of lookups the filter said had never been seen, which the store behind was spared
+     *
+     * @return miss count
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of lookups the filter said had maybe been seen which the store behind didn't hold
+     *
+     * @return false positive count
+     */
+    public long getFalsePositiveCount() {
+        return falsePositives.get();
+    }
+
+    /**
+     * Get the proportion of lookups for identifiers not held that the filter wrongly said had maybe been seen
+     *
+     * @return false positive rate between 0 and 1
+     */
+    public double getFalsePositiveRate() {
+        final long falses = falsePositives.get();
+        final long notHeld = misses.get() + falses;
+        return notHeld == 0 ? 0 : (double) falses / notHeld;
+    }
+}
@@ -0,0 +1,52 @@
+package com.timepoorprogrammer.saml.impls.standard.consumer.replay;
+
+import com.timepoorprogrammer.saml.security.JCAEngines;
+
+import java.nio.charset.Charset;
+
+/**
+ * Reduces a response identifier to a fixed width 128 bit digest, so replay stores that live outside the Java heap can
+ * hold identifiers of any length in fixed width slots.  The digest is MD5, which is fine here as we need a uniform
+ * spread and not collision resistance against someone who can't forge a signed response anyway.
+ *
+ * @author Jim Ball
+ */
+final class IdentifierDigest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private IdentifierDigest() {
+    }
+
+    /**
+     * Digest the identifier.
+     *
+     * @param id identifier
+     * @return the 128 bit digest as its high and low 64 bits, neither of which is ever zero as zero marks an empty slot
+     */
+    static long[] digest(final String id) {
+        final byte[] hash = JCAEngines.getMessageDigest("MD5").digest(id.getBytes(UTF8));
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (hash[i] & 0xff);
+            low = (low << 8) | (hash[i + 8] & 0xff);
+        }
+        return new long[]{high == 0 ? 1 : high, low == 0 ? 1 : low};
+    }
+
+    /**
+     * Turn a digest back into a compact key for an in-memory map, being the 128 bits as eight characters.
+     *
+     * @param high high 64 bits of the digest
+     * @param low  low 64 bits of the digest
+     * @return key
+     */
+    static String key(final long high, final long low) {
+        final char[] chars = new char[8];
+        for (int i = 0; i < 4; i++) {
+            chars[i] = (char) (high >>> (48 - 16 * i));
+            chars[i + 4] = (char) (low >>> (48 - 16 * i));
+        }
+        return new String(chars);
+    }
+}
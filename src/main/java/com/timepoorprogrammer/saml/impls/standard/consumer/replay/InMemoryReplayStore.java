@@ -0,0 +1,60 @@
+package com.timepoorprogrammer.saml.impls.standard.consumer.replay;
+
+import com.timepoorprogrammer.saml.core.ReplayCache;
+import com.timepoorprogrammer.saml.impls.ReplayStore;
+
+/**
+ * Standard replay store that holds identifiers in the memory of this JVM only, using a ReplayCache.
+ * <p/>
+ * This is fine for a single consumer node, but if several consumer nodes sit behind a load balancer a response
+ * replayed to a different node won't be caught, so use the SharedFileReplayStore for that.
+ *
+ * @author Jim Ball
+ */
+public class InMemoryReplayStore implements ReplayStore {
+    private final ReplayCache cache;
+
+    /**
+     * Construct an in-memory replay store with the default retention
+     */
+    public InMemoryReplayStore() {
+        this(ReplayCache.DEFAULT_RETENTION_MINUTES);
+    }
+
+    /**
+     * Construct an in-memory replay store
+     *
+     * @param retentionMinutes number of minutes to remember an identifier for
+     */
+    public InMemoryReplayStore(final int retentionMinutes) {
+        this.cache = new ReplayCache(retentionMinutes);
+    }
+
+    /**
+     * @see com.timepoorprogrammer.saml.impls.ReplayStore#add(String)
+     */
+    public boolean add(final String id) {
+        return cache.add(id);
+    }
+
+    /**
+     * @see com.timepoorprogrammer.saml.impls.ReplayStore#add(String, long)
+     */
+    public boolean add(final String id, final long expiresAt) {
+        return cache.add(id, expiresAt);
+    }
+
+    /**
+     * @see com.timepoorprogrammer.saml.impls.ReplayStore#contains(String)
+     */
+    public boolean contains(final String id) {
+        return cache.contains(id);
+    }
+
+    /**
+     * @see com.timepoorprogrammer.saml.impls.ReplayStore#getRetentionMinutes()
+     */
+    public int getRetentionMinutes() {
+        return cache.getRetentionMinutes();
+    }
+}
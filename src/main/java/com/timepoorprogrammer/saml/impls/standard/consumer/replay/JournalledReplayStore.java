@@ -0,0 +1,373 @@
+package com.timepoorprogrammer.saml.impls.standard.consumer.replay;
+
+import com.timepoorprogrammer.saml.core.ReplayCache;
+import com.timepoorprogrammer.saml.impls.ReplayStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replay store for a single consumer node that survives the node being restarted.  Identifiers are checked against
+ * an in-memory ReplayCache as usual, and every new identifier is also appended to a journal in a directory of our own,
+ * so on restart we rebuild the cache from the journal rather than starting empty and letting recent responses be
+ * replayed.
+ * <p/>
+ * The journal is a series of fixed size segment files mapped into memory.  Each record is 24 bytes, being the 128 bit
+ * digest of the identifier and the time in milliseconds at which it expires.  Writers claim a record with an atomic
+ * increment and write it straight into the mapping, so there is no lock, no system call and no copying on the way in.
+ * The high half of the digest is written last and is never zero, so a record half written when the process died is
+ * skipped on the way back up.
+ * <p/>
+ * When a segment fills up we start a new one, and any earlier segment whose records have all expired is deleted then,
+ * so the journal never needs compacting.  Writes go to the operating system's page cache, so the journal survives the
+ * consumer process going down but not the box itself losing power.
+ * <p/>
+ * Only one process may use a journal directory at a time, so give each consumer node its own.
+ *
+ * @author Jim Ball
+ */
+public class JournalledReplayStore implements ReplayStore {
+    private static final Logger log = LoggerFactory.getLogger(JournalledReplayStore.class);
+
+    /**
+     * Default number of records in each segment file
+     */
+    public static final int DEFAULT_SEGMENT_RECORDS = 1 << 16;
+
+    /**
+     * Marks a file as one of ours, "SAMLJRNL"
+     */
+    private static final long MAGIC = 0x53414d4c4a524e4cL;
+
+    private static final int HEADER_BYTES = 16;
+    private static final int RECORD_BYTES = 24;
+    private static final String SEGMENT_PREFIX = "replay-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String LOCK_FILE_NAME = "replay.lock";
+
+    private final File directory;
+    private final int segmentRecords;
+    private final ReplayCache cache;
+    private final FileLock directoryLock;
+
+    /**
+     * Earlier segments still holding live identifiers, only touched when rolling over
+     */
+    private final List<Segment> retired = new ArrayList<Segment>();
+
+    private volatile Segment current;
+    private long nextSequence;
+
+    /**
+     * Open the journal in the given directory with the default segment size, rebuilding from anything already there.
+     *
+     * @param directory        directory for the journal, which this consumer node must have to itself
+     * @param retentionMinutes number of minutes to remember an identifier for
+     */
+    public JournalledReplayStore(final String directory, final int retentionMinutes) {
+        this(directory, DEFAULT_SEGMENT_RECORDS, retentionMinutes);
+    }
+
+    /**
+     * Open the journal in the given directory, rebuilding from anything already there.
+     *
+     * @param directory        directory for the journal, which this consumer node must have to itself
+     * @param segmentRecords   number of records in each segment file
+     * @param retentionMinutes number of minutes to remember an identifier for
+     */
+    public JournalledReplayStore(final String directory, final int segmentRecords, final int retentionMinutes) {
+        if (directory == null || segmentRecords <= 0 || retentionMinutes <= 0) {
+            throw new IllegalArgumentException("Replay journal needs a directory and a positive segment size and retention");
+        }
+        this.directory = new File(directory);
+        this.segmentRecords = segmentRecords;
+        this.cache = new ReplayCache(retentionMinutes);
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new RuntimeException("Cannot create replay journal directory " + directory);
+        }
+        try {
+            directoryLock = lockDirectory();
+            if (directoryLock == null) {
+                throw new IllegalStateException("Replay journal " + directory + " is already in use by another process");
+            }
+            final long start = System.currentTimeMillis();
+            final int recovered = recover();
+            current = new Segment(nextSequence++);
+            log.info("Opened replay journal {} recovering {} identifiers in {}ms", new Object[]{directory, recovered, System.currentTimeMillis() - start});
+        } catch (IOException anyE) {
+            final String errorMessage = "Error opening replay journal at " + directory;
+            log.error(errorMessage, anyE);
+            throw new RuntimeException(errorMessage, anyE);
+        }
+    }
+
+    /**
+     * @see com.timepoorprogrammer.saml.impls.ReplayStore#add(String)
+     */
+    public boolean add(final String id) {
+        return add(id, System.currentTimeMillis() + cache.getRetentionMinutes() * 60000L);
+    }
+
+    /**
+     * @see com.timepoorprogrammer.saml.impls.ReplayStore#add(String, long)
+     */
+    public boolean add(final String id, final long expiresAt) {
+        if (id == null) {
+            throw new IllegalArgumentException("Cannot check a null identifier for replay");
+        }
+        final long[] digest = IdentifierDigest.digest(id);
+        if (!cache.add(IdentifierDigest.key(digest[0], digest[1]), expiresAt)) {
+            return false;
+        }
+        append(digest[0], digest[1], expiresAt);
+        return true;
+    }
+
+    /**
+     * @see com.timepoorprogrammer.saml.impls.ReplayStore#contains(String)
+     */
+    public boolean contains(final String id) {
+        if (id == null) {
+            throw new IllegalArgumentException("Cannot check a null identifier for replay");
+        }
+        final long[] digest = IdentifierDigest.digest(id);
+        return cache.contains(IdentifierDigest.key(digest[0], digest[1]));
+    }
+
+    /**
+     * @see com.timepoorprogrammer.saml.impls.ReplayStore#getRetentionMinutes()
+     */
+    public int getRetentionMinutes() {
+        return cache.getRetentionMinutes();
+    }
+
+    /**
+     * Get the journal directory
+     *
+     * @return directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Flush the journal and let go of the directory, so another store can open it.  Only needed on shut down.
+     */
+    public synchronized void close() {
+        current.mapped.force();
+        current.close();
+        for (Segment segment : retired) {
+            segment.close();
+        }
+        try {
+            directoryLock.release();
+            directoryLock.channel().close();
+        } catch (IOException e) {
+            log.warn("Unable to release lock on replay journal " + directory, e);
+        }
+    }
+
+    /**
+     * Lock the journal directory for this store
+     *
+     * @return the lock, or null if another store has it
+     * @throws IOException on error
+     */
+    private FileLock lockDirectory() throws IOException {
+        final FileChannel lockChannel = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw").getChannel();
+        try {
+            final FileLock lock = lockChannel.tryLock();
+            if (lock != null) {
+                return lock;
+            }
+        } catch (OverlappingFileLockException e) {
+            // Another store in this JVM has it
+        }
+        lockChannel.close();
+        return null;
+    }
+
+    /**
+     * Append a record to the current segment, rolling over to a new segment if it is full.
+     *
+     * @param high      high 64 bits of the digest
+     * @param low       low 64 bits of the digest
+     * @param expiresAt expiry time in milliseconds
+     */
+    private void append(final long high, final long low, final long expiresAt) {
+        while (true) {
+            final Segment segment = current;
+            final int record = segment.next.getAndIncrement();
+            if (record < segmentRecords) {
+                segment.write(record, high, low, expiresAt);
+                return;
+            }
+            roll(segment);
+        }
+    }
+
+    /**
+     * Start a new segment unless another thread already has, and delete any earlier segments that have fully expired.
+     *
+     * @param full the segment that filled up
+     */
+    private synchronized void roll(final Segment full) {
+        if (current != full) {
+            return;
+        }
+        try {
+            full.mapped.force();
+            retired.add(full);
+            current = new Segment(nextSequence++);
+        } catch (IOException anyE) {
+            final String errorMessage = "Error rolling replay journal at " + directory;
+            log.error(errorMessage, anyE);
+            throw new RuntimeException(errorMessage, anyE);
+        }
+        final long now = System.currentTimeMillis();
+        for (Iterator<Segment> segments = retired.iterator(); segments.hasNext(); ) {
+            final Segment segment = segments.next();
+            if (segment.latestExpiry.get() <= now) {
+                segment.close();
+                if (segment.file.delete()) {
+                    segments.remove();
+                    log.debug("Reclaimed replay journal segment {}", segment.file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rebuild the cache from the segments already in the directory, deleting any whose records have all expired.
+     *
+     * @return number of live identifiers recovered
+     * @throws IOException on error
+     */
+    private int recover() throws IOException {
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(final File dir, final String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+        final long now = System.currentTimeMillis();
+        int recovered = 0;
+        for (File segmentFile : files) {
+            final String name = segmentFile.getName();
+            nextSequence = Math.max(nextSequence, Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()), 16) + 1);
+            final Segment segment = new Segment(segmentFile);
+            for (int record = 0; record < segment.records; record++) {
+                final long high = segment.mapped.getLong(HEADER_BYTES + record * RECORD_BYTES);
+                if (high == 0) {
+                    continue;
+                }
+                final long low = segment.mapped.getLong(HEADER_BYTES + record * RECORD_BYTES + 8);
+                final long expiresAt = segment.mapped.getLong(HEADER_BYTES + record * RECORD_BYTES + 16);
+                segment.noteExpiry(expiresAt);
+                if (expiresAt > now && cache.add(IdentifierDigest.key(high, low), expiresAt)) {
+                    recovered++;
+                }
+            }
+            if (segment.latestExpiry.get() > now) {
+                retired.add(segment);
+            } else {
+                segment.close();
+                if (!segmentFile.delete()) {
+                    log.warn("Unable to delete expired replay journal segment {}", segmentFile);
+                }
+            }
+        }
+        return recovered;
+    }
+
+    /**
+     * One segment file of the journal
+     */
+    private final class Segment {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer mapped;
+        private final int records;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicLong latestExpiry = new AtomicLong();
+
+        /**
+         * Create a new, empty segment
+         *
+         * @param sequence sequence number of the segment
+         * @throws IOException on error
+         */
+        private Segment(final long sequence) throws IOException {
+            this.file = new File(directory, SEGMENT_PREFIX + String.format("%016x", sequence) + SEGMENT_SUFFIX);
+            this.raf = new RandomAccessFile(file, "rw");
+            this.records = segmentRecords;
+            raf.setLength(HEADER_BYTES + (long) records * RECORD_BYTES);
+            this.mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            mapped.putLong(0, MAGIC);
+            mapped.putLong(8, records);
+        }
+
+        /**
+         * Open an existing segment, which is only ever read from
+         *
+         * @param file segment file
+         * @throws IOException on error
+         */
+        private Segment(final File file) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            if (raf.length() < HEADER_BYTES || mapped.getLong(0) != MAGIC) {
+                raf.close();
+                throw new IOException("File " + file + " is not a replay journal segment");
+            }
+            this.records = (int) Math.min(mapped.getLong(8), (raf.length() - HEADER_BYTES) / RECORD_BYTES);
+            next.set(records);
+        }
+
+        /**
+         * Write a record, high half of the digest last so a torn record is never read back as a live one
+         *
+         * @param record    record number within the segment
+         * @param high      high 64 bits of the digest
+         * @param low       low 64 bits of the digest
+         * @param expiresAt expiry time in milliseconds
+         */
+        private void write(final int record, final long high, final long low, final long expiresAt) {
+            final int offset = HEADER_BYTES + record * RECORD_BYTES;
+            mapped.putLong(offset + 16, expiresAt);
+            mapped.putLong(offset + 8, low);
+            mapped.putLong(offset, high);
+            noteExpiry(expiresAt);
+        }
+
+        private void noteExpiry(final long expiresAt) {
+            long latest = latestExpiry.get();
+            while (expiresAt > latest && !latestExpiry.compareAndSet(latest, expiresAt)) {
+                latest = latestExpiry.get();
+            }
+        }
+
+        private void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                log.warn("Unable to close replay journal segment " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.timepoorprogrammer.saml.impls.standard.consumer.replay;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Time rotated Bloom filter of identifiers, which can say for certain that an identifier hasn't been seen recently but
+ * can only say that one maybe has.
+ * <p/>
+ * There are two generations of bits, each covering one rotation period.  Identifiers are set in the current generation
+ * and looked for in both, and when the period moves on the older generation is wiped and becomes the current one.
+ * Bits are set with compare-and-set so there are no locks.  A thread setting bits while another is wiping a generation
+ * can lose them, which just means a later "never seen" answer for that identifier, so the filter must only ever be
+ * used to spare a lookup that is advisory anyway, and never instead of the check made when recording an identifier.
+ *
+ * @author Jim Ball
+ */
+final class ReplayFilter {
+    /**
+     * Number of bits set per identifier, which is about right for the filter sizes we use
+     */
+    private static final int HASHES = 4;
+
+    private final AtomicLongArray[] generations = new AtomicLongArray[2];
+    private final AtomicLong epoch;
+    private final long mask;
+    private final long rotationMillis;
+
+    /**
+     * Construct a filter
+     *
+     * @param bits           bits per generation, rounded up to a power of two
+     * @param rotationMillis period in milliseconds covered by each generation
+     */
+    ReplayFilter(final int bits, final long rotationMillis) {
+        if (bits <= 0 || rotationMillis <= 0) {
+            throw new IllegalArgumentException("Replay filter size and rotation must both be positive");
+        }
+        final int size = Math.max(64, Integer.highestOneBit(bits - 1) << 1);
+        this.mask = size - 1;
+        this.rotationMillis = rotationMillis;
+        generations[0] = new AtomicLongArray(size / 64);
+        generations[1] = new AtomicLongArray(size / 64);
+        this.epoch = new AtomicLong(System.currentTimeMillis() / rotationMillis);
+    }
+
+    /**
+     * Record the identifier in the filter.
+     *
+     * @param id identifier
+     */
+    void put(final String id) {
+        final long current = rotate(System.currentTimeMillis());
+        final AtomicLongArray bits = generations[(int) (current & 1)];
+        final long h1 = hash(id);
+        final long h2 = mix(h1) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            final long bit = (h1 + i * h2) & mask;
+            final int word = (int) (bit >>> 6);
+            final long flag = 1L << bit;
+            long value = bits.get(word);
+            while ((value & flag) == 0 && !bits.compareAndSet(word, value, value | flag)) {
+                value = bits.get(word);
+            }
+        }
+    }
+
+    /**
+     * Look for the identifier in the filter without recording it.
+     *
+     * @param id identifier
+     * @return false if the identifier has definitely not been recorded within the last rotation period or so, true
+     *         if it maybe has
+     */
+    boolean mightContain(final String id) {
+        final long current = rotate(System.currentTimeMillis());
+        final AtomicLongArray bits = generations[(int) (current & 1)];
+        final AtomicLongArray previous = generations[(int) ((current - 1) & 1)];
+        final long h1 = hash(id);
+        final long h2 = mix(h1) | 1;
+        boolean inCurrent = true;
+        boolean inPrevious = true;
+        for (int i = 0; i < HASHES && (inCurrent || inPrevious); i++) {
+            final long bit = (h1 + i * h2) & mask;
+            final int word = (int) (bit >>> 6);
+            final long flag = 1L << bit;
+            inCurrent = inCurrent && (bits.get(word) & flag) != 0;
+            inPrevious = inPrevious && (previous.get(word) & flag) != 0;
+        }
+        return inCurrent || inPrevious;
+    }
+
+    /**
+     * Move on to the next generation if the rotation period has passed, wiping the generation being reused.  Only the
+     * caller that moves the epoch on does the wiping.
+     *
+     * @param now current time in milliseconds
+     * @return current epoch
+     */
+    private long rotate(final long now) {
+        final long current = now / rotationMillis;
+        final long last = epoch.get();
+        if (current > last && epoch.compareAndSet(last, current)) {
+            // If more than one period has gone by, neither generation holds anything worth keeping
+            final int wipes = current - last > 1 ? 2 : 1;
+            for (int g = 0; g < wipes; g++) {
+                final AtomicLongArray stale = generations[(int) ((current - g) & 1)];
+                for (int i = 0; i < stale.length(); i++) {
+                    stale.set(i, 0);
+                }
+            }
+        }
+        return Math.max(current, epoch.get());
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the identifier's characters
+     */
+    private static long hash(final String id) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Murmur3 finaliser, to get an independent second hash out of the first
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,406 @@
+package com.timepoorprogrammer.saml.impls.standard.consumer.replay;
+
+import com.timepoorprogrammer.saml.impls.ReplayStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Replay store shared between all the consumer processes on a box that map the same file, so a response replayed to a
+ * different consumer node is still caught.  There is no network service involved, every process maps the file into
+ * memory and checks and records identifiers in fixed width slots in it, under a lock on just the part of the file the
+ * identifier can go in.
+ * <p/>
+ * The file holds a small header followed by two hash tables of open addressed slots.  Each slot is 16 bytes, being a
+ * 64 bit digest of the response identifier and the time in milliseconds at which it expires.  Each table is split
+ * into stripes of a few hundred slots, and an identifier only ever goes in the stripe its digest picks.  Checking and
+ * recording an identifier is done holding a file lock on that stripe, which other processes respect, and a monitor
+ * for the stripe, as file locks are held per JVM rather than per thread.  So two processes recording the same
+ * identifier at once take turns, and the second sees the first's digest and reports a replay, while identifiers in
+ * different stripes are recorded in parallel.
+ * <p/>
+ * Time is split into epochs no shorter than the retention period.  Identifiers are recorded in the table for the
+ * current epoch, and checked against both the current table and the table of the previous epoch.  By the time an epoch
+ * comes round to reuse a table every identifier in it has expired, so the first process to need it wipes it under a
+ * lock on the table's epoch in the header.
+ * <p/>
+  * An identifier can't be held for longer than the retention period the file was created with, as the table it is in
+ * is wiped two epochs on, so an add asking to hold it for longer is cut down to the retention period and a warning
+ * logged the first time.  A response replayed after that but still within its validity would pass as new, so set the
+ * retention to at least the longest assertion lifetime any partner sends, plus the allowed clock skew.
+ * <p/>
+ * The store fails closed, so if a table fills up the add throws rather than letting the response through.  Size the
+ * table to comfortably more than the number of responses you expect in a retention period.
+ *
+ * @author Jim Ball
+ */
+public class SharedFileReplayStore implements ReplayStore {
+    private static final Logger log = LoggerFactory.getLogger(SharedFileReplayStore.class);
+
+    /**
+     * Default number of slots in each of the two tables
+     */
+    public static final int DEFAULT_SLOTS = 1 << 18;
+
+    /**
+     * Marks a file as one of ours, "SAMLRPLY"
+     */
+    private static final long MAGIC = 0x53414d4c52504c59L;
+
+    private static final int HEADER_BYTES = 64;
+    private static final int SLOT_BYTES = 16;
+    private static final int TABLE_EPOCH_OFFSET = 24;
+
+    /**
+     * Number of slots in a stripe, being how far we will probe for a slot before we consider the table full
+     */
+    private static final int STRIPE_SLOTS = 256;
+
+    /**
+     * File locks are held per JVM, not per thread, so we have to make sure only one thread at a time asks for a lock
+     * on the header
+     */
+    private static final Object FILE_LOCK = new Object();
+
+    /**
+     * As for FILE_LOCK, but for locks on stripes, one monitor covering every stripe with the same number in any table
+     * of any store so two stores on the same file in this JVM take turns too
+     */
+    private static final Object[] STRIPE_LOCKS = new Object[64];
+
+    static {
+        for (int i = 0; i < STRIPE_LOCKS.length; i++) {
+            STRIPE_LOCKS[i] = new Object();
+        }
+    }
+
+    private final String path;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    private final int slots;
+    private final int stripes;
+    private final long epochMillis;
+    private final AtomicBoolean cappedWarned = new AtomicBoolean();
+
+    /**
+     * Open (creating if need be) the shared replay store file with the default number of slots.
+     *
+     * @param path             path to the shared file, which every consumer process must use
+     * @param retentionMinutes number of minutes to remember an identifier for
+     */
+    public SharedFileReplayStore(final String path, final int retentionMinutes) {
+        this(path, DEFAULT_SLOTS, retentionMinutes);
+    }
+
+    /**
+     * Open (creating if need be) the shared replay store file.  If the file already exists, the slot count and
+     * retention it was created with win over those given here.
+     *
+     * @param path             path to the shared file, which every consumer process must use
+     * @param slotsPerTable    number of slots in each of the two tables
+     * @param retentionMinutes number of minutes to remember an identifier for
+     */
+    public SharedFileReplayStore(final String path, final int slotsPerTable, final int retentionMinutes) {
+        if (path == null || slotsPerTable <= 0 || retentionMinutes <= 0) {
+            throw new IllegalArgumentException("Shared replay store needs a file path and a positive slot count and retention");
+        }
+        this.path = path;
+        try {
+            file = new RandomAccessFile(new File(path), "rw");
+            channel = file.getChannel();
+            final long[] settings = initialise(slotsPerTable, TimeUnit.MINUTES.toMillis(retentionMinutes));
+            slots = (int) settings[0];
+            epochMillis = settings[1];
+            stripes = Math.max(1, slots / STRIPE_SLOTS);
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + 2L * slots * SLOT_BYTES);
+            // Slots are in the machine's own byte order, as every process sharing the file runs on the one machine
+            mapped.order(ByteOrder.nativeOrder());
+            log.info("Opened shared replay store {} with {} slots per table", path, slots);
+        } catch (IOException anyE) {
+            final String errorMessage = "Error opening shared replay store at " + path;
+            log.error(errorMessage, anyE);
+            throw new RuntimeException(errorMessage, anyE);
+        }
+    }
+
+    /**
+     * @see com.timepoorprogrammer.saml.impls.ReplayStore#add(String)
+     */
+    public boolean add(final String id) {
+        return add(id, System.currentTimeMillis() + epochMillis);
+    }
+
+    /**
+     * The expiry time is capped at the retention period this store was created with, as the epoch scheme can't hold
+     * an identifier for any longer than that, and a warning is logged the first time that happens.
+     *
+     * @see com.timepoorprogrammer.saml.impls.ReplayStore#add(String, long)
+     */
+    public boolean add(final String id, final long expiresAt) {
+        if (id == null) {
+            throw new IllegalArgumentException("Cannot check a null identifier for replay");
+        }
+        final long key = key(id);
+        final long now = System.currentTimeMillis();
+        final long epoch = now / epochMillis;
+        prepareTable(epoch);
+        final long latest = now + epochMillis;
+        if (expiresAt > latest && cappedWarned.compareAndSet(false, true)) {
+            log.warn("Shared replay store {} can only hold identifiers for {} minutes, so is holding some for less "
+                    + "time than asked, increase its retention", path, getRetentionMinutes());
+        }
+        final int stripe = stripe(key);
+        synchronized (STRIPE_LOCKS[stripe % STRIPE_LOCKS.length]) {
+            final FileLock lock = lockStripe(epoch, stripe);
+            try {
+                if (mapped.getLong(tableEpochOffset(epoch - 1)) == epoch - 1 && isHeld(epoch - 1, key, now)) {
+                    return false;
+                }
+                return insert(epoch, key, Math.min(expiresAt, latest), now);
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    /**
+     * Only reads the tables, so never waits on a file lock, and may miss an identifier being recorded at the same time.
+     *
+     * @see com.timepoorprogrammer.saml.impls.ReplayStore#contains(String)
+     */
+    public boolean contains(final String id) {
+        if (id == null) {
+            throw new IllegalArgumentException("Cannot check a null identifier for replay");
+        }
+        final long key = key(id);
+        final long now = System.currentTimeMillis();
+        final long epoch = now / epochMillis;
+        for (long table = epoch - 1; table <= epoch; table++) {
+            if (mapped.getLong(tableEpochOffset(table)) == table && isHeld(table, key, now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @see com.timepoorprogrammer.saml.impls.ReplayStore#getRetentionMinutes()
+     */
+    public int getRetentionMinutes() {
+        return (int) TimeUnit.MILLISECONDS.toMinutes(epochMillis);
+    }
+
+    /**
+     * Get the path to the shared file
+     *
+     * @return path
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Is the digest held and still live in the table for the given epoch?
+     *
+     * @param epoch epoch of the table
+     * @param key   identifier digest
+     * @param now   current time in milliseconds
+     * @return true if held, false otherwise
+     */
+    private boolean isHeld(final long epoch, final long key, final long now) {
+        final int stripe = stripe(key);
+        final int first = stripeStart(stripe);
+        final int length = stripeStart(stripe + 1) - first;
+        final int start = (int) (((key & Long.MAX_VALUE) / stripes) % length);
+        for (int probe = 0; probe < length; probe++) {
+            final int slot = slotOffset(epoch, first + (start + probe) % length);
+            final long slotKey = mapped.getLong(slot);
+            if (slotKey == 0) {
+                return false;
+            }
+            if (slotKey == key) {
+                // An expiry of zero means another process is part way through recording it
+                final long slotExpiry = mapped.getLong(slot + 8);
+                return slotExpiry == 0 || slotExpiry > now;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record the digest in the table for the given epoch unless it is already held and live.  The caller must hold
+     * the lock on the digest's stripe.
+     *
+     * @param epoch     epoch of the table
+     * @param key       identifier digest
+     * @param expiresAt expiry time in milliseconds
+     * @param now       current time in milliseconds
+     * @return true if newly recorded, false if this is a replay
+     */
+    private boolean insert(final long epoch, final long key, final long expiresAt, final long now) {
+        final int stripe = stripe(key);
+        final int first = stripeStart(stripe);
+        final int length = stripeStart(stripe + 1) - first;
+        final int start = (int) (((key & Long.MAX_VALUE) / stripes) % length);
+        for (int probe = 0; probe < length; probe++) {
+            final int slot = slotOffset(epoch, first + (start + probe) % length);
+            final long slotKey = mapped.getLong(slot);
+            if (slotKey == 0) {
+                mapped.putLong(slot + 8, expiresAt);
+                mapped.putLong(slot, key);
+                return true;
+            }
+            if (slotKey == key) {
+                final long slotExpiry = mapped.getLong(slot + 8);
+                if (slotExpiry == 0 || slotExpiry > now) {
+                    return false;
+                }
+                // Held but lapsed, so this counts as new
+                mapped.putLong(slot + 8, expiresAt);
+                return true;
+            }
+        }
+        final String errorMessage = "Shared replay store " + path + " is full, increase the number of slots";
+        log.error(errorMessage);
+        throw new IllegalStateException(errorMessage);
+    }
+
+    /**
+     * Make sure the table for the given epoch has been wiped of whatever it held two epochs ago.
+     *
+     * @param epoch current epoch
+     */
+    private void prepareTable(final long epoch) {
+        final int epochOffset = tableEpochOffset(epoch);
+        if (mapped.getLong(epochOffset) >= epoch) {
+            return;
+        }
+        synchronized (FILE_LOCK) {
+            FileLock lock = null;
+            try {
+                lock = channel.lock(epochOffset, 8, false);
+                if (mapped.getLong(epochOffset) < epoch) {
+                    final ByteBuffer table = mapped.duplicate();
+                    table.position(slotOffset(epoch, 0));
+                    final byte[] zeros = new byte[SLOT_BYTES * STRIPE_SLOTS];
+                    for (long remaining = (long) slots * SLOT_BYTES; remaining > 0; remaining -= zeros.length) {
+                        table.put(zeros, 0, (int) Math.min(zeros.length, remaining));
+                    }
+                    mapped.putLong(epochOffset, epoch);
+                    log.debug("Wiped shared replay store {} table for epoch {}", path, epoch);
+                }
+            } catch (IOException anyE) {
+                final String errorMessage = "Error locking shared replay store at " + path;
+                log.error(errorMessage, anyE);
+                throw new RuntimeException(errorMessage, anyE);
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    /**
+     * Lock the stripe of the table for the given epoch against other processes
+     *
+     * @param epoch  epoch of the table
+     * @param stripe stripe
+     * @return lock
+     */
+    private FileLock lockStripe(final long epoch, final int stripe) {
+        final int first = stripeStart(stripe);
+        try {
+            return channel.lock(slotOffset(epoch, first), (long) (stripeStart(stripe + 1) - first) * SLOT_BYTES, false);
+        } catch (IOException anyE) {
+            final String errorMessage = "Error locking shared replay store at " + path;
+            log.error(errorMessage, anyE);
+            throw new RuntimeException(errorMessage, anyE);
+        }
+    }
+
+    private void release(final FileLock lock) {
+        if (lock != null) {
+            try {
+                lock.release();
+            } catch (IOException e) {
+                log.warn("Unable to release lock on shared replay store", e);
+            }
+        }
+    }
+
+    /**
+     * Get the digest of the identifier, zero being kept to mark an empty slot
+     *
+     * @param id identifier
+     * @return digest
+     */
+    private static long key(final String id) {
+        final long key = IdentifierDigest.digest(id)[0];
+        return key == 0 ? 1 : key;
+    }
+
+    private int stripe(final long key) {
+        return (int) ((key & Long.MAX_VALUE) % stripes);
+    }
+
+    private int stripeStart(final int stripe) {
+        return (int) ((long) stripe * slots / stripes);
+    }
+
+    private int slotOffset(final long epoch, final int slot) {
+        return (int) (HEADER_BYTES + ((epoch & 1) * slots + slot) * SLOT_BYTES);
+    }
+
+    private int tableEpochOffset(final long epoch) {
+        return (int) (TABLE_EPOCH_OFFSET + (epoch & 1) * 8);
+    }
+
+    /**
+     * Create the header if we're the first process to open the file, otherwise check it and pick up its settings.
+     *
+     * @param slotsPerTable slots per table to create the file with
+     * @param retention     retention in milliseconds to create the file with
+     * @return the slots per table and the retention in milliseconds the file uses
+     * @throws IOException on error
+     */
+    private long[] initialise(final long slotsPerTable, final long retention) throws IOException {
+        synchronized (FILE_LOCK) {
+            // Only the header is locked, so as not to overlap the stripe locks of a store on the same file in this JVM
+            final FileLock lock = channel.lock(0, HEADER_BYTES, false);
+            try {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                if (channel.size() == 0) {
+                    file.setLength(HEADER_BYTES + 2 * slotsPerTable * SLOT_BYTES);
+                    header.putLong(MAGIC).putLong(slotsPerTable).putLong(retention);
+                    header.rewind();
+                    channel.write(header, 0);
+                    channel.force(true);
+                    return new long[]{slotsPerTable, retention};
+                }
+                channel.read(header, 0);
+                header.flip();
+                if (header.remaining() < HEADER_BYTES || header.getLong() != MAGIC) {
+                    throw new IOException("File " + path + " is not a shared replay store");
+                }
+                final long fileSlots = header.getLong();
+                final long fileRetention = header.getLong();
+                if (fileSlots != slotsPerTable || fileRetention != retention) {
+                    log.warn("Shared replay store {} already exists with {} slots and {}ms retention, using those", new Object[]{path, fileSlots, fileRetention});
+                }
+                return new long[]{fileSlots, fileRetention};
+            } finally {
+                lock.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.timepoorprogrammer.saml.impls.standard.producer.processor;
+
+import com.timepoorprogrammer.saml.impls.MetaDataHandler;
+import com.timepoorprogrammer.saml.security.encryption.EncryptionAlgorithms;
+import com.timepoorprogrammer.saml.security.encryption.EncryptionContext;
+import com.timepoorprogrammer.saml.security.encryption.SessionKeyReusePolicy;
+import org.opensaml.saml2.metadata.EncryptionMethod;
+import org.opensaml.saml2.metadata.KeyDescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.saml2.metadata.provider.ObservableMetadataProvider;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.UsageType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Encryption contexts by service provider and session key reuse policy, so the encryption algorithm and public key credentials of a service
+ * provider are read from the metadata once rather than for every assertion we encrypt for them.
+ * <p/>
+ * The algorithms used are the best both we and the service provider support, from the encryption methods it lists
+ * against its encryption keys, see EncryptionAlgorithms.  Service providers we shouldn't encrypt for, having no
+ * encryption algorithm or no public key certificate in the metadata, are remembered as such too.  Contexts are shared
+ * by every processor using the same metadata provider, and are thrown away if the provider tells us it has reloaded.
+ * <p/>
+ * The reuse policy is set per service, and more than one service can go to the same service provider, so a context is
+ * kept for each policy a service provider is used with.  A processor asking before its service's policy has been read
+ * from the configuration gets a context without reuse, and the context with the configured policy once it has.
+ *
+ * @author Jim Ball
+ */
+final class EncryptionContextRegistry {
+    private static final Logger log = LoggerFactory.getLogger(EncryptionContextRegistry.class);
+
+    /**
+     * Marks a service provider we don't encrypt for, as a concurrent map can't hold nulls
+     */
+    private static final Object NO_ENCRYPTION = new Object();
+
+    /**
+     * Encryption contexts by metadata provider, then service provider and reuse policy.  Providers are held weakly so
+     * one that has been finished with can go.
+     */
+    private static final Map<MetadataProvider, ConcurrentMap<ContextKey, Object>> CONTEXTS =
+            new WeakHashMap<MetadataProvider, ConcurrentMap<ContextKey, Object>>();
+
+    private EncryptionContextRegistry() {
+    }
+
+    /**
+     * Get the encryption context for the service provider and reuse policy, working it out from the metadata if it
+     * hasn't been already
+     *
+     * @param mdHandler       metadata handler
+     * @param mdProvider      metadata provider
+     * @param serviceProvider service provider details from the metadata
+     * @param spId            service provider SAML entity identifier
+     * @param reusePolicy     session key reuse policy for the service provider
+     * @return encryption context, or null if we don't encrypt for the service provider
+     */
+    static EncryptionContext getInstance(final MetaDataHandler mdHandler, final MetadataProvider mdProvider,
+                                         final SPSSODescriptor serviceProvider, final String spId,
+                                         final SessionKeyReusePolicy reusePolicy) {
+        final ConcurrentMap<ContextKey, Object> contexts = getContexts(mdProvider);
+        final ContextKey key = new ContextKey(spId, reusePolicy);
+        Object context = contexts.get(key);
+        if (context == null) {
+            context = build(mdHandler, mdProvider, serviceProvider, spId, reusePolicy);
+            final Object existing = contexts.putIfAbsent(key, context);
+            if (existing != null) {
+                context = existing;
+            }
+        }
+        return context == NO_ENCRYPTION ? null : (EncryptionContext) context;
+    }
+
+    private static Object build(final MetaDataHandler mdHandler, final MetadataProvider mdProvider,
+                                final SPSSODescriptor serviceProvider, final String spId,
+                                final SessionKeyReusePolicy reusePolicy) {
+        final String algorithm = mdHandler.getEncryptionAlgorithm(serviceProvider);
+        if (algorithm == null) {
+            log.debug("No encryption algorithm defined in the metadata for service provider {}, so not encrypting", spId);
+            return NO_ENCRYPTION;
+        }
+        final Credential encryptionCredentials = mdHandler.getEncryptionCredentials(mdProvider, spId);
+        if (encryptionCredentials == null) {
+            log.debug("No public key certificate found in metadata for service provider {}, so not encrypting", spId);
+            return NO_ENCRYPTION;
+        }
+        final List<String> advertised = getEncryptionMethods(serviceProvider);
+        final EncryptionContext context = new EncryptionContext(encryptionCredentials,
+                EncryptionAlgorithms.selectKeyTransportAlgorithm(advertised),
+                EncryptionAlgorithms.selectContentAlgorithm(advertised), reusePolicy);
+        log.debug("Encrypting for service provider {} with {} and {}", new Object[]{spId,
+                context.getContentAlgorithm(), context.getKeyTransportAlgorithm()});
+        return context;
+    }
+
+    /**
+     * Get every encryption method algorithm the service provider lists against its encryption keys
+     *
+     * @param serviceProvider service provider details from the metadata
+     * @return algorithm URIs
+     */
+    private static List<String> getEncryptionMethods(final SPSSODescriptor serviceProvider) {
+        final List<String> algorithms = new ArrayList<String>();
+        for (KeyDescriptor keyDescriptor : serviceProvider.getKeyDescriptors()) {
+            if (keyDescriptor.getUse() != UsageType.SIGNING) {
+                for (EncryptionMethod encryptionMethod : keyDescriptor.getEncryptionMethods()) {
+                    if (encryptionMethod.getAlgorithm() != null) {
+                        algorithms.add(encryptionMethod.getAlgorithm());
+                    }
+                }
+            }
+        }
+        return algorithms;
+    }
+
+    /**
+     * Get the contexts for the metadata provider, listening for it reloading the first time we see it.
+     *
+     * @param mdProvider metadata provider
+     * @return contexts by service provider and reuse policy
+     */
+    private static ConcurrentMap<ContextKey, Object> getContexts(final MetadataProvider mdProvider) {
+        synchronized (CONTEXTS) {
+            ConcurrentMap<ContextKey, Object> contexts = CONTEXTS.get(mdProvider);
+            if (contexts == null) {
+                contexts = new ConcurrentHashMap<ContextKey, Object>();
+                CONTEXTS.put(mdProvider, contexts);
+                if (mdProvider instanceof ObservableMetadataProvider) {
+                    final ConcurrentMap<ContextKey, Object> toClear = contexts;
+                    ((ObservableMetadataProvider) mdProvider).getObservers().add(new ObservableMetadataProvider.Observer() {
+                        public void onEvent(final MetadataProvider provider) {
+                            log.info("Metadata has changed, discarding service provider encryption contexts");
+                            toClear.clear();
+                        }
+                    });
+                }
+            }
+            return contexts;
+        }
+    }
+
+    /**
+     * Service provider and reuse policy a context is kept for
+     */
+    private static final class ContextKey {
+        private final String spId;
+        private final SessionKeyReusePolicy reusePolicy;
+
+        private ContextKey(final String spId, final SessionKeyReusePolicy reusePolicy) {
+            this.spId = spId;
+            this.reusePolicy = reusePolicy;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ContextKey)) {
+                return false;
+            }
+            final ContextKey that = (ContextKey) o;
+            return spId.equals(that.spId) && reusePolicy.equals(that.reusePolicy);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * spId.hashCode() + reusePolicy.hashCode();
+        }
+    }
+}
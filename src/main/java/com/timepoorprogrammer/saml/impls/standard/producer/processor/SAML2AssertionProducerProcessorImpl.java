@@ -3,7 +3,10 @@ package com.timepoorprogrammer.saml.impls.standard.producer.processor;
 import com.timepoorprogrammer.saml.core.SAML2Handler;
 import com.timepoorprogrammer.saml.impls.MetaDataHandler;
 import com.timepoorprogrammer.saml.impls.SAML2AssertionProducerProcessor;
+import com.timepoorprogrammer.saml.impls.SessionKeyReusePolicyFactory;
 import com.timepoorprogrammer.saml.security.encryption.AsymmetricalSessionKeySAMLEncrypter;
+import com.timepoorprogrammer.saml.security.encryption.EncryptionContext;
+import com.timepoorprogrammer.saml.security.encryption.SessionKeyReusePolicy;
 import com.timepoorprogrammer.saml.security.signature.X509SAMLSignatureCreator;
 import com.timepoorprogrammer.saml.core.SAML2Handler;
 import com.timepoorprogrammer.saml.impls.MetaDataHandler;
@@ -11,7 +14,6 @@ import com.timepoorprogrammer.saml.impls.SAML2AssertionProducerProcessor;
 import com.timepoorprogrammer.saml.security.signature.X509SAMLSignatureCreator;
 import org.opensaml.saml2.core.*;
 import org.opensaml.saml2.metadata.provider.MetadataProvider;
-import org.opensaml.xml.security.credential.Credential;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,6 +35,12 @@ public class SAML2AssertionProducerProcessorImpl extends SAMLAssertionProducerPr
     public int TIME_BEFORE_IN_SECONDS = 30;
     public int TIME_AFTER_IN_MINUTES = 30;
 
+    /**
+     * Session key reuse policy for the destination service, or null to use whatever the SessionKeyReusePolicyFactory
+     * has for it
+     */
+    private volatile SessionKeyReusePolicy reusePolicy;
+
     /**
      * Construct a SAML2 assertion producer processor
      *
@@ -91,20 +99,36 @@ public class SAML2AssertionProducerProcessorImpl extends SAMLAssertionProducerPr
      * @see com.timepoorprogrammer.saml.impls.SAML2AssertionProducerProcessor#getEncrypter()
      */
     public AsymmetricalSessionKeySAMLEncrypter getEncrypter() {
-        // Note, only SAML2 can encrypt assertions
-        AsymmetricalSessionKeySAMLEncrypter encrypter = null;
-        final String algorithm = mdHandler.getEncryptionAlgorithm(serviceProvider);
-        if (algorithm != null) {
-            final Credential encryptionCredentials = mdHandler.getEncryptionCredentials(mdProvider, spId);
-            if (encryptionCredentials != null) {
-                encrypter = new AsymmetricalSessionKeySAMLEncrypter(encryptionCredentials, algorithm);
-            } else {
-                log.debug("No public key certificate found in metadata for service provider {}, so not encrypting", spId);
-            }
-        } else {
-            log.debug("No encryption algorithm defined in the metadata for service provider {}, so not encrypting", spId);
+        // Note, only SAML2 can encrypt assertions.  What we encrypt with is read from the metadata once per
+        // service provider, and each assertion gets a session key of its own unless the service is set up to reuse them.
+        final EncryptionContext encryptionContext = getEncryptionContext();
+        return encryptionContext == null ? null : new AsymmetricalSessionKeySAMLEncrypter(encryptionContext);
+    }
+
+    /**
+     * Get the encryption context for the service provider, which also counts the assertions encrypted and session keys
+     * wrapped for them.
+     *
+     * @return encryption context, or null if we don't encrypt for the service provider
+     */
+    public EncryptionContext getEncryptionContext() {
+        final SessionKeyReusePolicy policy = reusePolicy;
+        return EncryptionContextRegistry.getInstance(mdHandler, mdProvider, serviceProvider, spId,
+                policy == null ? SessionKeyReusePolicyFactory.getInstance(serviceCode) : policy);
+    }
+
+    /**
+     * Inject the session key reuse policy for the destination service, as read from configuration.  Until this is
+     * called the processor uses whatever policy the SessionKeyReusePolicyFactory has for the service, which is no
+     * reuse unless something has already looked the service up with configuration.
+     *
+     * @param reusePolicy session key reuse policy
+     */
+    public void setSessionKeyReusePolicy(final SessionKeyReusePolicy reusePolicy) {
+        if (reusePolicy == null) {
+            throw new IllegalArgumentException("Cannot encrypt assertions without a session key reuse policy");
         }
-        return encrypter;
+        this.reusePolicy = reusePolicy;
     }
 
     /**
@@ -26,6 +26,7 @@ public class SAMLAssertionProducerProcessorBase {
     protected String idpId;
     protected String idpProtocol;
     protected String spId;
+    protected String serviceCode;
     protected MetaDataHandler mdHandler;
     protected MetadataProvider mdProvider;
     protected IDPSSODescriptor identityProvider;
@@ -67,6 +68,7 @@ public class SAMLAssertionProducerProcessorBase {
         // Pickup an audit messenger which amy or may not be bespoked according to the service provider
         // we are sending to
         this.auditMessenger = AuditMessengerFactory.getInstance(serviceCode);
+        this.serviceCode = serviceCode;
     }
 
     /**
@@ -94,6 +96,7 @@ public class SAMLAssertionProducerProcessorBase {
                                               final String signingKeyPassword) {
         setupEntities(mdProvider, idpId, idpProtocol, spId, mdHandler, sigCreator, signingKeyAlias, signingKeyPassword);
         this.auditMessenger = AuditMessengerFactory.getInstance(serviceCode);
+        this.serviceCode = serviceCode;
     }
 
     /**
@@ -0,0 +1,215 @@
+package com.timepoorprogrammer.saml.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of keystore credential handlers, so a keystore is loaded once rather than every time a processor needs a
+ * key out of it, and as the handlers hold on to the private keys they unwrap, the password based decryption of a
+ * private key is done once too.
+ * <p/>
+ * A keystore file's handler is registered against its canonical path and a fingerprint of the keystore password, and
+ * remembers the size and last modified time of the file it was loaded from.  So a keystore file that is replaced is
+ * loaded again and its new handler takes the place of the old one, and a wrong password never gets handed a handler
+ * loaded with the right one.  A keystore stream's handler is registered against a digest of its contents and the
+ * password fingerprint, and only the most recently used of those are kept, as nothing says when a stream's keystore is
+ * finished with.  The password fingerprints are salted with a value made up when the JVM starts, so they are no use
+ * outside it.
+ *
+ * @author Jim Ball
+ */
+public class CredentialRegistry {
+    private static final Logger log = LoggerFactory.getLogger(CredentialRegistry.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Salt for password fingerprints
+     */
+    private static final byte[] SALT = new byte[16];
+
+    static {
+        new SecureRandom().nextBytes(SALT);
+    }
+
+    /**
+     * Most keystore stream handlers kept
+     */
+    public static final int MAX_STREAM_HANDLERS = 16;
+
+    /**
+     * Keystore file handlers by canonical path and password fingerprint
+     */
+    private static final ConcurrentMap<String, FileHandler> FILE_HANDLERS =
+            new ConcurrentHashMap<String, FileHandler>();
+
+    /**
+     * Keystore stream handlers by content digest and password fingerprint, least recently used first
+     */
+    private static final Map<String, KeyStoreCredentialHandler> STREAM_HANDLERS =
+            new LinkedHashMap<String, KeyStoreCredentialHandler>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, KeyStoreCredentialHandler> eldest) {
+                    return size() > MAX_STREAM_HANDLERS;
+                }
+            };
+
+    private CredentialRegistry() {
+    }
+
+    /**
+     * Get the credential handler for the keystore file, loading the keystore if it hasn't been already.
+     *
+     * @param keyStorePath     keystore path
+     * @param keyStorePassword keystore password
+     * @return credential handler
+     */
+    public static KeyStoreCredentialHandler getHandler(final String keyStorePath, final String keyStorePassword) {
+        if (keyStorePath == null || keyStorePassword == null) {
+            throw new IllegalArgumentException("Cannot get a keystore handler without a path and a password");
+        }
+        final File keyStoreFile = new File(keyStorePath);
+        final String key;
+        try {
+            key = keyStoreFile.getCanonicalPath() + ":" + fingerprint(keyStorePassword);
+        } catch (IOException anyE) {
+            final String errorMessage = "Error resolving keystore path " + keyStorePath;
+            log.error(errorMessage, anyE);
+            throw new RuntimeException(errorMessage, anyE);
+        }
+        final long length = keyStoreFile.length();
+        final long lastModified = keyStoreFile.lastModified();
+        final FileHandler existing = FILE_HANDLERS.get(key);
+        if (existing != null && existing.length == length && existing.lastModified == lastModified) {
+            return existing.handler;
+        }
+        final FileHandler loaded =
+                new FileHandler(new KeyStoreCredentialHandler(keyStorePath, keyStorePassword), length, lastModified);
+        final boolean registered = existing == null
+                ? FILE_HANDLERS.putIfAbsent(key, loaded) == null
+                : FILE_HANDLERS.replace(key, existing, loaded);
+        if (registered) {
+            log.debug("Registered keystore credential handler for {}", keyStoreFile);
+            return loaded.handler;
+        }
+        // Another thread got there first, so go with whatever it registered if that is for the file as it is now
+        final FileHandler current = FILE_HANDLERS.get(key);
+        return current != null && current.length == length && current.lastModified == lastModified
+                ? current.handler : loaded.handler;
+    }
+
+    /**
+     * Get the credential handler for the keystore stream, loading the keystore if one with the same contents hasn't
+     * been already.  The stream is read to the end either way.
+     *
+     * @param keyStoreStream   keystore stream
+     * @param keyStorePassword keystore password
+     * @return credential handler
+     */
+    public static KeyStoreCredentialHandler getHandler(final InputStream keyStoreStream, final String keyStorePassword) {
+        if (keyStoreStream == null || keyStorePassword == null) {
+            throw new IllegalArgumentException("Cannot get a keystore handler without a stream and a password");
+        }
+        final byte[] contents = readFully(keyStoreStream);
+        final String key = toHex(digest(contents)) + ":" + fingerprint(keyStorePassword);
+        synchronized (STREAM_HANDLERS) {
+            final KeyStoreCredentialHandler handler = STREAM_HANDLERS.get(key);
+            if (handler != null) {
+                return handler;
+            }
+        }
+        final KeyStoreCredentialHandler loaded =
+                new KeyStoreCredentialHandler(new ByteArrayInputStream(contents), keyStorePassword);
+        synchronized (STREAM_HANDLERS) {
+            final KeyStoreCredentialHandler handler = STREAM_HANDLERS.get(key);
+            if (handler != null) {
+                return handler;
+            }
+            STREAM_HANDLERS.put(key, loaded);
+        }
+        log.debug("Registered keystore credential handler {}", key.substring(0, key.lastIndexOf(':')));
+        return loaded;
+    }
+
+    /**
+     * Forget every registered handler, so keystores are loaded again on next use
+     */
+    public static void clear() {
+        FILE_HANDLERS.clear();
+        synchronized (STREAM_HANDLERS) {
+            STREAM_HANDLERS.clear();
+        }
+    }
+
+    /**
+     * Fingerprint a password so it can be used as part of a registry key without holding the password itself
+     *
+     * @param password password
+     * @return fingerprint
+     */
+    public static String fingerprint(final String password) {
+        final MessageDigest digest = getDigest();
+        digest.update(SALT);
+        return toHex(digest.digest(password.getBytes(UTF8)));
+    }
+
+    private static byte[] readFully(final InputStream in) {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } catch (IOException anyE) {
+            final String errorMessage = "Error reading keystore stream";
+            log.error(errorMessage, anyE);
+            throw new RuntimeException(errorMessage, anyE);
+        }
+    }
+
+    private static byte[] digest(final byte[] contents) {
+        return getDigest().digest(contents);
+    }
+
+    private static MessageDigest getDigest() {
+        return JCAEngines.getMessageDigest("SHA-256");
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Handler for a keystore file, with the size and last modified time of the file it was loaded from
+     */
+    private static final class FileHandler {
+        private final KeyStoreCredentialHandler handler;
+        private final long length;
+        private final long lastModified;
+
+        private FileHandler(final KeyStoreCredentialHandler handler, final long length, final long lastModified) {
+            this.handler = handler;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+}
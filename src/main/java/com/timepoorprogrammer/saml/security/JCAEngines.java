@@ -0,0 +1,84 @@
+package com.timepoorprogrammer.saml.security;
+
+import javax.crypto.KeyGenerator;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per thread cache of JCA engines, so the digests and key generators our own code uses on every request are looked up from
+ * the providers once per thread rather than once per call.
+ * <p/>
+ * JCA engines aren't thread safe, so each thread keeps its own, one per algorithm.  An engine is only good for the
+ * call that gets it: digests come back reset and key generators initialised, and nothing should hold onto an engine
+ * past the call or hand it to another thread.
+ * <p/>
+ * The engines the OpenSAML and XML security libraries use inside signing and encryption are looked up by them and
+ * can't be given to them from here.
+ *
+ * @author Jim Ball
+ */
+public final class JCAEngines {
+    /**
+     * Engines for this thread
+     */
+    private static final ThreadLocal<Engines> ENGINES = new ThreadLocal<Engines>() {
+        @Override
+        protected Engines initialValue() {
+            return new Engines();
+        }
+    };
+
+    private JCAEngines() {
+    }
+
+    /**
+     * Get this thread's message digest for the algorithm, reset ready for use
+     *
+     * @param algorithm digest algorithm, e.g. SHA-256
+     * @return message digest
+     */
+    public static MessageDigest getMessageDigest(final String algorithm) {
+        final Map<String, MessageDigest> engines = ENGINES.get().digests;
+        MessageDigest digest = engines.get(algorithm);
+        if (digest == null) {
+            try {
+                digest = MessageDigest.getInstance(algorithm);
+            } catch (Exception anyE) {
+                throw new RuntimeException(algorithm + " digest is not available", anyE);
+            }
+            engines.put(algorithm, digest);
+        } else {
+            digest.reset();
+        }
+        return digest;
+    }
+
+    /**
+     * Get this thread's key generator for the algorithm and key length, initialised ready for use
+     *
+     * @param algorithm key algorithm, e.g. AES
+     * @param keyLength key length in bits
+     * @return key generator
+     */
+    public static KeyGenerator getKeyGenerator(final String algorithm, final int keyLength) {
+        final Map<String, KeyGenerator> engines = ENGINES.get().keyGenerators;
+        final String key = keyLength + algorithm;
+        KeyGenerator generator = engines.get(key);
+        if (generator == null) {
+            try {
+                generator = KeyGenerator.getInstance(algorithm);
+                generator.init(keyLength);
+            } catch (Exception anyE) {
+                throw new RuntimeException(algorithm + " key generator is not available", anyE);
+            }
+            engines.put(key, generator);
+        }
+        return generator;
+    }
+
+    private static final class Engines {
+        private final Map<String, MessageDigest> digests = new HashMap<String, MessageDigest>(4);
+        private final Map<String, KeyGenerator> keyGenerators = new HashMap<String, KeyGenerator>(4);
+    }
+}
@@ -1,5 +1,7 @@
 package com.timepoorprogrammer.saml.security;
 
+import com.timepoorprogrammer.saml.security.encryption.DecryptionEngine;
+import org.opensaml.saml2.encryption.Decrypter;
 import org.opensaml.xml.security.credential.BasicCredential;
 import org.opensaml.xml.security.x509.BasicX509Credential;
 
@@ -7,18 +9,41 @@ import java.io.InputStream;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Handler class for private credentials that can be extracted from a local keystore for
  * either decryption when dealing with incoming SAML that needs to ve decrypted with a private
  * key or for digital signing when sending SAML out to some third party when we need to create
  * a digital signature with a private key.
+ * <p/>
+ * Unwrapping a private key runs a password based decryption, so a handler holds on to the private keys it has
+ * unwrapped.  Get handlers from the CredentialRegistry so they are shared, and the keystore is loaded and each key
+ * unwrapped once per JVM rather than once per use.  Each call for credentials gets credentials of its own wrapped round
+ * the shared key, so one caller setting things on its credentials can't change them for anyone else.
  *
  * @author Jim Ball
  */
 public class KeyStoreCredentialHandler {
     private KeyStore keyStore;
 
+    /**
+     * Unwrapped private keys by key alias and password fingerprint
+     */
+    private final ConcurrentMap<String, PrivateKey> privateKeys = new ConcurrentHashMap<String, PrivateKey>();
+
+    /**
+     * Decryption engines by key alias and password fingerprint
+     */
+    private final ConcurrentMap<String, DecryptionEngine> decryptionEngines = new ConcurrentHashMap<String, DecryptionEngine>();
+
+    /**
+     * Unwrapped signing keys and their certificates by key alias and password fingerprint
+     */
+    private final ConcurrentMap<String, KeyStore.PrivateKeyEntry> signingEntries =
+            new ConcurrentHashMap<String, KeyStore.PrivateKeyEntry>();
+
     /**
      * Construct with a path to the local keystore and a keystore password.
      *
@@ -46,7 +71,8 @@ public class KeyStoreCredentialHandler {
     }
 
     /**
-     * Get the private credentials required to decrypt a SAMLObject from the local keystore.
+     * Get the private credentials required to decrypt a SAMLObject from the local keystore.  The credentials are the
+     * caller's own, though the private key in them is shared.
      *
      * @param keyAlias    alias for the key
      * @param keyPassword password for the key
@@ -57,14 +83,60 @@ public class KeyStoreCredentialHandler {
         if (keyAlias == null || keyPassword == null) {
             throw new IllegalArgumentException("Cannot get private credentials without a keyAlias and keyPassword");
         }
-        final PrivateKey privateKey = (PrivateKey) KeyStoreReader.getKey(keyStore, keyAlias, keyPassword);
-        BasicCredential privateCredentials = new BasicCredential();
-        privateCredentials.setPrivateKey(privateKey);
-        return privateCredentials;
+        final String key = keyAlias + ":" + CredentialRegistry.fingerprint(keyPassword);
+        PrivateKey privateKey = privateKeys.get(key);
+        if (privateKey == null) {
+            privateKey = (PrivateKey) KeyStoreReader.getKey(keyStore, keyAlias, keyPassword);
+            final PrivateKey existing = privateKeys.putIfAbsent(key, privateKey);
+            if (existing != null) {
+                privateKey = existing;
+            }
+        }
+        final BasicCredential credentials = new BasicCredential();
+        credentials.setPrivateKey(privateKey);
+        return credentials;
+    }
+
+    /**
+     * Get the decryption engine for the private key, which decrypts the session key of an encrypted assertion and
+     * then the assertion, finding the encrypted key in any of the usual places.  The engine is built once per key and
+     * can be shared by any number of threads.
+     *
+     * @param keyAlias    alias for the key
+     * @param keyPassword password for the key
+     * @return decryption engine
+     */
+    public DecryptionEngine getDecryptionEngine(final String keyAlias, final String keyPassword) {
+        if (keyAlias == null || keyPassword == null) {
+            throw new IllegalArgumentException("Cannot get a decryption engine without a keyAlias and keyPassword");
+        }
+        final String key = keyAlias + ":" + CredentialRegistry.fingerprint(keyPassword);
+        DecryptionEngine engine = decryptionEngines.get(key);
+        if (engine == null) {
+            engine = new DecryptionEngine(getPrivateCredentials(keyAlias, keyPassword));
+            final DecryptionEngine existing = decryptionEngines.putIfAbsent(key, engine);
+            if (existing != null) {
+                engine = existing;
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * Get a decrypter that uses the private key to decrypt the session key of an encrypted assertion, finding the
+     * encrypted key in any of the usual places.  This is the decrypter of the key's decryption engine, so is shared.
+     *
+     * @param keyAlias    alias for the key
+     * @param keyPassword password for the key
+     * @return decrypter
+     */
+    public Decrypter getDecrypter(final String keyAlias, final String keyPassword) {
+        return getDecryptionEngine(keyAlias, keyPassword).getDecrypter();
     }
 
     /**
-     * Get the signing credentials required to sign a SAMLObject from the local keystore.
+     * Get the signing credentials required to sign a SAMLObject from the local keystore.  The credentials are the
+     * caller's own, though the private key and certificate in them are shared.
      *
      * @param keyAlias    alias for the key
      * @param keyPassword password for the key
@@ -75,11 +147,19 @@ public class KeyStoreCredentialHandler {
         if (keyAlias == null || keyPassword == null) {
             throw new IllegalArgumentException("Cannot get signing credentials without a keyAlias and keyPassword");
         }
-        KeyStore.PrivateKeyEntry pkEntry = KeyStoreReader.getSigningDetails(keyStore, keyAlias, keyPassword);
+        final String key = keyAlias + ":" + CredentialRegistry.fingerprint(keyPassword);
+        KeyStore.PrivateKeyEntry pkEntry = signingEntries.get(key);
+        if (pkEntry == null) {
+            pkEntry = KeyStoreReader.getSigningDetails(keyStore, keyAlias, keyPassword);
+            final KeyStore.PrivateKeyEntry existing = signingEntries.putIfAbsent(key, pkEntry);
+            if (existing != null) {
+                pkEntry = existing;
+            }
+        }
         X509Certificate certificate = (X509Certificate) pkEntry.getCertificate();
-        final BasicX509Credential signingCredentials = new BasicX509Credential();
-        signingCredentials.setPrivateKey(pkEntry.getPrivateKey());
-        signingCredentials.setEntityCertificate(certificate);
-        return signingCredentials;
+        final BasicX509Credential credentials = new BasicX509Credential();
+        credentials.setPrivateKey(pkEntry.getPrivateKey());
+        credentials.setEntityCertificate(certificate);
+        return credentials;
     }
 }
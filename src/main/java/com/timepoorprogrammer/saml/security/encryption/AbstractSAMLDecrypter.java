@@ -3,21 +3,11 @@ package com.timepoorprogrammer.saml.security.encryption;
 import org.opensaml.saml2.core.Assertion;
 import org.opensaml.saml2.core.EncryptedAssertion;
 import org.opensaml.saml2.encryption.Decrypter;
-import org.opensaml.saml2.encryption.EncryptedElementTypeEncryptedKeyResolver;
-import org.opensaml.xml.encryption.ChainingEncryptedKeyResolver;
-import org.opensaml.xml.encryption.EncryptedKey;
-import org.opensaml.xml.encryption.InlineEncryptedKeyResolver;
-import org.opensaml.xml.encryption.SimpleRetrievalMethodEncryptedKeyResolver;
-import org.opensaml.xml.security.SecurityHelper;
 import org.opensaml.xml.security.credential.BasicCredential;
 import org.opensaml.xml.security.credential.Credential;
-import org.opensaml.xml.security.keyinfo.KeyInfoCredentialResolver;
-import org.opensaml.xml.security.keyinfo.StaticKeyInfoCredentialResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.crypto.SecretKey;
-
 /**
  * Abstract SAML encrypter base class.  The derived classes get the keys and setup the
  * parameters for the Encrypter here using whatever key infrastructure is expected.
@@ -40,6 +30,10 @@ public abstract class AbstractSAMLDecrypter {
      * Private credentials required for decryption
      */
     protected BasicCredential privateCredentials = null;
+    /**
+     * Decryption engine for the private credentials, shared across threads
+     */
+    protected volatile DecryptionEngine decryptionEngine = null;
 
     /**
      * Decrypt an encrypted assertion.  Note this assumes the encrypted assertion contains only ONE encrypted key.
@@ -61,35 +55,22 @@ public abstract class AbstractSAMLDecrypter {
         if (encryptedAssertion == null || privateCredentials == null) {
             throw new IllegalArgumentException("Unable to perform decryption on assertion, missing the assertion and the decryption credentials needed");
         }
-        try {
-            // Get our shared session key from the encrypted assertion
-            EncryptedKey key = encryptedAssertion.getEncryptedData().getKeyInfo().getEncryptedKeys().get(0);
-
-            // Support finding our EncryptedKey in the EncryptedAssertion in a variety of ways, as we cannot assume
-            // a particular type of placement was used by the assertion producer when putting the EncryptedKey into
-            // the XML.
-            ChainingEncryptedKeyResolver encryptedKeyResolver = new ChainingEncryptedKeyResolver();
-            encryptedKeyResolver.getResolverChain().add(new InlineEncryptedKeyResolver());
-            encryptedKeyResolver.getResolverChain().add(new EncryptedElementTypeEncryptedKeyResolver());
-            encryptedKeyResolver.getResolverChain().add(new SimpleRetrievalMethodEncryptedKeyResolver());
-
-            // Create a key resolver using our private asymmetrical encryption key pulled from our local keystore
-            KeyInfoCredentialResolver keyResolver = new StaticKeyInfoCredentialResolver(privateCredentials);
-
-            // Use our private key to decrypt the shared session key and get the credentials associated with
-            // the decrypted shared session key.
-            Decrypter decrypter = new Decrypter(null, keyResolver, encryptedKeyResolver);
-            SecretKey sessionKey = (SecretKey) decrypter.decryptKey(key, encryptedAssertion.getEncryptedData().getEncryptionMethod().getAlgorithm());
-            Credential sessionCredentials = SecurityHelper.getSimpleCredential(sessionKey);
+        return getDecryptionEngine().decryptAssertion(encryptedAssertion);
+    }
 
-            // Decrypt the assertion using our shared session key credentials
-            decrypter = new Decrypter(new StaticKeyInfoCredentialResolver(sessionCredentials), null, null);
-            return decrypter.decrypt(encryptedAssertion);
-        } catch (Exception anyE) {
-            final String errorMessage = "Error decrypting encrypted assertion";
-            log.error(errorMessage, anyE);
-            throw new RuntimeException(errorMessage, anyE);
+    /**
+     * Get the decryption engine for our private credentials, building it the first time it is needed if a derived
+     * class hasn't set one up already
+     *
+     * @return decryption engine
+     */
+    protected DecryptionEngine getDecryptionEngine() {
+        DecryptionEngine engine = decryptionEngine;
+        if (engine == null) {
+            engine = new DecryptionEngine(privateCredentials);
+            decryptionEngine = engine;
         }
+        return engine;
     }
 
     public Credential getPrivateKey() {
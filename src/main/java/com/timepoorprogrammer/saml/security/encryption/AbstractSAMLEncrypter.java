@@ -21,6 +21,10 @@ public abstract class AbstractSAMLEncrypter {
      * OpenSAML encrypter that is setup by a derived class
      */
     protected Encrypter encrypter = null;
+    /**
+     * Encryption context that is setup by a derived class, which gives each assertion a session key of its own
+     */
+    protected EncryptionContext encryptionContext = null;
 
     /**
      * Encrypt an assertion
@@ -29,9 +33,12 @@ public abstract class AbstractSAMLEncrypter {
      * @return encrypted assertion
      */
     public EncryptedAssertion encryptAssertion(final Assertion assertion) {
-        if (assertion == null || encrypter == null) {
+        if (assertion == null || (encrypter == null && encryptionContext == null)) {
             throw new IllegalArgumentException("Unable to perform encryption on assertion, missing the assertion and encrypter required");
         }
+        if (encryptionContext != null) {
+            return encryptionContext.encryptAssertion(assertion);
+        }
         try {
             return encrypter.encrypt(assertion);
         } catch (Exception anyE) {
@@ -1,14 +1,10 @@
 package com.timepoorprogrammer.saml.security.encryption;
 
-import com.timepoorprogrammer.saml.security.KeyStoreReader;
-import com.timepoorprogrammer.saml.security.KeyStoreReader;
-import org.opensaml.xml.security.credential.BasicCredential;
+import com.timepoorprogrammer.saml.security.CredentialRegistry;
+import com.timepoorprogrammer.saml.security.KeyStoreCredentialHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.security.KeyStore;
-import java.security.PrivateKey;
-
 /**
  * Decrypt shared session key on encrypted assertion using the private key pulled from local key store.
  * Then decrypt the full assertion using whatever shared symmetrical encryption mechanism was applied.
@@ -47,11 +43,10 @@ public class AsymmetricalSessionKeySAMLDecrypter extends AbstractSAMLDecrypter {
             throw new IllegalArgumentException("Missing arguments, unable to establish private key credentials required for decryption");
         }
         try {
-            // Obtain the private key credentials from our keystore
-            final KeyStore keyStore = KeyStoreReader.loadKeyStore(keyStorePath, keyStorePassword);
-            final PrivateKey privateKey = (PrivateKey) KeyStoreReader.getKey(keyStore, keyAlias, keyPassword);
-            privateCredentials = new BasicCredential();
-            privateCredentials.setPrivateKey(privateKey);
+            // Obtain the private key credentials and their shared decryption engine from our keystore, which is only loaded the once
+            final KeyStoreCredentialHandler handler = CredentialRegistry.getHandler(keyStorePath, keyStorePassword);
+            privateCredentials = handler.getPrivateCredentials(keyAlias, keyPassword);
+            decryptionEngine = handler.getDecryptionEngine(keyAlias, keyPassword);
         } catch (Exception anyE) {
             final String errorMessage = "Error creating decryption baseline";
             log.error(errorMessage, anyE);
@@ -1,18 +1,12 @@
 package com.timepoorprogrammer.saml.security.encryption;
 
 import com.timepoorprogrammer.saml.security.KeyStoreReader;
-import com.timepoorprogrammer.saml.security.KeyStoreReader;
-import org.opensaml.saml2.encryption.Encrypter;
 import org.opensaml.xml.encryption.EncryptionConstants;
-import org.opensaml.xml.encryption.EncryptionParameters;
-import org.opensaml.xml.encryption.KeyEncryptionParameters;
-import org.opensaml.xml.security.SecurityHelper;
 import org.opensaml.xml.security.credential.BasicCredential;
 import org.opensaml.xml.security.credential.Credential;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.crypto.SecretKey;
 import java.security.KeyStore;
 import java.security.PublicKey;
 import java.security.cert.Certificate;
@@ -32,6 +26,8 @@ import java.security.cert.Certificate;
  * the unencrypted session key to decrypt the assertion.
  * <p/>
  * See page http://braindump.dk/tech/2008/05/14/opensaml-and-xml-encryption/ last section for details.
+ * <p/>
+ * Each assertion encrypted gets a new session key of its own, see the EncryptionContext.
  *
  * @author Jim Ball
  */
@@ -53,28 +49,20 @@ public class AsymmetricalSessionKeySAMLEncrypter extends AbstractSAMLEncrypter {
         if (encryptionCredentials == null || algorithm == null) {
             throw new IllegalArgumentException("Missing encryption credentials and algorithm details required for encryption");
         }
-        try {
-            // Create an AES128 shared session key key we'll place in the outgoing encrypted assertion
-            final SecretKey sessionKey = SecurityHelper.generateSymmetricKey(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128);
-            Credential symmetricCredential = SecurityHelper.getSimpleCredential(sessionKey);
-            EncryptionParameters encParams = new EncryptionParameters();
-            encParams.setAlgorithm(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128);
-            encParams.setEncryptionCredential(symmetricCredential);
-
-            // Setup so we encrypt the shared session key using the destination/recipient's credentials
-            // and have it ready to go in the EncryptedAssertion.
-            KeyEncryptionParameters kek = new KeyEncryptionParameters();
-            kek.setEncryptionCredential(encryptionCredentials);
-            kek.setAlgorithm(algorithm);
+        encryptionContext = new EncryptionContext(encryptionCredentials, algorithm);
+    }
 
-            // Setup the encrypter and make sure we put our shared key in there too inline
-            encrypter = new Encrypter(encParams, kek);
-            encrypter.setKeyPlacement(Encrypter.KeyPlacement.INLINE);
-        } catch (Exception anyE) {
-            final String errorMessage = "Error creating encryption baseline";
-            log.error(errorMessage, anyE);
-            throw new RuntimeException(errorMessage, anyE);
+    /**
+     * Create an Asymmetrical Session Key encrypter for encrypting SAML content for the recipient of an encryption
+     * context already worked out, see the SAML2AssertionProducerProcessor.
+     *
+     * @param encryptionContext encryption context for the recipient
+     */
+    public AsymmetricalSessionKeySAMLEncrypter(final EncryptionContext encryptionContext) {
+        if (encryptionContext == null) {
+            throw new IllegalArgumentException("Missing encryption context required for encryption");
         }
+        this.encryptionContext = encryptionContext;
     }
 
     /**
@@ -91,13 +79,6 @@ public class AsymmetricalSessionKeySAMLEncrypter extends AbstractSAMLEncrypter {
                                                final String keyAlias) {
         try {
             if (keyStorePath != null && keyStorePassword != null && keyAlias != null) {
-                // Create an AES128 shared session key key we'll place in the outgoing encrypted assertion
-                final SecretKey sessionKey = SecurityHelper.generateSymmetricKey(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128);
-                Credential symmetricCredential = SecurityHelper.getSimpleCredential(sessionKey);
-                EncryptionParameters encParams = new EncryptionParameters();
-                encParams.setAlgorithm(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128);
-                encParams.setEncryptionCredential(symmetricCredential);
-
                 // Setup the destination/recipient's public key credentials from our keystore's service certificate
                 final KeyStore keyStore = KeyStoreReader.loadKeyStore(keyStorePath, keyStorePassword);
                 final Certificate serviceCertificate = KeyStoreReader.getCertificate(keyStore, keyAlias);
@@ -105,15 +86,9 @@ public class AsymmetricalSessionKeySAMLEncrypter extends AbstractSAMLEncrypter {
                 final BasicCredential publicCredentials = new BasicCredential();
                 publicCredentials.setPublicKey(publicKey);
 
-                // Setup so we encrypt the shared session key using the destination/recipient's public key from our keystore
-                // and have it ready to go in the EncryptedAssertion.
-                KeyEncryptionParameters kek = new KeyEncryptionParameters();
-                kek.setAlgorithm(EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSA15);
-                kek.setEncryptionCredential(publicCredentials);
-
-                // Setup the encrypter and make sure we put our shared key in there too
-                encrypter = new Encrypter(encParams, kek);
-                encrypter.setKeyPlacement(Encrypter.KeyPlacement.INLINE);
+                // Encrypt each assertion's shared session key using the destination/recipient's public key from our
+                // keystore and have it ready to go in the EncryptedAssertion.
+                encryptionContext = new EncryptionContext(publicCredentials, EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSA15);
             } else {
                 final String errorMessage = "Missing arguments, unable to establish public key credentials";
                 log.error(errorMessage);
@@ -0,0 +1,183 @@
+package com.timepoorprogrammer.saml.security.encryption;
+
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml2.encryption.Decrypter;
+import org.opensaml.saml2.encryption.EncryptedElementTypeEncryptedKeyResolver;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.encryption.ChainingEncryptedKeyResolver;
+import org.opensaml.xml.encryption.EncryptedData;
+import org.opensaml.xml.encryption.EncryptedKey;
+import org.opensaml.xml.encryption.InlineEncryptedKeyResolver;
+import org.opensaml.xml.encryption.SimpleRetrievalMethodEncryptedKeyResolver;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.keyinfo.StaticKeyInfoCredentialResolver;
+import org.opensaml.xml.signature.KeyInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.Key;
+import java.util.Iterator;
+
+/**
+ * Decrypts encrypted assertions with one private key, built once for the key and shared by every thread using it.
+ * <p/>
+ * Encrypted assertions hold the assertion encrypted with a session key, and the session key encrypted with our
+ * public key.  The engine decrypts the session key with our private key and then the assertion with the session key,
+ * using the one decrypter for both, so there are no key resolvers or decrypters to build per assertion.  The
+ * decrypter is only read from once built, and the cipher state it needs is set up by the XML security library per
+ * call, so sharing it between threads is safe.  Decrypting still writes to the document holding the encrypted
+ * assertion, as the decrypted content is put there first, so two encrypted assertions in the same document must not be
+ * decrypted at the same time.  Decrypted assertions are then moved to a new document of their own, so once decrypted
+ * they can be validated at the same time as anything else.
+ * <p/>
+ * We can't assume where the assertion producer put the encrypted session key, so if it isn't in the key information
+ * of the encrypted data we look for it in the usual other places too.
+ * <p/>
+ * Some producers reuse one encrypted session key for many assertions, so session keys we have decrypted are kept in a
+ * SessionKeyCache, and a session key we have seen recently costs a hash lookup rather than a private key operation.
+ *
+ * @author Jim Ball
+ */
+public class DecryptionEngine {
+    /**
+     * Logging handle
+     */
+    private static final Logger log = LoggerFactory.getLogger(DecryptionEngine.class);
+    /**
+     * Decrypter holding our private key, shared by every call
+     */
+    private final Decrypter decrypter;
+    /**
+     * Finds the encrypted session key wherever the producer put it
+     */
+    private final ChainingEncryptedKeyResolver encryptedKeyResolver;
+    /**
+     * Session keys already decrypted with our private key
+     */
+    private final SessionKeyCache sessionKeyCache;
+
+    /**
+     * Construct a decryption engine for the private key
+     *
+     * @param privateCredentials private credentials holding our private decryption key
+     */
+    public DecryptionEngine(final Credential privateCredentials) {
+        this(privateCredentials, new SessionKeyCache());
+    }
+
+    /**
+     * Construct a decryption engine for the private key
+     *
+     * @param privateCredentials private credentials holding our private decryption key
+     * @param sessionKeyCache    cache for session keys decrypted with the private key
+     */
+    public DecryptionEngine(final Credential privateCredentials, final SessionKeyCache sessionKeyCache) {
+        if (privateCredentials == null || sessionKeyCache == null) {
+            throw new IllegalArgumentException("Cannot construct a decryption engine without private credentials");
+        }
+        this.sessionKeyCache = sessionKeyCache;
+        encryptedKeyResolver = new ChainingEncryptedKeyResolver();
+        encryptedKeyResolver.getResolverChain().add(new InlineEncryptedKeyResolver());
+        encryptedKeyResolver.getResolverChain().add(new EncryptedElementTypeEncryptedKeyResolver());
+        encryptedKeyResolver.getResolverChain().add(new SimpleRetrievalMethodEncryptedKeyResolver());
+        decrypter = new Decrypter(null, new StaticKeyInfoCredentialResolver(privateCredentials), encryptedKeyResolver);
+        // Each decrypted assertion gets a document of its own, rather than staying in the response's document
+        decrypter.setRootInNewDocument(true);
+    }
+
+    /**
+     * Get the decrypter, for those who want to decrypt other encrypted elements with our private key
+     *
+     * @return shared decrypter
+     */
+    public Decrypter getDecrypter() {
+        return decrypter;
+    }
+
+    /**
+     * Get the cache of session keys decrypted with our private key
+     *
+     * @return session key cache
+     */
+    public SessionKeyCache getSessionKeyCache() {
+        return sessionKeyCache;
+    }
+
+    /**
+     * Decrypt an encrypted assertion
+     *
+     * @param encryptedAssertion encrypted assertion
+     * @return assertion
+     */
+    public Assertion decryptAssertion(final EncryptedAssertion encryptedAssertion) {
+        if (encryptedAssertion == null) {
+            throw new IllegalArgumentException("Unable to perform decryption on a missing assertion");
+        }
+        try {
+            final EncryptedData encryptedData = encryptedAssertion.getEncryptedData();
+            final Key sessionKey = getSessionKey(getEncryptedKey(encryptedData),
+                    encryptedData.getEncryptionMethod().getAlgorithm());
+            final XMLObject decrypted = decrypter.decryptData(encryptedData, sessionKey);
+            if (!(decrypted instanceof Assertion)) {
+                throw new RuntimeException("Encrypted assertion didn't hold an assertion");
+            }
+            return (Assertion) decrypted;
+        } catch (Exception anyE) {
+            final String errorMessage = "Error decrypting encrypted assertion";
+            log.error(errorMessage, anyE);
+            throw new RuntimeException(errorMessage, anyE);
+        }
+    }
+
+    /**
+     * Get the session key, from the cache if we have decrypted the same encrypted session key recently, otherwise by
+     * decrypting it with our private key
+     *
+     * @param encryptedKey     encrypted session key
+     * @param contentAlgorithm algorithm the session key is for
+     * @return session key
+     * @throws Exception on error
+     */
+    private Key getSessionKey(final EncryptedKey encryptedKey, final String contentAlgorithm) throws Exception {
+        final String wrappedKey = getCipherValue(encryptedKey);
+        if (wrappedKey == null) {
+            return decrypter.decryptKey(encryptedKey, contentAlgorithm);
+        }
+        final String keyTransportAlgorithm = encryptedKey.getEncryptionMethod() == null
+                ? null : encryptedKey.getEncryptionMethod().getAlgorithm();
+        final String cacheKey = SessionKeyCache.cacheKey(wrappedKey, keyTransportAlgorithm, contentAlgorithm);
+        Key sessionKey = sessionKeyCache.get(cacheKey);
+        if (sessionKey == null) {
+            sessionKey = decrypter.decryptKey(encryptedKey, contentAlgorithm);
+            sessionKeyCache.put(cacheKey, sessionKey);
+        }
+        return sessionKey;
+    }
+
+    private static String getCipherValue(final EncryptedKey encryptedKey) {
+        if (encryptedKey.getCipherData() == null || encryptedKey.getCipherData().getCipherValue() == null) {
+            return null;
+        }
+        return encryptedKey.getCipherData().getCipherValue().getValue();
+    }
+
+    /**
+     * Get the encrypted session key, which is usually inline in the key information of the encrypted data
+     *
+     * @param encryptedData encrypted data
+     * @return encrypted session key
+     * @throws Exception on error
+     */
+    private EncryptedKey getEncryptedKey(final EncryptedData encryptedData) throws Exception {
+        final KeyInfo keyInfo = encryptedData.getKeyInfo();
+        if (keyInfo != null && !keyInfo.getEncryptedKeys().isEmpty()) {
+            return keyInfo.getEncryptedKeys().get(0);
+        }
+        final Iterator<EncryptedKey> encryptedKeys = encryptedKeyResolver.resolve(encryptedData).iterator();
+        if (encryptedKeys.hasNext()) {
+            return encryptedKeys.next();
+        }
+        throw new RuntimeException("Encrypted assertion holds no encrypted session key");
+    }
+}
@@ -0,0 +1,129 @@
+package com.timepoorprogrammer.saml.security.encryption;
+
+import org.apache.xml.security.algorithms.JCEMapper;
+import org.opensaml.xml.encryption.EncryptionConstants;
+
+import javax.crypto.Cipher;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Picks the algorithms to encrypt assertions for a recipient with, from the ones they list in the EncryptionMethod
+ * elements of their metadata, best first.
+ * <p/>
+ * For encrypting the assertion itself we prefer AES-GCM, which is authenticated and makes the most of the AES and
+ * carry-less multiply instructions of current processors, then AES-CBC, in each case with a 256 bit key before a 128
+ * bit one.  For encrypting the session key we prefer RSA-OAEP to RSA 1.5.  An algorithm is only picked if the XML
+ * security library and the JDK can both do it here, so on an older stack GCM is passed over for CBC.  A recipient
+ * that lists no algorithm of a kind we can use gets what we have always sent, being AES-128-CBC and RSA 1.5.
+ *
+ * @author Jim Ball
+ */
+public class EncryptionAlgorithms {
+    /**
+     * AES-128-GCM content encryption algorithm URI, see XML Encryption 1.1
+     */
+    public static final String ALGO_ID_BLOCKCIPHER_AES128_GCM = "http://www.w3.org/2009/xmlenc11#aes128-gcm";
+
+    /**
+     * AES-256-GCM content encryption algorithm URI, see XML Encryption 1.1
+     */
+    public static final String ALGO_ID_BLOCKCIPHER_AES256_GCM = "http://www.w3.org/2009/xmlenc11#aes256-gcm";
+
+    /**
+     * Content encryption algorithms we can use, best first
+     */
+    private static final List<String> CONTENT_ALGORITHMS = Collections.unmodifiableList(Arrays.asList(
+            ALGO_ID_BLOCKCIPHER_AES256_GCM,
+            ALGO_ID_BLOCKCIPHER_AES128_GCM,
+            EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES256,
+            EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128));
+
+    /**
+     * Key transport algorithms we can use, best first
+     */
+    private static final List<String> KEY_TRANSPORT_ALGORITHMS = Collections.unmodifiableList(Arrays.asList(
+            EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSAOAEP,
+            EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSA15));
+
+    private EncryptionAlgorithms() {
+    }
+
+    /**
+     * Pick the content encryption algorithm to use for a recipient
+     *
+     * @param advertised algorithms listed in the recipient's metadata
+     * @return content encryption algorithm URI
+     */
+    public static String selectContentAlgorithm(final Collection<String> advertised) {
+        return select(CONTENT_ALGORITHMS, advertised, EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128);
+    }
+
+    /**
+     * Pick the key transport algorithm to use for a recipient
+     *
+     * @param advertised algorithms listed in the recipient's metadata
+     * @return key transport algorithm URI
+     */
+    public static String selectKeyTransportAlgorithm(final Collection<String> advertised) {
+        return select(KEY_TRANSPORT_ALGORITHMS, advertised, EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSA15);
+    }
+
+    /**
+     * Is the algorithm a content encryption algorithm rather than a key transport one?
+     *
+     * @param algorithmURI algorithm URI
+     * @return true if a content encryption algorithm we know, false otherwise
+     */
+    public static boolean isContentAlgorithm(final String algorithmURI) {
+        return CONTENT_ALGORITHMS.contains(algorithmURI);
+    }
+
+    /**
+     * Get the session key length in bits for the content encryption algorithm
+     *
+     * @param contentAlgorithmURI content encryption algorithm URI
+     * @return key length in bits
+     */
+    public static int getKeyLength(final String contentAlgorithmURI) {
+        return ALGO_ID_BLOCKCIPHER_AES256_GCM.equals(contentAlgorithmURI)
+                || EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES256.equals(contentAlgorithmURI) ? 256 : 128;
+    }
+
+    /**
+     * Is the algorithm one both the XML security library and the JDK can encrypt with?
+     *
+     * @param algorithmURI algorithm URI
+     * @return true if supported, false otherwise
+     */
+    public static boolean isSupported(final String algorithmURI) {
+        try {
+            final String jceName = JCEMapper.translateURItoJCEID(algorithmURI);
+            if (jceName == null) {
+                return false;
+            }
+            Cipher.getInstance(jceName);
+            return !isContentAlgorithm(algorithmURI) || Cipher.getMaxAllowedKeyLength("AES") >= getKeyLength(algorithmURI);
+        } catch (Exception anyE) {
+            return false;
+        }
+    }
+
+    /**
+     * Pick the first of our preferred algorithms the recipient lists and we support, falling back to our default if
+     * there isn't one.
+     */
+    private static String select(final List<String> preferred, final Collection<String> advertised, final String fallback) {
+        if (advertised == null) {
+            return fallback;
+        }
+        for (String algorithm : preferred) {
+            if (advertised.contains(algorithm) && isSupported(algorithm)) {
+                return algorithm;
+            }
+        }
+        return fallback;
+    }
+}
@@ -0,0 +1,310 @@
+package com.timepoorprogrammer.saml.security.encryption;
+
+import com.timepoorprogrammer.saml.security.JCAEngines;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml2.encryption.Encrypter;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.encryption.EncryptedData;
+import org.opensaml.xml.encryption.EncryptedKey;
+import org.opensaml.xml.encryption.EncryptionConstants;
+import org.opensaml.xml.encryption.EncryptionParameters;
+import org.opensaml.xml.encryption.KeyEncryptionParameters;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.signature.KeyInfo;
+import org.opensaml.xml.util.XMLObjectHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.SecretKey;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * What is needed to encrypt assertions for one recipient, being their public key credential and the algorithms to
+ * encrypt session keys and assertions with, worked out once and shared by every thread encrypting for them.
+ * <p/>
+ * By default every assertion gets a session key of its own, never one shared with another assertion.  Session keys
+ * come from AES key generators kept per thread and key length by JCAEngines, so making one is a call to the generator
+ * rather than a provider lookup and a new generator each time.
+ * <p/>
+ * A recipient with a SessionKeyReusePolicy that allows reuse instead has one session key, wrapped with their public
+ * key the once, used for a number of assertions or seconds before a new one replaces it.  Only the assertion itself
+ * is encrypted per assertion, with an initialisation vector of its own, and the wrapped session key is copied in.
+ * The counts of assertions encrypted and session keys wrapped show how much wrapping reuse is saving.
+ *
+ * @author Jim Ball
+ */
+public class EncryptionContext {
+    /**
+     * Logging handle
+     */
+    private static final Logger log = LoggerFactory.getLogger(EncryptionContext.class);
+
+    /**
+     * Algorithm assertions are encrypted with using the session key unless told otherwise
+     */
+    public static final String DEFAULT_CONTENT_ALGORITHM = EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128;
+
+    private final Credential encryptionCredentials;
+    private final String keyTransportAlgorithm;
+    private final String contentAlgorithm;
+    private final int sessionKeyLength;
+    private final SessionKeyReusePolicy reusePolicy;
+
+    /**
+     * Session key currently being reused, if the reuse policy allows reuse
+     */
+    private final AtomicReference<WrappedSessionKey> currentSessionKey = new AtomicReference<WrappedSessionKey>();
+    private final AtomicLong assertionsEncrypted = new AtomicLong();
+    private final AtomicLong sessionKeysWrapped = new AtomicLong();
+
+    /**
+     * Construct an encryption context for a recipient, encrypting assertions with AES-128-CBC
+     *
+     * @param encryptionCredentials recipient's public key credentials
+     * @param keyTransportAlgorithm algorithm to encrypt session keys with
+     */
+    public EncryptionContext(final Credential encryptionCredentials, final String keyTransportAlgorithm) {
+        this(encryptionCredentials, keyTransportAlgorithm, DEFAULT_CONTENT_ALGORITHM);
+    }
+
+    /**
+     * Construct an encryption context for a recipient
+     *
+     * @param encryptionCredentials recipient's public key credentials
+     * @param keyTransportAlgorithm algorithm to encrypt session keys with
+     * @param contentAlgorithm      algorithm to encrypt assertions with, see EncryptionAlgorithms
+     */
+    public EncryptionContext(final Credential encryptionCredentials, final String keyTransportAlgorithm,
+                             final String contentAlgorithm) {
+        this(encryptionCredentials, keyTransportAlgorithm, contentAlgorithm, SessionKeyReusePolicy.NONE);
+    }
+
+    /**
+     * Construct an encryption context for a recipient
+     *
+     * @param encryptionCredentials recipient's public key credentials
+     * @param keyTransportAlgorithm algorithm to encrypt session keys with
+     * @param contentAlgorithm      algorithm to encrypt assertions with, see EncryptionAlgorithms
+     * @param reusePolicy           how long a session key may be used for
+     */
+    public EncryptionContext(final Credential encryptionCredentials, final String keyTransportAlgorithm,
+                             final String contentAlgorithm, final SessionKeyReusePolicy reusePolicy) {
+        if (encryptionCredentials == null || keyTransportAlgorithm == null || contentAlgorithm == null || reusePolicy == null) {
+            throw new IllegalArgumentException("Missing encryption credentials and algorithm details required for encryption");
+        }
+        this.encryptionCredentials = encryptionCredentials;
+        this.keyTransportAlgorithm = keyTransportAlgorithm;
+        this.contentAlgorithm = contentAlgorithm;
+        this.sessionKeyLength = EncryptionAlgorithms.getKeyLength(contentAlgorithm);
+        this.reusePolicy = reusePolicy;
+    }
+
+    /**
+     * Encrypt an assertion, putting the session key encrypted with the recipient's public key inline in the encrypted
+     * assertion.  The session key is a new one unless the reuse policy allows the current one to be used again.
+     *
+     * @param assertion assertion
+     * @return encrypted assertion
+     */
+    public EncryptedAssertion encryptAssertion(final Assertion assertion) {
+        if (assertion == null) {
+            throw new IllegalArgumentException("Unable to perform encryption on a missing assertion");
+        }
+        if (reusePolicy.isReuse()) {
+            return encryptAssertion(assertion, getWrappedSessionKey());
+        }
+        try {
+            final SecretKey sessionKey = JCAEngines.getKeyGenerator("AES", sessionKeyLength).generateKey();
+            final EncryptionParameters encParams = new EncryptionParameters();
+            encParams.setAlgorithm(contentAlgorithm);
+            encParams.setEncryptionCredential(SecurityHelper.getSimpleCredential(sessionKey));
+
+            final KeyEncryptionParameters kek = new KeyEncryptionParameters();
+            kek.setEncryptionCredential(encryptionCredentials);
+            kek.setAlgorithm(keyTransportAlgorithm);
+
+            final Encrypter encrypter = new Encrypter(encParams, kek);
+            encrypter.setKeyPlacement(Encrypter.KeyPlacement.INLINE);
+            final EncryptedAssertion encryptedAssertion = encrypter.encrypt(assertion);
+            sessionKeysWrapped.incrementAndGet();
+            assertionsEncrypted.incrementAndGet();
+            return encryptedAssertion;
+        } catch (Exception anyE) {
+            final String errorMessage = "Error encrypting assertion";
+            log.error(errorMessage, anyE);
+            throw new RuntimeException(errorMessage, anyE);
+        }
+    }
+
+    /**
+     * Encrypt an assertion with a session key that has already been wrapped, copying the wrapped key in
+     *
+     * @param assertion  assertion
+     * @param sessionKey wrapped session key
+     * @return encrypted assertion
+     */
+    private EncryptedAssertion encryptAssertion(final Assertion assertion, final WrappedSessionKey sessionKey) {
+        try {
+            final EncryptionParameters encParams = new EncryptionParameters();
+            encParams.setAlgorithm(contentAlgorithm);
+            encParams.setEncryptionCredential(SecurityHelper.getSimpleCredential(sessionKey.key));
+            final EncryptedData encryptedData = new org.opensaml.xml.encryption.Encrypter().encryptElement(assertion, encParams);
+
+            final KeyInfo keyInfo = (KeyInfo) Configuration.getBuilderFactory().getBuilder(KeyInfo.DEFAULT_ELEMENT_NAME)
+                    .buildObject(KeyInfo.DEFAULT_ELEMENT_NAME);
+            keyInfo.getEncryptedKeys().add(sessionKey.copyEncryptedKey());
+            encryptedData.setKeyInfo(keyInfo);
+
+            final EncryptedAssertion encryptedAssertion = (EncryptedAssertion) Configuration.getBuilderFactory()
+                    .getBuilder(EncryptedAssertion.DEFAULT_ELEMENT_NAME).buildObject(EncryptedAssertion.DEFAULT_ELEMENT_NAME);
+            encryptedAssertion.setEncryptedData(encryptedData);
+            assertionsEncrypted.incrementAndGet();
+            return encryptedAssertion;
+        } catch (Exception anyE) {
+            final String errorMessage = "Error encrypting assertion";
+            log.error(errorMessage, anyE);
+            throw new RuntimeException(errorMessage, anyE);
+        }
+    }
+
+    /**
+     * Get the session key to use for the next assertion, making and wrapping a new one if the current one has been
+     * used as often or for as long as the reuse policy allows.  Threads that find the current key used up at the
+     * same time may each make one, in which case the last to finish is kept for the threads that follow.
+     *
+     * @return wrapped session key
+     */
+    private WrappedSessionKey getWrappedSessionKey() {
+        final WrappedSessionKey current = currentSessionKey.get();
+        if (current != null && current.use(reusePolicy.getMaxAssertions())) {
+            return current;
+        }
+        final WrappedSessionKey fresh = wrapSessionKey();
+        currentSessionKey.set(fresh);
+        log.debug("Rotated session key, {} assertions encrypted with {} session keys wrapped", assertionsEncrypted.get(),
+                sessionKeysWrapped.get());
+        return fresh;
+    }
+
+    /**
+     * Make a new session key and wrap it with the recipient's public key
+     *
+     * @return wrapped session key, counted as used once
+     */
+    private WrappedSessionKey wrapSessionKey() {
+        try {
+            final SecretKey sessionKey = JCAEngines.getKeyGenerator("AES", sessionKeyLength).generateKey();
+            final KeyEncryptionParameters kek = new KeyEncryptionParameters();
+            kek.setEncryptionCredential(encryptionCredentials);
+            kek.setAlgorithm(keyTransportAlgorithm);
+            final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+            documentBuilderFactory.setNamespaceAware(true);
+            final EncryptedKey encryptedKey = new org.opensaml.xml.encryption.Encrypter().encryptKey(sessionKey, kek,
+                    documentBuilderFactory.newDocumentBuilder().newDocument());
+            sessionKeysWrapped.incrementAndGet();
+            return new WrappedSessionKey(sessionKey, encryptedKey,
+                    System.nanoTime() + TimeUnit.SECONDS.toNanos(reusePolicy.getMaxSeconds()));
+        } catch (Exception anyE) {
+            final String errorMessage = "Error wrapping session key";
+            log.error(errorMessage, anyE);
+            throw new RuntimeException(errorMessage, anyE);
+        }
+    }
+
+    /**
+     * Get the recipient's public key credentials
+     *
+     * @return encryption credentials
+     */
+    public Credential getEncryptionCredentials() {
+        return encryptionCredentials;
+    }
+
+    /**
+     * Get the algorithm session keys are encrypted with
+     *
+     * @return key transport algorithm
+     */
+    public String getKeyTransportAlgorithm() {
+        return keyTransportAlgorithm;
+    }
+
+    /**
+     * Get the algorithm assertions are encrypted with
+     *
+     * @return content encryption algorithm
+     */
+    public String getContentAlgorithm() {
+        return contentAlgorithm;
+    }
+
+    /**
+     * Get the policy for how long a session key is used for
+     *
+     * @return session key reuse policy
+     */
+    public SessionKeyReusePolicy getReusePolicy() {
+        return reusePolicy;
+    }
+
+    /**
+     * Get the number of assertions encrypted so far
+     *
+     * @return assertions encrypted
+     */
+    public long getAssertionsEncrypted() {
+        return assertionsEncrypted.get();
+    }
+
+    /**
+     * Get the number of session keys wrapped with the recipient's public key so far
+     *
+     * @return session keys wrapped
+     */
+    public long getSessionKeysWrapped() {
+        return sessionKeysWrapped.get();
+    }
+
+    /**
+     * A session key, its wrapped copy, and how much it has been used
+     */
+    private static final class WrappedSessionKey {
+        private final SecretKey key;
+        private final EncryptedKey encryptedKey;
+        private final long expiresAt;
+        private final AtomicInteger uses = new AtomicInteger(1);
+
+        private WrappedSessionKey(final SecretKey key, final EncryptedKey encryptedKey, final long expiresAt) {
+            this.key = key;
+            this.encryptedKey = encryptedKey;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Use the key for another assertion if it hasn't expired or been used as often as allowed
+         *
+         * @param maxUses most assertions the key may be used for
+         * @return true if the key can be used, false otherwise
+         */
+        private boolean use(final int maxUses) {
+            return System.nanoTime() - expiresAt < 0 && uses.incrementAndGet() <= maxUses;
+        }
+
+        /**
+         * Copy the wrapped key, as an element can only have the one parent.  Copying reads the wrapped key's DOM,
+         * which isn't safe for threads to do at the same time.
+         *
+         * @return copy of the wrapped key
+         * @throws Exception on error
+         */
+        private synchronized EncryptedKey copyEncryptedKey() throws Exception {
+            return XMLObjectHelper.cloneXMLObject(encryptedKey);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.timepoorprogrammer.saml.security.encryption;
+
+import com.timepoorprogrammer.saml.security.JCAEngines;
+
+import java.io.UnsupportedEncodingException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Session keys we have already decrypted with our private key, so a producer that reuses one wrapped session key for
+ * many assertions costs us one private key operation for the lot rather than one per assertion.
+ * <p/>
+ * Keys are held by a SHA-256 digest of the wrapped session key along with the algorithms it was wrapped for, so a
+ * lookup is one digest of a few hundred bytes and a hash lookup.  The cache holds a limited number of keys, dropping
+ * the least recently used first, and forgets a key a while after it was first decrypted whether it is still being
+ * used or not.  Each cache belongs to one DecryptionEngine, and so to one of our private keys.
+ *
+ * @author Jim Ball
+ */
+public class SessionKeyCache {
+    /**
+     * Number of session keys held unless told otherwise
+     */
+    public static final int DEFAULT_MAX_KEYS = 1024;
+
+    /**
+     * Number of seconds a session key is held for unless told otherwise
+     */
+    public static final int DEFAULT_RETENTION_SECONDS = 300;
+
+    private final Map<String, CachedKey> keys;
+    private final long retentionNanos;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Construct a session key cache with the default size and retention
+     */
+    public SessionKeyCache() {
+        this(DEFAULT_MAX_KEYS, DEFAULT_RETENTION_SECONDS);
+    }
+
+    /**
+     * Construct a session key cache
+     *
+     * @param maxKeys          most session keys to hold
+     * @param retentionSeconds number of seconds to hold a session key for
+     */
+    public SessionKeyCache(final int maxKeys, final int retentionSeconds) {
+        if (maxKeys <= 0 || retentionSeconds <= 0) {
+            throw new IllegalArgumentException("Session key cache size and retention must both be positive");
+        }
+        this.retentionNanos = TimeUnit.SECONDS.toNanos(retentionSeconds);
+        this.keys = new LinkedHashMap<String, CachedKey>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CachedKey> eldest) {
+                return size() > maxKeys;
+            }
+        };
+    }
+
+    /**
+     * Work out the cache key for a wrapped session key
+     *
+     * @param wrappedKey            base64 cipher value of the wrapped session key
+     * @param keyTransportAlgorithm algorithm the session key was wrapped with
+     * @param contentAlgorithm      algorithm the session key is for
+     * @return cache key
+     */
+    public static String cacheKey(final String wrappedKey, final String keyTransportAlgorithm, final String contentAlgorithm) {
+        try {
+            final MessageDigest digest = JCAEngines.getMessageDigest("SHA-256");
+            digest.update(String.valueOf(keyTransportAlgorithm).getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(contentAlgorithm).getBytes("UTF-8"));
+            digest.update((byte) 0);
+            final byte[] hash = digest.digest(wrappedKey.getBytes("UTF-8"));
+            final StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (UnsupportedEncodingException anyE) {
+            throw new RuntimeException("UTF-8 is not available", anyE);
+        }
+    }
+
+    /**
+     * Get a session key we have already decrypted
+     *
+     * @param cacheKey cache key, see cacheKey
+     * @return session key, or null if we don't have it
+     */
+    public Key get(final String cacheKey) {
+        final CachedKey cached;
+        synchronized (keys) {
+            cached = keys.get(cacheKey);
+            if (cached != null && System.nanoTime() - cached.expiresAt >= 0) {
+                keys.remove(cacheKey);
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+        if (cached == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return cached.key;
+    }
+
+    /**
+     * Hold a session key we have just decrypted
+     *
+     * @param cacheKey cache key, see cacheKey
+     * @param key      session key
+     */
+    public void put(final String cacheKey, final Key key) {
+        final CachedKey cached = new CachedKey(key, System.nanoTime() + retentionNanos);
+        synchronized (keys) {
+            keys.put(cacheKey, cached);
+        }
+    }
+
+    /**
+     * Get the number of session keys held, including any that have lapsed but not yet been looked up
+     *
+     * @return number of session keys held
+     */
+    public int size() {
+        synchronized (keys) {
+            return keys.size();
+        }
+    }
+
+    /**
+     * Get the number of lookups that found a session key, and so saved a private key operation
+     *
+     * @return hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of lookups that didn't find a session key
+     *
+     * @return misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static final class CachedKey {
+        private final Key key;
+        private final long expiresAt;
+
+        private CachedKey(final Key key, final long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.timepoorprogrammer.saml.security.encryption;
+
+import java.io.Serializable;
+
+/**
+ * How long an encryption context may keep using one session key, and so one RSA wrapped copy of it, before making a
+ * new one.
+ * <p/>
+ * Wrapping a session key with the recipient's public key is the dearest part of encrypting an assertion.  A recipient
+ * we send a lot of assertions to can be set up to have a session key used for up to a number of assertions or a
+ * number of seconds, whichever comes first, after which a new key is made and wrapped.  Each assertion is still
+ * encrypted with an initialisation vector of its own, so two assertions never share ciphertext even when they share
+ * a key.  The default is no reuse at all, being a new session key for every assertion.
+ *
+ * @author Jim Ball
+ */
+public class SessionKeyReusePolicy implements Serializable {
+    private static final long serialVersionUID = -3390482315771652384L;
+
+    /**
+     * A new session key for every assertion
+     */
+    public static final SessionKeyReusePolicy NONE = new SessionKeyReusePolicy(1, 0);
+
+    private final int maxAssertions;
+    private final int maxSeconds;
+
+    /**
+     * Construct a session key reuse policy
+     *
+     * @param maxAssertions most assertions to encrypt with one session key, 1 meaning no reuse
+     * @param maxSeconds    most seconds to keep using one session key for
+     */
+    public SessionKeyReusePolicy(final int maxAssertions, final int maxSeconds) {
+        if (maxAssertions < 1 || maxSeconds < 0) {
+            throw new IllegalArgumentException("Session key reuse needs at least one assertion per key and a non-negative number of seconds");
+        }
+        this.maxAssertions = maxAssertions;
+        this.maxSeconds = maxSeconds;
+    }
+
+    /**
+     * Are session keys reused at all?
+     *
+     * @return true if a session key can be used for more than one assertion, false otherwise
+     */
+    public boolean isReuse() {
+        return maxAssertions > 1 && maxSeconds > 0;
+    }
+
+    public int getMaxAssertions() {
+        return maxAssertions;
+    }
+
+    public int getMaxSeconds() {
+        return maxSeconds;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SessionKeyReusePolicy)) {
+            return false;
+        }
+        final SessionKeyReusePolicy that = (SessionKeyReusePolicy) o;
+        return maxAssertions == that.maxAssertions && maxSeconds == that.maxSeconds;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * maxAssertions + maxSeconds;
+    }
+
+    public String toString() {
+        return "SessionKeyReusePolicy{" +
+                "maxAssertions=" + maxAssertions +
+                ", maxSeconds=" + maxSeconds +
+                '}';
+    }
+}
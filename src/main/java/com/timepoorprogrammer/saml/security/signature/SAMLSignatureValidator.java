@@ -1,6 +1,5 @@
 package com.timepoorprogrammer.saml.security.signature;
 
-import com.timepoorprogrammer.saml.security.KeyStoreReader;
 import com.timepoorprogrammer.saml.security.KeyStoreReader;
 import org.opensaml.saml2.core.Assertion;
 import org.opensaml.saml2.core.Response;
@@ -18,6 +17,9 @@ import java.security.cert.Certificate;
 /**
  * SAML signature validator.  If coming from metadata, we can use a more advanced technique
  * that uses trust engines.
+ * <p/>
+ * A validator either checks signatures from the single partner whose certificate alias it was made with, or
+ * signatures from any partner with a certificate in a trust keystore.
  *
  * @author Jim Ball
  */
@@ -30,6 +32,10 @@ public class SAMLSignatureValidator {
      * Signature to apply
      */
     private SignatureValidator sigValidator = null;
+    /**
+     * Trusted certificates of every partner, when not checking signatures from a single partner
+     */
+    private TrustedCertificateIndex trustedCertificates = null;
 
     /**
      * Create a signature with which we can sign SAML objects
@@ -56,6 +62,33 @@ public class SAMLSignatureValidator {
         sigValidator = new SignatureValidator(credential);
     }
 
+    /**
+     * Create a signature validator for signatures from any of the partners whose certificates are in the trust
+     * keystore, loading and indexing every certificate in it once.  See TrustedCertificateIndex for how the key for
+     * a signature is picked.
+     *
+     * @param keyStorePath     path to trust key store
+     * @param keyStorePassword password for trust key store
+     */
+    public SAMLSignatureValidator(final String keyStorePath, final String keyStorePassword) {
+        if (keyStorePath == null || keyStorePassword == null) {
+            throw new IllegalArgumentException("Missing arguments, unable to create signature validator");
+        }
+        trustedCertificates = new TrustedCertificateIndex(keyStorePath, keyStorePassword);
+    }
+
+    /**
+     * Create a signature validator for signatures from any of the partners whose certificates are in the index
+     *
+     * @param trustedCertificates index of trusted certificates
+     */
+    public SAMLSignatureValidator(final TrustedCertificateIndex trustedCertificates) {
+        if (trustedCertificates == null) {
+            throw new IllegalArgumentException("Missing arguments, unable to create signature validator");
+        }
+        this.trustedCertificates = trustedCertificates;
+    }
+
     /**
      * Is the signed response valid?
      *
@@ -63,21 +96,7 @@ public class SAMLSignatureValidator {
      * @return true if signature is valid false otherwise
      */
     public boolean isValid(final Response response) {
-        boolean isValid = true;
-        Signature signature = response.getSignature();
-        if (signature != null) {
-            try {
-                sigValidator.validate(signature);
-            } catch (ValidationException ve) {
-                log.info("Signature is invalid, access denied");
-                isValid = false;
-            }
-            return isValid;
-        } else {
-            final String errorMessage = "Resource is not signed";
-            log.error(errorMessage);
-            throw new RuntimeException(errorMessage);
-        }
+        return isValid(response.getSignature(), response.getIssuer() == null ? null : response.getIssuer().getValue());
     }
 
     /**
@@ -87,20 +106,34 @@ public class SAMLSignatureValidator {
      * @return true if signature is valid false otherwise
      */
     public boolean isValid(final Assertion assertion) {
-        boolean isValid = true;
-        Signature signature = assertion.getSignature();
+        return isValid(assertion.getSignature(), assertion.getIssuer() == null ? null : assertion.getIssuer().getValue());
+    }
+
+    /**
+     * Is the signature valid?
+     *
+     * @param signature signature
+     * @param issuer    issuer of the signed content
+     * @return true if signature is valid false otherwise
+     */
+    private boolean isValid(final Signature signature, final String issuer) {
         if (signature != null) {
+            final SignatureValidator validator = sigValidator != null ? sigValidator : trustedCertificates.select(signature, issuer);
+            if (validator == null) {
+                log.info("Signature is from " + issuer + " whose key we don't trust, access denied");
+                return false;
+            }
             try {
-                sigValidator.validate(signature);
+                validator.validate(signature);
+                return true;
             } catch (ValidationException ve) {
                 log.info("Signature is invalid, access denied");
-                isValid = false;
+                return false;
             }
-            return isValid;
         } else {
             final String errorMessage = "Resource is not signed";
             log.error(errorMessage);
             throw new RuntimeException(errorMessage);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,90 @@
+package com.timepoorprogrammer.saml.security.signature;
+
+import org.apache.xml.security.algorithms.JCEMapper;
+import org.opensaml.xml.security.BasicSecurityConfiguration;
+import org.opensaml.xml.security.SecurityConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.Signature;
+
+/**
+ * Registers the ECDSA-SHA256 signature algorithm for EC keys with the OpenSAML security configuration, for runtimes
+ * newer than the one this library targets.
+ * <p/>
+ * OpenSAML picks the signature algorithm from the algorithm of the private key through the global security
+ * configuration, which out of the box only knows about RSA and DSA keys.  Where the mapping is registered, a signing
+ * key alias configured for a producer can name an EC P-256 key and get ECDSA-SHA256 signatures.  Nothing picks the
+ * key or algorithm per partner, that is still down to the alias configured.
+ * <p/>
+ * The mapping is only registered if the XML security library knows the URI and the JDK has an ECDSA engine, which
+ * needs Java 7 or later and an XML security library newer than the one OpenSAML 2.4 brings in.  So on the Java 1.6
+ * stack this library targets nothing is registered and EC keys are refused when signing, rather than giving
+ * signatures nobody can check.  Checking a signature needs nothing registering, as the algorithm comes from the
+ * signature itself.
+ *
+ * @author Jim Ball
+ */
+public class SignatureAlgorithms {
+    private static final Logger log = LoggerFactory.getLogger(SignatureAlgorithms.class);
+
+    /**
+     * ECDSA with SHA-256 signature algorithm URI, see RFC 4051
+     */
+    public static final String ALGO_ID_SIGNATURE_ECDSA_SHA256 = "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha256";
+
+    /**
+     * Java name for the algorithm of elliptic curve keys
+     */
+    public static final String KEY_ALGORITHM_EC = "EC";
+
+    private SignatureAlgorithms() {
+    }
+
+    /**
+     * Register ECDSA-SHA256 for EC keys with the security configuration if the platform supports it and EC keys don't
+     * already have a signature algorithm.
+     *
+     * @param securityConfiguration security configuration
+     */
+    public static void register(final SecurityConfiguration securityConfiguration) {
+        if (!(securityConfiguration instanceof BasicSecurityConfiguration)) {
+            log.warn("Security configuration can't have signature algorithms added, EC keys won't sign");
+            return;
+        }
+        final BasicSecurityConfiguration configuration = (BasicSecurityConfiguration) securityConfiguration;
+        register(configuration, KEY_ALGORITHM_EC, ALGO_ID_SIGNATURE_ECDSA_SHA256);
+    }
+
+    /**
+     * Is the signature algorithm one both the XML security library and the JDK can sign with?
+     *
+     * @param algorithmURI signature algorithm URI
+     * @return true if supported, false otherwise
+     */
+    public static boolean isSupported(final String algorithmURI) {
+        try {
+            final String jceName = JCEMapper.translateURItoJCEID(algorithmURI);
+            if (jceName == null) {
+                return false;
+            }
+            Signature.getInstance(jceName);
+            return true;
+        } catch (Exception anyE) {
+            return false;
+        }
+    }
+
+    private static void register(final BasicSecurityConfiguration configuration, final String keyAlgorithm,
+                                 final String algorithmURI) {
+        if (configuration.getSignatureAlgorithmURI(keyAlgorithm) != null) {
+            return;
+        }
+        if (isSupported(algorithmURI)) {
+            configuration.registerSignatureAlgorithmURI(keyAlgorithm, algorithmURI);
+            log.debug("Signing with {} keys using {}", keyAlgorithm, algorithmURI);
+        } else {
+            log.info("Signature algorithm {} isn't supported here, {} keys won't sign", algorithmURI, keyAlgorithm);
+        }
+    }
+}
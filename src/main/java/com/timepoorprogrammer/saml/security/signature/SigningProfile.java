@@ -0,0 +1,129 @@
+package com.timepoorprogrammer.saml.security.signature;
+
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.XMLObjectBuilderFactory;
+import org.opensaml.xml.security.SecurityConfiguration;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.opensaml.xml.signature.KeyInfo;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.X509Certificate;
+import org.opensaml.xml.signature.X509Data;
+import org.opensaml.xml.util.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Everything needed to finish a signature with one of our signing keys, worked out once per key.
+ * <p/>
+ * The signing credential, the signature and canonicalization algorithms and the Base64 encoded certificate never
+ * change for a key, so there is no need to go back to the keystore or run a key info generator for every signature.
+ * An XML object can only belong to one signature, so the key info itself can't be shared, but building a new one from
+ * the already encoded certificate is just a few element builds.  The key info built is the same as the one an
+ * X509KeyInfoGeneratorFactory set to emit the entity certificate gives, being the certificate inside X509Data.
+ * <p/>
+ * A profile is never changed once made, so one can be used by any number of threads at once.
+ *
+ * @author Jim Ball
+ */
+public final class SigningProfile {
+    private static final Logger log = LoggerFactory.getLogger(SigningProfile.class);
+
+    private final BasicX509Credential signingCredentials;
+    private final String signatureAlgorithm;
+    private final String canonicalizationAlgorithm;
+    private final String encodedCertificate;
+    private final XMLObjectBuilder<KeyInfo> keyInfoBuilder;
+    private final XMLObjectBuilder<X509Data> x509DataBuilder;
+    private final XMLObjectBuilder<X509Certificate> x509CertificateBuilder;
+
+    /**
+     * Construct a signing profile for the signing credentials
+     *
+     * @param signingCredentials    signing credentials holding our private key and certificate
+     * @param securityConfiguration OpenSAML global security configuration, which says which algorithms to use
+     */
+    @SuppressWarnings("unchecked")
+    public SigningProfile(final BasicX509Credential signingCredentials, final SecurityConfiguration securityConfiguration) {
+        if (signingCredentials == null || securityConfiguration == null) {
+            throw new IllegalArgumentException("Cannot construct a signing profile without signing credentials and a security configuration");
+        }
+        this.signingCredentials = signingCredentials;
+        // What algorithm to apply to the signature depends on the algorithm used by the private
+        // key, and what canonicalization algorithm to apply depends on what the XMLSig standard
+        // expects, both of which we leave to OpenSAML's global security configuration.
+        final String keyAlgorithm = signingCredentials.getPrivateKey().getAlgorithm();
+        this.signatureAlgorithm = securityConfiguration.getSignatureAlgorithmURI(keyAlgorithm);
+        if (signatureAlgorithm == null) {
+            final String errorMessage = "No signature algorithm is available for " + keyAlgorithm + " signing keys";
+            log.error(errorMessage);
+            throw new RuntimeException(errorMessage);
+        }
+        this.canonicalizationAlgorithm = securityConfiguration.getSignatureCanonicalizationAlgorithm();
+        try {
+            this.encodedCertificate = Base64.encodeBytes(signingCredentials.getEntityCertificate().getEncoded());
+        } catch (Exception anyE) {
+            final String errorMessage = "Error encoding signing certificate";
+            log.error(errorMessage, anyE);
+            throw new RuntimeException(errorMessage, anyE);
+        }
+        final XMLObjectBuilderFactory builderFactory = Configuration.getBuilderFactory();
+        this.keyInfoBuilder = builderFactory.getBuilder(KeyInfo.DEFAULT_ELEMENT_NAME);
+        this.x509DataBuilder = builderFactory.getBuilder(X509Data.DEFAULT_ELEMENT_NAME);
+        this.x509CertificateBuilder = builderFactory.getBuilder(X509Certificate.DEFAULT_ELEMENT_NAME);
+    }
+
+    /**
+     * Finish the blank signature with our signing credentials, algorithms and key information
+     *
+     * @param blankSignature blank signature
+     */
+    public void apply(final Signature blankSignature) {
+        blankSignature.setSigningCredential(signingCredentials);
+        blankSignature.setSignatureAlgorithm(signatureAlgorithm);
+        blankSignature.setCanonicalizationAlgorithm(canonicalizationAlgorithm);
+        blankSignature.setKeyInfo(newKeyInfo());
+    }
+
+    /**
+     * Build new key information holding our certificate, for a signature of its own
+     *
+     * @return key information
+     */
+    public KeyInfo newKeyInfo() {
+        final X509Certificate certificate = x509CertificateBuilder.buildObject(X509Certificate.DEFAULT_ELEMENT_NAME);
+        certificate.setValue(encodedCertificate);
+        final X509Data x509Data = x509DataBuilder.buildObject(X509Data.DEFAULT_ELEMENT_NAME);
+        x509Data.getX509Certificates().add(certificate);
+        final KeyInfo keyInfo = keyInfoBuilder.buildObject(KeyInfo.DEFAULT_ELEMENT_NAME);
+        keyInfo.getX509Datas().add(x509Data);
+        return keyInfo;
+    }
+
+    /**
+     * Get the signing credentials
+     *
+     * @return signing credentials
+     */
+    public BasicX509Credential getSigningCredentials() {
+        return signingCredentials;
+    }
+
+    /**
+     * Get the signature algorithm URI
+     *
+     * @return signature algorithm URI
+     */
+    public String getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+
+    /**
+     * Get the canonicalization algorithm URI
+     *
+     * @return canonicalization algorithm URI
+     */
+    public String getCanonicalizationAlgorithm() {
+        return canonicalizationAlgorithm;
+    }
+}
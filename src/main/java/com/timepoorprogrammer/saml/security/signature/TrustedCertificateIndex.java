@@ -0,0 +1,229 @@
+package com.timepoorprogrammer.saml.security.signature;
+
+import com.timepoorprogrammer.saml.security.JCAEngines;
+import com.timepoorprogrammer.saml.security.KeyStoreReader;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.opensaml.xml.signature.KeyInfo;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureValidator;
+import org.opensaml.xml.signature.X509Data;
+import org.opensaml.xml.signature.X509SKI;
+import org.opensaml.xml.util.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the certificates we trust to sign SAML sent to us, loaded once from a trust keystore, so a signature can be
+ * checked against the right partner's public key straight away.
+ * <p/>
+ * Every certificate in the keystore is indexed by its alias, which must be the SAML entity identifier of the issuer
+ * it belongs to, and by its SHA-256 fingerprint and subject key identifier if it has one.  The key for a signature is
+ * always the one registered for the issuer of the signed content, found with a hash lookup, and never one picked from
+ * the key information in the signature itself, which the signer controls.  If the key information names a certificate
+ * we trust, by embedding it or by its subject key identifier, it must be the issuer's own, as otherwise one partner
+ * could sign as another, and key information we can't decode is refused too.  Key information naming certificates we
+ * don't hold at all is ignored, as the issuer's key will then fail to check the signature anyway.  Keystore aliases
+ * aren't case sensitive, so neither is the issuer lookup, and no key is ever tried on the off chance.
+ * <p/>
+ * An index is never changed once loaded, so one can be used by any number of threads at once.
+ *
+ * @author Jim Ball
+ */
+public class TrustedCertificateIndex {
+    private static final Logger log = LoggerFactory.getLogger(TrustedCertificateIndex.class);
+
+    /**
+     * Subject key identifier certificate extension
+     */
+    private static final String SUBJECT_KEY_IDENTIFIER_OID = "2.5.29.14";
+
+    private final Map<String, TrustedCertificate> byAlias = new HashMap<String, TrustedCertificate>();
+    private final Set<String> fingerprints = new HashSet<String>();
+    private final Set<String> subjectKeyIdentifiers = new HashSet<String>();
+
+    /**
+     * Load the index from the trust keystore at the path given
+     *
+     * @param keyStorePath     path to trust keystore
+     * @param keyStorePassword password for trust keystore
+     */
+    public TrustedCertificateIndex(final String keyStorePath, final String keyStorePassword) {
+        this(KeyStoreReader.loadKeyStore(keyStorePath, keyStorePassword));
+    }
+
+    /**
+     * Load the index from the trust keystore given
+     *
+     * @param keyStore trust keystore
+     */
+    public TrustedCertificateIndex(final KeyStore keyStore) {
+        if (keyStore == null) {
+            throw new IllegalArgumentException("Cannot index the certificates of a null keystore");
+        }
+        for (String alias : KeyStoreReader.getAliases(keyStore)) {
+            final Certificate certificate = KeyStoreReader.getCertificate(keyStore, alias);
+            if (certificate instanceof X509Certificate) {
+                add(alias, (X509Certificate) certificate);
+            }
+        }
+        log.debug("Indexed {} trusted certificates", byAlias.size());
+    }
+
+    /**
+     * Get the number of certificates in the index
+     *
+     * @return number of certificates
+     */
+    public int size() {
+        return byAlias.size();
+    }
+
+    /**
+     * Get the validator for the public key registered for the issuer, provided the key information in the signature
+     * doesn't name another certificate we trust
+     *
+     * @param signature signature
+     * @param issuer    SAML entity identifier of the issuer, may be null
+     * @return validator, or null if we don't trust any key for the issuer or the signature names someone else's
+     */
+    public SignatureValidator select(final Signature signature, final String issuer) {
+        final TrustedCertificate trusted = issuer == null ? null : byAlias.get(issuer.toLowerCase(Locale.ENGLISH));
+        if (trusted == null) {
+            return null;
+        }
+        final KeyInfo keyInfo = signature.getKeyInfo();
+        if (keyInfo != null) {
+            for (X509Data x509Data : keyInfo.getX509Datas()) {
+                for (org.opensaml.xml.signature.X509Certificate certificate : x509Data.getX509Certificates()) {
+                    if (certificate.getValue() != null) {
+                        final byte[] encoded = Base64.decode(certificate.getValue());
+                        if (encoded == null
+                                || !isOwnOrUnknown(toHex(sha256(encoded)), trusted.fingerprint, fingerprints)) {
+                            log.info("Signature names a certificate other than the one registered for {}", issuer);
+                            return null;
+                        }
+                    }
+                }
+                for (X509SKI ski : x509Data.getX509SKIs()) {
+                    if (ski.getValue() != null) {
+                        final byte[] subjectKeyIdentifier = Base64.decode(ski.getValue());
+                        if (subjectKeyIdentifier == null || !isOwnOrUnknown(toHex(subjectKeyIdentifier),
+                                trusted.subjectKeyIdentifier, subjectKeyIdentifiers)) {
+                            log.info("Signature names a key other than the one registered for {}", issuer);
+                            return null;
+                        }
+                    }
+                }
+            }
+        }
+        return trusted.validator;
+    }
+
+    /**
+     * Is a certificate named in a signature either the issuer's own or one we don't trust at all?
+     *
+     * @param named   fingerprint or subject key identifier given in the signature
+     * @param own     the issuer's certificate's, may be null
+     * @param trusted those of every certificate we trust
+     * @return true if the issuer's or not trusted, false if another trusted certificate's
+     */
+    private static boolean isOwnOrUnknown(final String named, final String own, final Set<String> trusted) {
+        return named.equals(own) || !trusted.contains(named);
+    }
+
+    private void add(final String alias, final X509Certificate certificate) {
+        final BasicX509Credential credential = new BasicX509Credential();
+        credential.setEntityCertificate(certificate);
+        credential.setPublicKey(certificate.getPublicKey());
+        final String fingerprint;
+        try {
+            fingerprint = toHex(sha256(certificate.getEncoded()));
+        } catch (Exception anyE) {
+            final String errorMessage = "Error encoding trusted certificate " + alias;
+            log.error(errorMessage, anyE);
+            throw new RuntimeException(errorMessage, anyE);
+        }
+        final byte[] keyIdentifier = getSubjectKeyIdentifier(certificate);
+        final String subjectKeyIdentifier = keyIdentifier == null ? null : toHex(keyIdentifier);
+        fingerprints.add(fingerprint);
+        if (subjectKeyIdentifier != null) {
+            subjectKeyIdentifiers.add(subjectKeyIdentifier);
+        }
+        byAlias.put(alias.toLowerCase(Locale.ENGLISH),
+                new TrustedCertificate(new SignatureValidator(credential), fingerprint, subjectKeyIdentifier));
+    }
+
+    /**
+     * Get the subject key identifier of the certificate, which the extension holds as an octet string wrapped in
+     * another octet string
+     *
+     * @param certificate certificate
+     * @return subject key identifier, or null if the certificate doesn't have one
+     */
+    private static byte[] getSubjectKeyIdentifier(final X509Certificate certificate) {
+        final byte[] extension = certificate.getExtensionValue(SUBJECT_KEY_IDENTIFIER_OID);
+        if (extension == null) {
+            return null;
+        }
+        final byte[] inner = unwrapOctetString(extension);
+        return inner == null ? null : unwrapOctetString(inner);
+    }
+
+    private static byte[] unwrapOctetString(final byte[] der) {
+        if (der.length < 2 || der[0] != 0x04) {
+            return null;
+        }
+        int length = der[1] & 0xff;
+        int offset = 2;
+        if (length > 0x7f) {
+            final int lengthBytes = length & 0x7f;
+            length = 0;
+            for (int i = 0; i < lengthBytes && offset < der.length; i++) {
+                length = (length << 8) | (der[offset++] & 0xff);
+            }
+        }
+        if (offset + length > der.length) {
+            return null;
+        }
+        final byte[] value = new byte[length];
+        System.arraycopy(der, offset, value, 0, length);
+        return value;
+    }
+
+    private static byte[] sha256(final byte[] bytes) {
+        return JCAEngines.getMessageDigest("SHA-256").digest(bytes);
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Certificate registered for an issuer, with the validator for its public key
+     */
+    private static final class TrustedCertificate {
+        private final SignatureValidator validator;
+        private final String fingerprint;
+        private final String subjectKeyIdentifier;
+
+        private TrustedCertificate(final SignatureValidator validator, final String fingerprint,
+                                   final String subjectKeyIdentifier) {
+            this.validator = validator;
+            this.fingerprint = fingerprint;
+            this.subjectKeyIdentifier = subjectKeyIdentifier;
+        }
+    }
+}
@@ -1,19 +1,23 @@
 package com.timepoorprogrammer.saml.security.signature;
 
+import com.timepoorprogrammer.saml.security.CredentialRegistry;
 import com.timepoorprogrammer.saml.security.KeyStoreCredentialHandler;
 import org.opensaml.xml.Configuration;
 import org.opensaml.xml.security.SecurityConfiguration;
-import org.opensaml.xml.security.x509.BasicX509Credential;
-import org.opensaml.xml.security.x509.X509KeyInfoGeneratorFactory;
-import org.opensaml.xml.signature.KeyInfo;
 import org.opensaml.xml.signature.Signature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * SAML signature creator class.
+ * <p/>
+ * Each signing key is worked out into a signing profile the first time it is used, and the keystore itself is shared
+ * through the CredentialRegistry, so finishing a signature doesn't go back to the keystore or regenerate the key
+ * information every time.
  *
  * @author Jim Ball
  */
@@ -30,6 +34,10 @@ public class X509SAMLSignatureCreator {
      * Global security configuration applied by OpenSAML
      */
     private SecurityConfiguration securityConfiguration;
+    /**
+     * Signing profiles by key alias and password fingerprint
+     */
+    private final ConcurrentMap<String, SigningProfile> signingProfiles = new ConcurrentHashMap<String, SigningProfile>();
 
     /**
      * Create a signature creator given the path to our local keystore and our keystore password.
@@ -41,7 +49,7 @@ public class X509SAMLSignatureCreator {
         if (keyStorePath == null || keyStorePassword == null) {
             throw new IllegalArgumentException("Cannot construct a signature creator without both keyStorePath and keyStorePassword");
         }
-        keyStoreCredentialHandler = new KeyStoreCredentialHandler(keyStorePath, keyStorePassword);
+        keyStoreCredentialHandler = CredentialRegistry.getHandler(keyStorePath, keyStorePassword);
         securityConfiguration = getSecurityConfiguration();
     }
 
@@ -55,7 +63,7 @@ public class X509SAMLSignatureCreator {
         if (keyStoreStream == null || keyStorePassword == null) {
             throw new IllegalArgumentException("Cannot construct a signature creator without both keyStoreStream and keyStorePassword");
         }
-        keyStoreCredentialHandler = new KeyStoreCredentialHandler(keyStoreStream, keyStorePassword);
+        keyStoreCredentialHandler = CredentialRegistry.getHandler(keyStoreStream, keyStorePassword);
         securityConfiguration = getSecurityConfiguration();
     }
 
@@ -71,31 +79,7 @@ public class X509SAMLSignatureCreator {
             throw new IllegalArgumentException("Cannot finish signature without blankSignature to start with, keyAlias, and keyPassword");
         }
         try {
-            // Setup the signing credentials to apply
-            BasicX509Credential signingCredentials = keyStoreCredentialHandler.getSigningCredentials(keyAlias, keyPassword);
-            blankSignature.setSigningCredential(signingCredentials);
-
-            // What algorithm to apply to the signature depends on the algorithm used by the private
-            // key, and what canonicalization algorithm to apply depends on what the XMLSig standard
-            // expects.
-            //
-            // Inside OpenSAML, the canonicalization algorithm is hardcoded in global configuration, and the
-            // routine for translating from a java key algorithm to the same thing expressed in XMLSig format
-            // is also provided by the OpenSAML global security configuration class.
-            //
-            // From our perspective, if we are providing RSAwithSHA1 certificates for PKI we'd end up with
-            // signature.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA1);
-            // signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
-            // but by delegating to OpenSAML's global security configuration means we aren't hard-coding the
-            // signature algorithm details in our code, and let OpenSAML do the hard-work.
-            blankSignature.setSignatureAlgorithm(securityConfiguration.getSignatureAlgorithmURI(signingCredentials.getPrivateKey().getAlgorithm()));
-            blankSignature.setCanonicalizationAlgorithm(securityConfiguration.getSignatureCanonicalizationAlgorithm());
-
-            // Add key information into the signature
-            X509KeyInfoGeneratorFactory kiFactory = new X509KeyInfoGeneratorFactory();
-            kiFactory.setEmitEntityCertificate(true);
-            KeyInfo keyInfo = kiFactory.newInstance().generate(signingCredentials);
-            blankSignature.setKeyInfo(keyInfo);
+            getSigningProfile(keyAlias, keyPassword).apply(blankSignature);
         } catch (Exception anyE) {
             final String errorMessage = "Error creating signature";
             log.error(errorMessage, anyE);
@@ -103,6 +87,29 @@ public class X509SAMLSignatureCreator {
         }
     }
 
+    /**
+     * Get the signing profile for the private key, working it out the first time the key is used.
+     *
+     * @param keyAlias    key alias
+     * @param keyPassword key password
+     * @return signing profile
+     */
+    public SigningProfile getSigningProfile(final String keyAlias, final String keyPassword) {
+        if (keyAlias == null || keyPassword == null) {
+            throw new IllegalArgumentException("Cannot get a signing profile without a keyAlias and keyPassword");
+        }
+        final String key = keyAlias + ":" + CredentialRegistry.fingerprint(keyPassword);
+        SigningProfile profile = signingProfiles.get(key);
+        if (profile == null) {
+            profile = new SigningProfile(keyStoreCredentialHandler.getSigningCredentials(keyAlias, keyPassword), securityConfiguration);
+            final SigningProfile existing = signingProfiles.putIfAbsent(key, profile);
+            if (existing != null) {
+                profile = existing;
+            }
+        }
+        return profile;
+    }
+
     /**
      * Get the OpenSAML global security configuration.
      *
@@ -0,0 +1,27 @@
+package com.timepoorprogrammer.saml.core;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for the raw payload digest cache.
+ *
+ * @author Jim Ball
+ */
+public class PayloadDigestCacheTest {
+
+    /**
+     * An exact copy of a payload is a duplicate, a payload differing by one character is not
+     */
+    @Test
+    public void testIsDuplicate_exactCopiesOnly() {
+        PayloadDigestCache classUnderTest = new PayloadDigestCache();
+        final String payload = "PHNhbWxwOlJlc3BvbnNlIElEPSJfMTIzIi8+";
+        assertThat(classUnderTest.isDuplicate(payload), is(false));
+        assertThat(classUnderTest.isDuplicate(new String(payload)), is(true));
+        assertThat(classUnderTest.isDuplicate(payload + "="), is(false));
+        assertThat(classUnderTest.isDuplicate(null), is(false));
+    }
+}
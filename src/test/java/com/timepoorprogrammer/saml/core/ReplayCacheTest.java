@@ -0,0 +1,84 @@
+package com.timepoorprogrammer.saml.core;
+
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for the response identifier replay cache.
+ *
+ * @author Jim Ball
+ */
+public class ReplayCacheTest {
+
+    /**
+     * The first sighting of an identifier is new, the second is a replay
+     */
+    @Test
+    public void testAdd_replayDetected() {
+        ReplayCache classUnderTest = new ReplayCache(ReplayCache.DEFAULT_RETENTION_MINUTES);
+        final String id = UUID.randomUUID().toString();
+        assertThat(classUnderTest.add(id), is(true));
+        assertThat(classUnderTest.add(id), is(false));
+        assertThat(classUnderTest.contains(id), is(true));
+        assertThat(classUnderTest.add(UUID.randomUUID().toString()), is(true));
+    }
+
+    /**
+     * Once an identifier has lapsed it counts as new again, and the wheel drains it without us asking
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testAdd_lapsedIdentifierExpires() throws Exception {
+        ReplayCache classUnderTest = new ReplayCache(100, 10);
+        final String id = UUID.randomUUID().toString();
+        assertThat(classUnderTest.add(id), is(true));
+        Thread.sleep(150);
+        assertThat(classUnderTest.contains(id), is(false));
+        assertThat(classUnderTest.add(id), is(true));
+        // Another identifier arriving after the first has lapsed again moves the wheel on and drains it
+        Thread.sleep(150);
+        classUnderTest.add(UUID.randomUUID().toString());
+        assertThat(classUnderTest.size(), is(1));
+    }
+
+    /**
+     * Many threads presenting the same identifier at once, only one of them gets to process it
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testAdd_concurrentReplays() throws Exception {
+        final ReplayCache classUnderTest = new ReplayCache(ReplayCache.DEFAULT_RETENTION_MINUTES);
+        final String id = UUID.randomUUID().toString();
+        final int threads = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger accepted = new AtomicInteger();
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        if (classUnderTest.add(id)) {
+                            accepted.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        assertThat(accepted.get(), is(1));
+    }
+}
@@ -0,0 +1,126 @@
+package com.timepoorprogrammer.saml.core;
+
+import org.junit.Test;
+import org.opensaml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml2.core.OneTimeUse;
+import org.opensaml.saml1.core.DoNotCacheCondition;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for working out how long response and assertion identifiers must be remembered for.
+ *
+ * @author Jim Ball
+ */
+public class ReplayWindowTest {
+    private static final int SKEW_SECONDS = 60;
+
+    private final SAML2Handler saml2Handler = new SAML2Handler("idp_saml2");
+    private final SAML11Handler saml11Handler = new SAML11Handler("idp_saml11");
+
+    /**
+     * A SAML2 assertion is remembered until its Conditions NotOnOrAfter plus the skew, and an earlier
+     * SubjectConfirmationData NotOnOrAfter doesn't shorten that
+     */
+    @Test
+    public void testGetExpiry_saml2Assertion() {
+        final org.opensaml.saml2.core.Assertion assertion = saml2Handler.createAssertion(
+                saml2Handler.createSubject("jimbo", null, "bearer", "https://sp/consumer", 1), 10, 15);
+        final long notOnOrAfter = assertion.getConditions().getNotOnOrAfter().getMillis();
+        assertThat(ReplayWindow.getExpiry(assertion, SKEW_SECONDS), is(notOnOrAfter + SKEW_SECONDS * 1000L));
+        assertThat(ReplayWindow.getExpiry(assertion, 0), is(notOnOrAfter));
+    }
+
+    /**
+     * A SAML2 assertion without Conditions, or without a NotOnOrAfter, places no limit on itself
+     */
+    @Test
+    public void testGetExpiry_saml2AssertionMissingConditions() {
+        final org.opensaml.saml2.core.Assertion assertion = saml2Handler.createAssertion(
+                saml2Handler.createSubject("jimbo", null, "bearer"));
+        assertion.getConditions().setNotOnOrAfter(null);
+        assertThat(ReplayWindow.getExpiry(assertion, SKEW_SECONDS), is(ReplayWindow.UNBOUNDED));
+        assertion.setConditions(null);
+        assertThat(ReplayWindow.getExpiry(assertion, SKEW_SECONDS), is(ReplayWindow.UNBOUNDED));
+    }
+
+    /**
+     * A SAML2 response is remembered until the last of its assertions expires, unless any of them are unbounded or
+     * it carries encrypted assertions we can't look into
+     */
+    @Test
+    public void testGetExpiry_saml2Response() {
+        final org.opensaml.saml2.core.Assertion shorter = saml2Handler.createAssertion(
+                saml2Handler.createSubject("jimbo", null, "bearer"), 10, 5);
+        final org.opensaml.saml2.core.Assertion longer = saml2Handler.createAssertion(
+                saml2Handler.createSubject("jimbo", null, "bearer"), 10, 20);
+        final org.opensaml.saml2.core.Response response = saml2Handler.createResponse(shorter);
+        response.getAssertions().add(longer);
+        assertThat(ReplayWindow.getExpiry(response, SKEW_SECONDS),
+                is(longer.getConditions().getNotOnOrAfter().getMillis() + SKEW_SECONDS * 1000L));
+
+        response.getEncryptedAssertions().add((EncryptedAssertion) saml2Handler.create(EncryptedAssertion.DEFAULT_ELEMENT_NAME));
+        assertThat(ReplayWindow.getExpiry(response, SKEW_SECONDS), is(ReplayWindow.UNBOUNDED));
+
+        final org.opensaml.saml2.core.Response encryptedOnly = saml2Handler.createResponse(
+                org.opensaml.saml2.core.StatusCode.SUCCESS_URI, null);
+        encryptedOnly.getEncryptedAssertions().add((EncryptedAssertion) saml2Handler.create(EncryptedAssertion.DEFAULT_ELEMENT_NAME));
+        assertThat(ReplayWindow.getExpiry(encryptedOnly, SKEW_SECONDS), is(ReplayWindow.UNBOUNDED));
+
+        response.getAssertions().remove(longer);
+        longer.setConditions(null);
+        assertThat(ReplayWindow.getExpiry(saml2Handler.createResponse(longer), SKEW_SECONDS), is(ReplayWindow.UNBOUNDED));
+    }
+
+    /**
+     * A SAML1.1 assertion is remembered until its Conditions NotOnOrAfter plus the skew, and without Conditions
+     * places no limit on itself
+     */
+    @Test
+    public void testGetExpiry_saml11Assertion() {
+        final org.opensaml.saml1.core.Assertion assertion = saml11Handler.createAssertion(
+                saml11Handler.createSubject("jimbo", "timewarner.com", null, "bearer"), 10, 15);
+        final long notOnOrAfter = assertion.getConditions().getNotOnOrAfter().getMillis();
+        assertThat(ReplayWindow.getExpiry(assertion, SKEW_SECONDS), is(notOnOrAfter + SKEW_SECONDS * 1000L));
+        assertion.setConditions(null);
+        assertThat(ReplayWindow.getExpiry(assertion, SKEW_SECONDS), is(ReplayWindow.UNBOUNDED));
+    }
+
+    /**
+     * A SAML1.1 response is remembered until the last of its assertions expires, and one with no assertions places
+     * no limit on itself
+     */
+    @Test
+    public void testGetExpiry_saml11Response() {
+        final org.opensaml.saml1.core.Assertion shorter = saml11Handler.createAssertion(
+                saml11Handler.createSubject("jimbo", "timewarner.com", null, "bearer"), 10, 5);
+        final org.opensaml.saml1.core.Assertion longer = saml11Handler.createAssertion(
+                saml11Handler.createSubject("jimbo", "timewarner.com", null, "bearer"), 10, 20);
+        final org.opensaml.saml1.core.Response response = saml11Handler.createResponse(shorter);
+        response.getAssertions().add(longer);
+        assertThat(ReplayWindow.getExpiry(response, SKEW_SECONDS),
+                is(longer.getConditions().getNotOnOrAfter().getMillis() + SKEW_SECONDS * 1000L));
+        response.getAssertions().clear();
+        assertThat(ReplayWindow.getExpiry(response, SKEW_SECONDS), is(ReplayWindow.UNBOUNDED));
+    }
+
+    /**
+     * OneTimeUse marks a SAML2 assertion for one time use, and DoNotCacheCondition a SAML1.1 one
+     */
+    @Test
+    public void testIsOneTimeUse() {
+        final org.opensaml.saml2.core.Assertion saml2 = saml2Handler.createAssertion(
+                saml2Handler.createSubject("jimbo", null, "bearer"));
+        assertThat(ReplayWindow.isOneTimeUse(saml2), is(false));
+        saml2.getConditions().getConditions().add((OneTimeUse) saml2Handler.create(OneTimeUse.DEFAULT_ELEMENT_NAME));
+        assertThat(ReplayWindow.isOneTimeUse(saml2), is(true));
+
+        final org.opensaml.saml1.core.Assertion saml11 = saml11Handler.createAssertion(
+                saml11Handler.createSubject("jimbo", "timewarner.com", null, "bearer"));
+        assertThat(ReplayWindow.isOneTimeUse(saml11), is(false));
+        saml11.getConditions().getDoNotCacheConditions().add(
+                (DoNotCacheCondition) saml11Handler.create(DoNotCacheCondition.DEFAULT_ELEMENT_NAME));
+        assertThat(ReplayWindow.isOneTimeUse(saml11), is(true));
+    }
+}
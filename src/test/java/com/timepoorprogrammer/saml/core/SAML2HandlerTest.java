@@ -9,10 +9,18 @@ import org.opensaml.common.SAMLVersion;
 import org.opensaml.saml1.core.NameIdentifier;
 import org.opensaml.saml2.core.*;
 import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.parse.XMLParserException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -22,6 +30,7 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class SAML2HandlerTest {
     /**
@@ -275,4 +284,106 @@ public class SAML2HandlerTest {
         response.setDestination("http://northgatearinso.com/SDPService");
         handler.printToFile(response, null);
     }
-}
\ No newline at end of file
+
+    /**
+     * Read the canned authentication assertion with each parse profile, check neither will read a document that
+     * declares a DOCTYPE, and that only the strict profile refuses one that is well formed but not schema valid.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testReadFromStream_parseProfiles() throws Exception {
+        SAML2Handler handler = new SAML2Handler();
+        String pathToAssertion = TestHelper.getFullPath("^.*fixtures\\\\canned_saml\\\\Assertion\\\\Authn.xml$");
+        final byte[] document = readBytes(new IOHelper().openFileAsInputStream(pathToAssertion));
+        for (ParseProfile profile : ParseProfile.values()) {
+            handler.setParseProfile(profile);
+            final Assertion assertion = (Assertion) handler.readFromStream(new ByteArrayInputStream(document));
+            assertThat(assertion.getSubject().getNameID().getValue(), is("1895021000"));
+        }
+        assertThat(ParseProfile.fromName(null), is(ParseProfile.STRICT));
+        assertThat(ParseProfile.fromName("well_formed"), is(ParseProfile.WELL_FORMED));
+
+        final String withDoctype = "<!DOCTYPE Assertion [<!ENTITY name \"189502\">]>" + new String(document, "UTF-8").replaceFirst("<\\?xml[^>]*>", "");
+        for (ParseProfile profile : ParseProfile.values()) {
+            handler.setParseProfile(profile);
+            try {
+                handler.readFromStream(new ByteArrayInputStream(withDoctype.getBytes("UTF-8")));
+                fail("Document with a DOCTYPE should have been refused by " + profile);
+            } catch (RuntimeException expected) {
+                log.info("{} refused document with a DOCTYPE", profile);
+            }
+        }
+
+        // Well formed but without the Version the schema requires, so only the strict profile refuses it
+        final byte[] withoutVersion = new String(document, "UTF-8").replaceFirst(" Version=\"2.0\"", "").getBytes("UTF-8");
+        handler.setParseProfile(ParseProfile.STRICT);
+        try {
+            handler.readFromStream(new ByteArrayInputStream(withoutVersion));
+            fail("Assertion without a Version should have been refused by " + ParseProfile.STRICT);
+        } catch (RuntimeException expected) {
+            log.info("{} refused assertion without a Version", ParseProfile.STRICT);
+        }
+        handler.setParseProfile(ParseProfile.WELL_FORMED);
+        final Assertion withoutVersionAssertion = (Assertion) handler.readFromStream(new ByteArrayInputStream(withoutVersion));
+        assertThat(withoutVersionAssertion.getSubject().getNameID().getValue(), is("1895021000"));
+    }
+
+    /**
+     * The strict parser pool keeps turning away a document that fails schema validation, here an assertion without
+     * its Version, after its builders have been handed out and given back many times over
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testParse_strictAfterBuilderReuse() throws Exception {
+        new SAML2Handler();
+        String pathToAssertion = TestHelper.getFullPath("^.*fixtures\\\\canned_saml\\\\Assertion\\\\Authn.xml$");
+        final byte[] document = readBytes(new IOHelper().openFileAsInputStream(pathToAssertion));
+        final byte[] withoutVersion = new String(document, "UTF-8").replaceFirst(" Version=\"2.0\"", "").getBytes("UTF-8");
+        final BasicParserPool pool = AbstractSAMLHandler.getParserPool(ParseProfile.STRICT);
+        for (int i = 0; i < 50; i++) {
+            assertThat(pool.parse(new ByteArrayInputStream(document)), is(notNullValue()));
+            try {
+                pool.parse(new ByteArrayInputStream(withoutVersion));
+                fail("Assertion without a Version should have been refused on parse " + i);
+            } catch (XMLParserException expected) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Printing to a stream gives exactly the bytes an identity transform into a buffer gives, with or without a size
+     * hint, so signed content stays valid.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testPrintToStream_sameBytesAsTransform() throws Exception {
+        SAML2Handler handler = new SAML2Handler("NZ");
+        final Subject subject = handler.createSubject("189502", NameIdentifier.UNSPECIFIED, "bearer");
+        Map<String, String> attributes = new HashMap<String, String>(0);
+        attributes.put("roles", "editor,reviewer");
+        final Response response = handler.createResponse(handler.createAuthnAssertion(subject, AuthnContext.PASSWORD_AUTHN_CTX, 30, 30, attributes));
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(handler.asDOMDocument(response)), new StreamResult(expected));
+        for (int sizeHint : new int[]{0, 64, 1 << 20}) {
+            final ByteArrayOutputStream printed = new ByteArrayOutputStream();
+            handler.printToStream(response, printed, sizeHint);
+            assertTrue(Arrays.equals(expected.toByteArray(), printed.toByteArray()));
+        }
+    }
+
+    private static byte[] readBytes(final InputStream stream) throws Exception {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[4096];
+        int read;
+        while ((read = stream.read(chunk)) != -1) {
+            buffer.write(chunk, 0, read);
+        }
+        stream.close();
+        return buffer.toByteArray();
+    }
+}
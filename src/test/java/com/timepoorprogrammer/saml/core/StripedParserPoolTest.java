@@ -0,0 +1,101 @@
+package com.timepoorprogrammer.saml.core;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the striped parser pool.
+ *
+ * @author Jim Ball
+ */
+public class StripedParserPoolTest {
+    private static final Logger log = LoggerFactory.getLogger(StripedParserPoolTest.class);
+
+    /**
+     * A thread gets back the builder it returned, a second builder at once comes from the shared queue or is made,
+     * and builders from elsewhere are ignored
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testGetBuilder_threadAffine() throws Exception {
+        StripedParserPool classUnderTest = new StripedParserPool(1, 300);
+        final DocumentBuilder first = classUnderTest.getBuilder();
+        final DocumentBuilder second = classUnderTest.getBuilder();
+        assertThat(second, is(not(sameInstance(first))));
+        assertThat(classUnderTest.getBuildersCreated(), is(2L));
+        classUnderTest.returnBuilder(first);
+        classUnderTest.returnBuilder(second);
+        assertThat(classUnderTest.getIdleBuilders(), is(1));
+        assertThat(classUnderTest.getBuilder(), is(sameInstance(first)));
+        assertThat(classUnderTest.getBuilder(), is(sameInstance(second)));
+        assertThat(classUnderTest.getThreadHits(), is(1L));
+        assertThat(classUnderTest.getSharedHits(), is(1L));
+
+        // Shared queue only holds one, so the third is dropped
+        final DocumentBuilder third = classUnderTest.getBuilder();
+        classUnderTest.returnBuilder(first);
+        classUnderTest.returnBuilder(second);
+        classUnderTest.returnBuilder(third);
+        assertThat(classUnderTest.getBuildersDropped(), is(1L));
+
+        classUnderTest.returnBuilder(DocumentBuilderFactory.newInstance().newDocumentBuilder());
+        assertThat(classUnderTest.getIdleBuilders(), is(1));
+    }
+
+    /**
+     * Many threads parsing at once each get a working builder, and the pool only makes as many as are in use at once
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testParse_manyThreads() throws Exception {
+        final StripedParserPool classUnderTest = new StripedParserPool();
+        classUnderTest.setNamespaceAware(true);
+        final byte[] document = "<saml:Issuer xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\">idp</saml:Issuer>".getBytes("UTF-8");
+        final int threads = 16;
+        final int count = 2000;
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < count; i++) {
+                            if (!"idp".equals(classUnderTest.parse(new ByteArrayInputStream(document)).getDocumentElement().getTextContent())) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception anyE) {
+                        log.error("Error parsing", anyE);
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        log.info("{} parses on {} threads in {}ms, {} builders made, average borrow wait {}ns, longest {}ns",
+                new Object[]{threads * count, threads, (System.nanoTime() - start) / 1000000,
+                        classUnderTest.getBuildersCreated(), classUnderTest.getAverageBorrowNanos(),
+                        classUnderTest.getMaxBorrowNanos()});
+        assertThat(failures.get(), is(0));
+        assertThat(classUnderTest.getBorrows(), is((long) threads * count));
+        assertTrue(classUnderTest.getBuildersCreated() <= threads);
+    }
+}
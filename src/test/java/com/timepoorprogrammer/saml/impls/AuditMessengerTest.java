@@ -2,12 +2,15 @@ package com.timepoorprogrammer.saml.impls;
 
 import static org.hamcrest.CoreMatchers.is;
 
+import com.timepoorprogrammer.saml.common.FactoryBase;
 import com.timepoorprogrammer.saml.impls.AuditMessenger;
 import com.timepoorprogrammer.saml.impls.AuditMessengerFactory;
 import org.junit.Assert;
 import static org.junit.Assert.assertThat;
 import org.junit.Test;
 
+import java.lang.reflect.Constructor;
+
 /**
  * Test class for the AuditMessenger which also illustrates how every single
  * factory in the whole project actually works in terms of picking up default
@@ -77,4 +80,18 @@ public class AuditMessengerTest {
             Assert.fail("Error running audit messenger factory bespoke scenario test " + anyE.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Test the factories only go looking for a bespoke implementation the once, whether or not there is one.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testBespokeLookupRemembered() throws Exception {
+        final Constructor bespoke = FactoryBase.findBespokeConstructor("GA", AuditMessenger.class, "common");
+        assertThat(bespoke.getDeclaringClass().getName(), is("com.timepoorprogrammer.saml.impls.ga.common.AuditMessengerImpl"));
+        assertThat(FactoryBase.findBespokeConstructor("GA", AuditMessenger.class, "common") == bespoke, is(true));
+        assertThat(FactoryBase.findBespokeConstructor("DOESN'T EXIST", AuditMessenger.class, "common") == null, is(true));
+        assertThat(FactoryBase.findBespokeConstructor("DOESN'T EXIST", AuditMessenger.class, "common") == null, is(true));
+    }
+}
@@ -0,0 +1,193 @@
+package com.timepoorprogrammer.saml.impls;
+
+import com.timepoorprogrammer.saml.configuration.ConfigurationProperties;
+import com.timepoorprogrammer.saml.impls.standard.consumer.replay.FilteredReplayStore;
+import com.timepoorprogrammer.saml.impls.standard.consumer.replay.InMemoryReplayStore;
+import com.timepoorprogrammer.saml.impls.standard.consumer.replay.JournalledReplayStore;
+import com.timepoorprogrammer.saml.impls.standard.consumer.replay.SharedFileReplayStore;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for the replay stores and the factory that hands them out per service provider.
+ *
+ * @author Jim Ball
+ */
+public class ReplayStoreTest {
+
+    /**
+     * Each service provider gets its own store, and by default it lives in memory
+     */
+    @Test
+    public void testGetInstance_perServiceProvider() {
+        final ReplayStore myView = ReplayStoreFactory.getInstance("MyView");
+        assertThat(myView, is(sameInstance(ReplayStoreFactory.getInstance("MyView"))));
+        assertThat(myView, is(not(sameInstance(ReplayStoreFactory.getInstance("DummyApp")))));
+        assertThat(myView.getClass().getName(), is("com.timepoorprogrammer.saml.impls.standard.consumer.replay.InMemoryReplayStore"));
+        final String id = UUID.randomUUID().toString();
+        assertThat(myView.contains(id), is(false));
+        assertThat(myView.add(id), is(true));
+        assertThat(myView.contains(id), is(true));
+        assertThat(myView.add(id), is(false));
+    }
+
+    /**
+     * Asking for a service provider's store before it is configured doesn't stop it getting its configured store, and
+     * from then on everyone asking gets the configured one
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testGetInstance_defaultDoesNotShadowConfigured() throws Exception {
+        final ReplayStore early = ReplayStoreFactory.getInstance("LateConsumer");
+        assertThat(early.getClass().getName(), is("com.timepoorprogrammer.saml.impls.standard.consumer.replay.InMemoryReplayStore"));
+        final File journalDirectory = File.createTempFile("replay", ".journal");
+        journalDirectory.delete();
+        Properties properties = new Properties();
+        properties.setProperty("saml.LateConsumer.replayJournalDirectory", journalDirectory.getPath());
+        final ReplayStore configured = ReplayStoreFactory.getInstance(new ConfigurationProperties(properties), "LateConsumer");
+        assertThat(configured.getClass().getName(), is("com.timepoorprogrammer.saml.impls.standard.consumer.replay.JournalledReplayStore"));
+        assertThat(ReplayStoreFactory.getInstance("LateConsumer"), is(sameInstance(configured)));
+    }
+
+    /**
+     * A service provider configured with a replay store file gets the shared store
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testGetInstance_sharedFromConfiguration() throws Exception {
+        final File storeFile = File.createTempFile("replay", ".store");
+        storeFile.delete();
+        storeFile.deleteOnExit();
+        Properties properties = new Properties();
+        properties.setProperty("saml.SharedConsumer.replayStoreFileName", storeFile.getPath());
+        properties.setProperty("saml.SharedConsumer.replayStoreSlots", "1024");
+        final ReplayStore store = ReplayStoreFactory.getInstance(new ConfigurationProperties(properties), "SharedConsumer");
+        assertThat(store.getClass().getName(), is("com.timepoorprogrammer.saml.impls.standard.consumer.replay.SharedFileReplayStore"));
+        assertThat(store.getRetentionMinutes(), is(30));
+    }
+
+    /**
+     * Two stores mapping the same file stand in for two consumer processes, an identifier recorded through one is a
+     * replay when presented to the other.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testSharedFileReplayStore_replayAcrossStores() throws Exception {
+        final File storeFile = File.createTempFile("replay", ".store");
+        storeFile.delete();
+        storeFile.deleteOnExit();
+        final SharedFileReplayStore nodeOne = new SharedFileReplayStore(storeFile.getPath(), 1024, 30);
+        final SharedFileReplayStore nodeTwo = new SharedFileReplayStore(storeFile.getPath(), 1024, 30);
+        for (int i = 0; i < 500; i++) {
+            final String id = UUID.randomUUID().toString();
+            assertThat(nodeTwo.contains(id), is(false));
+            assertThat(nodeOne.add(id), is(true));
+            assertThat(nodeTwo.contains(id), is(true));
+            assertThat(nodeTwo.add(id), is(false));
+            assertThat(nodeOne.add(id), is(false));
+        }
+    }
+
+    /**
+     * A lapsed identifier in the shared store counts as new again
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testSharedFileReplayStore_lapsedIdentifier() throws Exception {
+        final File storeFile = File.createTempFile("replay", ".store");
+        storeFile.delete();
+        storeFile.deleteOnExit();
+        final SharedFileReplayStore classUnderTest = new SharedFileReplayStore(storeFile.getPath(), 1024, 30);
+        final String id = UUID.randomUUID().toString();
+        assertThat(classUnderTest.add(id, System.currentTimeMillis() + 50), is(true));
+        assertThat(classUnderTest.add(id), is(false));
+        Thread.sleep(100);
+        assertThat(classUnderTest.add(id), is(true));
+        assertThat(classUnderTest.add(id), is(false));
+    }
+
+    /**
+     * Identifiers recorded before a restart are still replays afterwards, across several journal segments
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testJournalledReplayStore_survivesRestart() throws Exception {
+        final File journalDirectory = File.createTempFile("replay", ".journal");
+        journalDirectory.delete();
+        final JournalledReplayStore beforeRestart = new JournalledReplayStore(journalDirectory.getPath(), 100, 30);
+        final String[] ids = new String[500];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = UUID.randomUUID().toString();
+            assertThat(beforeRestart.add(ids[i]), is(true));
+        }
+        final String lapsing = UUID.randomUUID().toString();
+        assertThat(beforeRestart.add(lapsing, System.currentTimeMillis() + 50), is(true));
+        beforeRestart.close();
+        Thread.sleep(100);
+
+        final JournalledReplayStore afterRestart = new JournalledReplayStore(journalDirectory.getPath(), 100, 30);
+        for (String id : ids) {
+            assertThat(afterRestart.add(id), is(false));
+        }
+        assertThat(afterRestart.add(lapsing), is(true));
+        afterRestart.close();
+    }
+
+    /**
+     * Lookups the filter can answer never reach the store behind, the store's answers are never changed, and the
+     * filter keeps count of how it did
+     */
+    @Test
+    public void testFilteredReplayStore_sparesLookups() {
+        final AtomicInteger lookups = new AtomicInteger();
+        final InMemoryReplayStore behind = new InMemoryReplayStore() {
+            @Override
+            public boolean contains(final String id) {
+                lookups.incrementAndGet();
+                return super.contains(id);
+            }
+        };
+        final FilteredReplayStore classUnderTest = new FilteredReplayStore(behind, 1 << 16);
+        final String[] ids = new String[1000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = UUID.randomUUID().toString();
+            assertThat(classUnderTest.contains(ids[i]), is(false));
+            assertThat(classUnderTest.add(ids[i]), is(true));
+        }
+        assertThat((long) lookups.get(), is(classUnderTest.getHitCount()));
+        assertThat(classUnderTest.getMissCount() + classUnderTest.getFalsePositiveCount(), is(1000L));
+        assertThat(classUnderTest.getFalsePositiveRate() < 0.01, is(true));
+        for (String id : ids) {
+            assertThat(classUnderTest.contains(id), is(true));
+            assertThat(classUnderTest.add(id), is(false));
+        }
+        assertThat(classUnderTest.getHitCount(), is(1000L + classUnderTest.getFalsePositiveCount()));
+    }
+
+    /**
+     * A filter in one process can't see what other processes record in a shared file, so isn't allowed in front of one
+     *
+     * @throws Exception on error
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testFilteredReplayStore_notInFrontOfSharedFile() throws Exception {
+        final File storeFile = File.createTempFile("replay", ".store");
+        storeFile.delete();
+        storeFile.deleteOnExit();
+        new FilteredReplayStore(new SharedFileReplayStore(storeFile.getPath(), 1024, 30));
+    }
+}
@@ -12,6 +12,8 @@ import com.timepoorprogrammer.saml.impls.SAML11AssertionConsumerProcessorFactory
 import org.junit.Assert;
 import org.junit.Test;
 import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml1.core.Assertion;
+import org.opensaml.saml1.core.DoNotCacheCondition;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
@@ -108,4 +110,37 @@ public class SAML11AssertionConsumerProcessorTest {
             Assert.fail("Error running bespoke scenario test " + anyE.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * A SAML1.1 assertion with a DoNotCacheCondition is one time use, so is accepted the first time it is presented
+     * and rejected as a replay after that, even by another processor for the same service provider
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testValidate_oneTimeUseAssertionAcceptedOnce() throws Exception {
+        final ConfigurationProperties properties = new ConfigurationProperties(PROPERTIES_FILE);
+        final ConsumerConfiguration config = new ConsumerConfiguration(properties, ASSERTION_CONSUMER_NAME);
+        final MetaDataHandler mdHandler = MetaDataHandlerFactory.getInstance(null);
+        final String mdFilePath = TestHelper.getFullPath("^.*fixtures\\\\metadata\\\\" + config.getMetadataFileName() + "$");
+        final EntityTranslation lookup = new EntityTranslation(ENTITY_TRANSLATION_FILE);
+        final String customerCode = lookup.lookupInternalCodeUsingEntityIdentifier("idp_saml11");
+        final SAML11AssertionConsumerProcessor[] processors = new SAML11AssertionConsumerProcessor[2];
+        for (int i = 0; i < processors.length; i++) {
+            processors[i] = SAML11AssertionConsumerProcessorFactory.getInstance(mdFilePath, "idp_saml11", customerCode,
+                    SAMLConstants.SAML11P_NS, ASSERTION_CONSUMER_NAME, mdHandler);
+        }
+
+        final SAML11Handler handler = new SAML11Handler("idp_saml11");
+        final Assertion oneTimeUse = handler.createAssertion(handler.createSubject("jimbo", "timewarner.com", null, "bearer"));
+        oneTimeUse.getConditions().getDoNotCacheConditions().add(
+                (DoNotCacheCondition) handler.create(DoNotCacheCondition.DEFAULT_ELEMENT_NAME));
+        assertThat(processors[0].validate(oneTimeUse, "idp_saml11").isValid(), is(true));
+        assertThat(processors[0].validate(oneTimeUse, "idp_saml11").isValid(), is(false));
+        assertThat(processors[1].validate(oneTimeUse, "idp_saml11").isValid(), is(false));
+
+        final Assertion ordinary = handler.createAssertion(handler.createSubject("jimbo", "timewarner.com", null, "bearer"));
+        assertThat(processors[0].validate(ordinary, "idp_saml11").isValid(), is(true));
+        assertThat(processors[1].validate(ordinary, "idp_saml11").isValid(), is(true));
+    }
+}
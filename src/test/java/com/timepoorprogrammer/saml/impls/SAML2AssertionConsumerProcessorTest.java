@@ -10,11 +10,16 @@ import com.timepoorprogrammer.saml.impls.MetaDataHandler;
 import com.timepoorprogrammer.saml.impls.MetaDataHandlerFactory;
 import com.timepoorprogrammer.saml.impls.SAML2AssertionConsumerProcessor;
 import com.timepoorprogrammer.saml.impls.SAML2AssertionConsumerProcessorFactory;
+import com.timepoorprogrammer.saml.impls.standard.consumer.processor.SignatureVerificationContext;
 import org.junit.Assert;
 import org.junit.Test;
 import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.OneTimeUse;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
 /**
@@ -161,5 +166,61 @@ public class SAML2AssertionConsumerProcessorTest {
         }
     }
 
+    /**
+     * Test the issuer's signing credentials are resolved from the metadata once and shared after that
+     */
+    @Test
+    public void testSignatureVerificationContext_sharedPerIssuer() {
+        try {
+            final ConfigurationProperties properties = new ConfigurationProperties(PROPERTIES_FILE);
+            final ConsumerConfiguration config = new ConsumerConfiguration(properties, ASSERTION_CONSUMER_NAME);
+            final MetaDataHandler mdHandler = MetaDataHandlerFactory.getInstance(null);
 
-}
\ No newline at end of file
+            final String mdFilePath = TestHelper.getFullPath("^.*fixtures\\\\metadata\\\\" + config.getMetadataFileName() + "$");
+            final MetadataProvider mdProvider = mdHandler.getMetadata(mdFilePath);
+            final String issuer = "https://fed-uat.baplc.com/fed/idp";
+
+            final SignatureVerificationContext context =
+                    SignatureVerificationContext.getInstance(mdHandler, mdProvider, issuer, SAMLConstants.SAML20P_NS);
+            assertThat(context.getTrustedCredentialCount() > 0, is(true));
+            assertThat(SignatureVerificationContext.getInstance(mdHandler, mdProvider, issuer, SAMLConstants.SAML20P_NS),
+                    is(sameInstance(context)));
+        } catch (Exception anyE) {
+            Assert.fail("Error running signature verification context test " + anyE.getMessage());
+        }
+    }
+
+    /**
+     * A OneTimeUse assertion is accepted the first time it is presented and rejected as a replay after that, even by
+     * another processor for the same service provider, while an ordinary assertion can be presented again
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testValidate_oneTimeUseAssertionAcceptedOnce() throws Exception {
+        final ConfigurationProperties properties = new ConfigurationProperties(PROPERTIES_FILE);
+        final ConsumerConfiguration config = new ConsumerConfiguration(properties, ASSERTION_CONSUMER_NAME);
+        final MetaDataHandler mdHandler = MetaDataHandlerFactory.getInstance(null);
+        final EntityTranslation lookup = new EntityTranslation(ENTITY_TRANSLATION_FILE);
+        final String customerCode = lookup.lookupInternalCodeUsingEntityIdentifier("idp_saml2");
+        final String mdFilePath = TestHelper.getFullPath("^.*fixtures\\\\metadata\\\\" + config.getMetadataFileName() + "$");
+        final String privateKeyStorePath = TestHelper.getFullPath("^.*fixtures\\\\keystores\\\\" + config.getKeyStoreName() + "$");
+        final SAML2AssertionConsumerProcessor[] processors = new SAML2AssertionConsumerProcessor[2];
+        for (int i = 0; i < processors.length; i++) {
+            processors[i] = SAML2AssertionConsumerProcessorFactory.getInstance(mdFilePath, "idp_saml2", customerCode,
+                    SAMLConstants.SAML20P_NS, ASSERTION_CONSUMER_NAME, mdHandler, privateKeyStorePath,
+                    config.getKeyStorePassword(), config.getDecryptionKeyAlias(), config.getDecryptionKeyPassword());
+        }
+
+        final SAML2Handler handler = new SAML2Handler("idp_saml2");
+        final Assertion oneTimeUse = handler.createAssertion(handler.createSubject("jimbo", null, "bearer"));
+        oneTimeUse.getConditions().getConditions().add((OneTimeUse) handler.create(OneTimeUse.DEFAULT_ELEMENT_NAME));
+        assertThat(processors[0].validate(oneTimeUse, "idp_saml2").isValid(), is(true));
+        assertThat(processors[0].validate(oneTimeUse, "idp_saml2").isValid(), is(false));
+        assertThat(processors[1].validate(oneTimeUse, "idp_saml2").isValid(), is(false));
+
+        final Assertion ordinary = handler.createAssertion(handler.createSubject("jimbo", null, "bearer"));
+        assertThat(processors[0].validate(ordinary, "idp_saml2").isValid(), is(true));
+        assertThat(processors[1].validate(ordinary, "idp_saml2").isValid(), is(true));
+    }
+}
@@ -4,8 +4,10 @@ import com.timepoorprogrammer.saml.TestHelper;
 import com.timepoorprogrammer.saml.TestHelper;
 import com.timepoorprogrammer.saml.configuration.ConsumerRedirectionConfiguration;
 import com.timepoorprogrammer.saml.core.InboundSAML2Message;
+import com.timepoorprogrammer.saml.core.ResponsePreScan;
 import com.timepoorprogrammer.saml.core.SAML2Handler;
 import com.timepoorprogrammer.saml.core.SAMLAssertionValidationResult;
+import com.timepoorprogrammer.saml.core.SAMLAssertionsValidationResult;
 import com.timepoorprogrammer.saml.core.SAMLResponseValidationResult;
 import com.timepoorprogrammer.saml.impls.SAML2AssertionConsumer;
 import com.timepoorprogrammer.saml.impls.SAML2AssertionConsumerProcessor;
@@ -21,15 +23,20 @@ import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.mock.web.MockHttpServletRequest;
+import org.w3c.dom.Document;
 
 import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
@@ -936,6 +943,141 @@ public class SAML2AssertionConsumerTest {
         }
     }
 
+    /**
+     * Test processors are built once per issuer and built again once invalidated
+     */
+    @Test
+    public void testConsumer_ProcessorCachedPerIssuer() {
+        SAML2AssertionConsumer classUnderTest =
+                new SAML2AssertionConsumer("MyView", PROPERTIES_FILE, ENTITY_TRANSLATION_FILE, META_DATA_FILE, PRIVATE_DECRYPTION_KEY_FILE);
+        final SAML2AssertionConsumerProcessor processor = classUnderTest.getProcessor("idp_saml2");
+        assertThat(classUnderTest.getProcessor("idp_saml2") == processor, is(true));
+        classUnderTest.invalidateProcessors();
+        final SAML2AssertionConsumerProcessor rebuilt = classUnderTest.getProcessor("idp_saml2");
+        assertThat(rebuilt == processor, is(false));
+        assertThat(rebuilt.getDecrypter(), is(notNullValue()));
+    }
+
+    /**
+     * Test every assertion in a response is decrypted and validated, whether it holds one or several
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testConsumer_ProcessAssertions() throws Exception {
+        SAML2AssertionConsumer classUnderTest =
+                new SAML2AssertionConsumer("MyView", PROPERTIES_FILE, ENTITY_TRANSLATION_FILE, META_DATA_FILE, PRIVATE_DECRYPTION_KEY_FILE);
+        SAMLMessageContext context = new BasicSAMLMessageContext();
+        context.setInboundMessageTransport(new HttpServletRequestAdapter(
+                buildIncomingHTTPRequest("idp_saml2", "MyView", "payslips", "189502", null)));
+        new HTTPPostDecoder().decode(context);
+        final InboundSAML2Message message = classUnderTest.getMessageDetails(context);
+        final Response samlResponse = message.getResponse();
+        final SAMLAssertionsValidationResult single = classUnderTest.processAssertions(samlResponse, message.getIssuer());
+        assertThat(single.isValid(), is(true));
+        assertThat(single.getResults().size(), is(1));
+
+        // Add an attribute and an entitlement assertion, as some partners send
+        final SAML2AssertionProducer producer = new SAML2AssertionProducer("idp_saml2", "MyView", HANDLER, PROPERTIES_FILE,
+                ENTITY_TRANSLATION_FILE, META_DATA_FILE, PRIVATE_SIGNING_KEY_FILE);
+        for (int i = 0; i < 2; i++) {
+            samlResponse.getEncryptedAssertions().add(producer.getProcessor().getEncrypter()
+                    .encryptAssertion(producer.getProcessor().createAuthnAssertion(HANDLER, "189502")));
+        }
+        final SAMLAssertionsValidationResult several = classUnderTest.processAssertions(samlResponse, message.getIssuer());
+        assertThat(several.getErrorDetails(), several.isValid(), is(true));
+        assertThat(several.getResults().size(), is(3));
+        for (Assertion assertion : several.getValidAssertions()) {
+            assertThat(assertion.getSubject().getNameID().getValue(), is("189502"));
+        }
+    }
+
+    /**
+     * Test a payload is pre-scanned for its issuer and identifier, and turned away before decoding if it is for
+     * somewhere else or has already been seen
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testConsumer_PreScan() throws Exception {
+        SAML2AssertionConsumer classUnderTest =
+                new SAML2AssertionConsumer("MyView", PROPERTIES_FILE, ENTITY_TRANSLATION_FILE, META_DATA_FILE, PRIVATE_DECRYPTION_KEY_FILE);
+        final HttpServletRequest request = buildIncomingHTTPRequest("idp_saml2", "MyView", "payslips", "189502", null);
+        final ResponsePreScan preScan = classUnderTest.preScan(request.getParameter("SAMLResponse"));
+        log.info("Pre-scanned {}", preScan);
+        assertThat(preScan.isSAML2(), is(true));
+        assertThat(preScan.getIssuer(), is("idp_saml2"));
+        assertThat(preScan.getResponseId(), is(notNullValue()));
+        assertThat(preScan.getIssueInstant(), is(notNullValue()));
+        assertThat(classUnderTest.validatePreScan(preScan, preScan.getDestination()).isValid(), is(true));
+        assertThat(classUnderTest.validatePreScan(preScan, "https://elsewhere.example.com/acs").isValid(), is(false));
+        assertThat(classUnderTest.validatePreScan(classUnderTest.preScan("bm90IFNBTUw="), null).isValid(), is(false));
+
+        SAMLMessageContext context = new BasicSAMLMessageContext();
+        context.setInboundMessageTransport(new HttpServletRequestAdapter(request));
+        new HTTPPostDecoder(classUnderTest.getParserPool()).decode(context);
+        final InboundSAML2Message message = classUnderTest.getMessageDetails(context, preScan);
+        assertThat(message.hasRequiredDetails(), is(true));
+        assertThat(message.getResponse().getID(), is(preScan.getResponseId()));
+
+        // Once the response has been through the full checks, the pre-scan sees any replay of it
+        assertThat(classUnderTest.getProcessor(message.getIssuer()).validate(message.getResponse()).isValid(), is(true));
+        final SAMLResponseValidationResult replay = classUnderTest.validatePreScan(preScan, null);
+        assertThat(replay.isValid(), is(false));
+        log.info("Replay turned away: {}", replay.getErrorDetails());
+    }
+
+    /**
+     * Test the encrypted assertions of a response, all in the response's own document as when received, are decrypted
+     * and validated on many threads at once, round after round, without any of them touching the response's document
+     * but the calling thread
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testConsumer_ProcessAssertionsConcurrently() throws Exception {
+        SAML2AssertionConsumer classUnderTest =
+                new SAML2AssertionConsumer("MyView", PROPERTIES_FILE, ENTITY_TRANSLATION_FILE, META_DATA_FILE, PRIVATE_DECRYPTION_KEY_FILE);
+        final SAML2AssertionProducer producer = new SAML2AssertionProducer("idp_saml2", "MyView", HANDLER, PROPERTIES_FILE,
+                ENTITY_TRANSLATION_FILE, META_DATA_FILE, PRIVATE_SIGNING_KEY_FILE);
+        final int encrypted = 8;
+        for (boolean withPlainAssertion : new boolean[]{true, false}) {
+            final Response response = HANDLER.createResponse(StatusCode.SUCCESS_URI, "AccessRequest", null);
+            if (withPlainAssertion) {
+                response.getAssertions().add(producer.getProcessor().createAuthnAssertion(HANDLER, "189502"));
+            }
+            for (int i = 0; i < encrypted; i++) {
+                response.getEncryptedAssertions().add(producer.getProcessor().getEncrypter()
+                        .encryptAssertion(producer.getProcessor().createAuthnAssertion(HANDLER, "189502")));
+            }
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            HANDLER.printToStream(response, received);
+            final String issuer = "idp_saml2";
+            final int expected = encrypted + (withPlainAssertion ? 1 : 0);
+            final AssertionProcessingPool pool = new AssertionProcessingPool(4);
+            try {
+                for (int round = 0; round < 20; round++) {
+                    final Response samlResponse = (Response) HANDLER.readFromStream(new ByteArrayInputStream(received.toByteArray()));
+                    final Document responseDocument = samlResponse.getDOM().getOwnerDocument();
+                    final SAMLAssertionsValidationResult result =
+                            pool.process(classUnderTest.getProcessor(issuer), samlResponse, issuer);
+                    assertThat(result.getErrorDetails(), result.isValid(), is(true));
+                    assertThat(result.getResults().size(), is(expected));
+                    final Set<Document> documents = new HashSet<Document>();
+                    for (Assertion assertion : result.getValidAssertions()) {
+                        assertThat(assertion.getSubject().getNameID().getValue(), is("189502"));
+                        documents.add(assertion.getDOM().getOwnerDocument());
+                    }
+                    // Every decrypted assertion ended up in a document of its own
+                    documents.remove(responseDocument);
+                    assertThat(documents.size(), is(encrypted));
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
     /**
      * Build an incoming HttpServletRequest holding the contents of a POSTed SAML2 base64 encoded payload that makes
      * sense given the producer name, and service name, and the consequently looked up meta-data which drives whether
@@ -15,8 +15,11 @@ import org.w3c.dom.Element;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
@@ -339,4 +342,29 @@ public class SAML2AssertionProducerTest {
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Test getting SAML payloads for a batch of users signed off the calling thread
+     */
+    @Test
+    public void testSubmitSAMLResponsePayloads() {
+        try {
+            // Construct the producer
+            SAML2AssertionProducer producer =
+                    new SAML2AssertionProducer(PRODUCER, SERVICE, HANDLER, PROPERTIES_FILE, ENTITY_TRANSLATION_FILE, META_DATA_FILE, PRIVATE_KEY_FILE);
+
+            // Submit more users than there is room for at once, so the submitter has to wait for the workers
+            final List<String> users = new ArrayList<String>();
+            for (int i = 0; i < Runtime.getRuntime().availableProcessors() * 10; i++) {
+                users.add("1895" + i);
+            }
+            final List<Future<String>> payloads = producer.submitSAMLResponsePayloads(users);
+            assertThat(payloads.size(), is(users.size()));
+            for (Future<String> payload : payloads) {
+                Assert.assertNotNull(payload.get());
+            }
+        } catch (Exception anyE) {
+            Assert.fail("Error running batch payload test " + anyE.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.timepoorprogrammer.saml.impls;
+
+import com.timepoorprogrammer.saml.configuration.ConfigurationProperties;
+import com.timepoorprogrammer.saml.security.encryption.SessionKeyReusePolicy;
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for the session key reuse policy factory.
+ *
+ * @author Jim Ball
+ */
+public class SessionKeyReusePolicyFactoryTest {
+    /**
+     * A service's policy is read from configuration the first time it is looked up with configuration, whatever was
+     * asked for before, and a later lookup with different configuration keeps the first policy
+     */
+    @Test
+    public void testGetInstance_readOnFirstLookup() {
+        assertThat(SessionKeyReusePolicyFactory.getInstance("ReuseService"), is(SessionKeyReusePolicy.NONE));
+
+        Properties properties = new Properties();
+        properties.setProperty("saml.ReuseService.sessionKeyReuseAssertions", "10");
+        properties.setProperty("saml.ReuseService.sessionKeyReuseSeconds", "60");
+        final SessionKeyReusePolicy configured =
+                SessionKeyReusePolicyFactory.getInstance(new ConfigurationProperties(properties), "ReuseService");
+        assertThat(configured, is(new SessionKeyReusePolicy(10, 60)));
+        assertThat(SessionKeyReusePolicyFactory.getInstance("ReuseService"), is(configured));
+
+        properties = new Properties();
+        properties.setProperty("saml.ReuseService.sessionKeyReuseAssertions", "20");
+        properties.setProperty("saml.ReuseService.sessionKeyReuseSeconds", "60");
+        assertThat(SessionKeyReusePolicyFactory.getInstance(new ConfigurationProperties(properties), "ReuseService"),
+                is(configured));
+    }
+
+    /**
+     * A service with nothing configured doesn't reuse session keys
+     */
+    @Test
+    public void testGetInstance_noReuseByDefault() {
+        assertThat(SessionKeyReusePolicyFactory.getInstance(new ConfigurationProperties(new Properties()), "PlainService"),
+                is(SessionKeyReusePolicy.NONE));
+    }
+}
@@ -0,0 +1,111 @@
+package com.timepoorprogrammer.saml.security;
+
+import com.timepoorprogrammer.saml.TestHelper;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for the keystore credential registry.
+ *
+ * @author Jim Ball
+ */
+public class CredentialRegistryTest {
+    /**
+     * Path to key file holding the private key needed to do decryption
+     */
+    private static final String PRIVATE_DECRYPTION_KEY_FILE = TestHelper.getFullPath("^.*fixtures\\\\keystores\\\\serviceKeyStore.jks$");
+
+    /**
+     * The same keystore gets the same handler, whether read by path or stream, its private key is unwrapped once and its decryption engine built once,
+     * and each caller gets credentials of its own
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testGetHandler_sharedPerKeyStore() throws Exception {
+        final KeyStoreCredentialHandler byPath = CredentialRegistry.getHandler(PRIVATE_DECRYPTION_KEY_FILE, "rmi+ssl");
+        assertThat(CredentialRegistry.getHandler(PRIVATE_DECRYPTION_KEY_FILE, "rmi+ssl"), is(sameInstance(byPath)));
+        final KeyStoreCredentialHandler byStream = CredentialRegistry.getHandler(new FileInputStream(new File(PRIVATE_DECRYPTION_KEY_FILE)), "rmi+ssl");
+        assertThat(CredentialRegistry.getHandler(new FileInputStream(new File(PRIVATE_DECRYPTION_KEY_FILE)), "rmi+ssl"), is(sameInstance(byStream)));
+        assertThat(byStream.getPrivateCredentials("remoteservice", "remoteservice").getPrivateKey(), is(notNullValue()));
+        assertThat(byStream.getPrivateCredentials("remoteservice", "remoteservice"),
+                is(not(sameInstance(byStream.getPrivateCredentials("remoteservice", "remoteservice")))));
+        assertThat(byStream.getPrivateCredentials("remoteservice", "remoteservice").getPrivateKey(),
+                is(sameInstance(byStream.getPrivateCredentials("remoteservice", "remoteservice").getPrivateKey())));
+        assertThat(byStream.getDecryptionEngine("remoteservice", "remoteservice"),
+                is(sameInstance(byStream.getDecryptionEngine("remoteservice", "remoteservice"))));
+        assertThat(byStream.getDecrypter("remoteservice", "remoteservice"), is(sameInstance(byStream.getDecrypter("remoteservice", "remoteservice"))));
+    }
+
+    /**
+     * A keystore file that is replaced gets a new handler, which takes the place of the old one
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testGetHandler_replacedFileEvicted() throws Exception {
+        final File copy = File.createTempFile("serviceKeyStore", ".jks");
+        copy.deleteOnExit();
+        copy(new FileInputStream(new File(PRIVATE_DECRYPTION_KEY_FILE)), new FileOutputStream(copy));
+        copy.setLastModified(1000000000000L);
+        final KeyStoreCredentialHandler original = CredentialRegistry.getHandler(copy.getPath(), "rmi+ssl");
+        assertThat(CredentialRegistry.getHandler(copy.getPath(), "rmi+ssl"), is(sameInstance(original)));
+
+        copy(new FileInputStream(new File(PRIVATE_DECRYPTION_KEY_FILE)), new FileOutputStream(copy));
+        copy.setLastModified(1000000060000L);
+        final KeyStoreCredentialHandler replaced = CredentialRegistry.getHandler(copy.getPath(), "rmi+ssl");
+        assertThat(replaced, is(not(sameInstance(original))));
+        assertThat(CredentialRegistry.getHandler(copy.getPath(), "rmi+ssl"), is(sameInstance(replaced)));
+    }
+
+    /**
+     * Only the most recently used keystore stream handlers are kept
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testGetHandler_streamHandlersBounded() throws Exception {
+        CredentialRegistry.clear();
+        final byte[] first = emptyKeyStore("password0");
+        final KeyStoreCredentialHandler firstHandler = CredentialRegistry.getHandler(new ByteArrayInputStream(first), "password0");
+        for (int i = 1; i <= CredentialRegistry.MAX_STREAM_HANDLERS; i++) {
+            CredentialRegistry.getHandler(new ByteArrayInputStream(emptyKeyStore("password" + i)), "password" + i);
+        }
+        assertThat(CredentialRegistry.getHandler(new ByteArrayInputStream(first), "password0"), is(not(sameInstance(firstHandler))));
+    }
+
+    private static byte[] emptyKeyStore(final String password) throws Exception {
+        final KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(null, password.toCharArray());
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        keyStore.store(out, password.toCharArray());
+        return out.toByteArray();
+    }
+
+    private static void copy(final InputStream in, final OutputStream out) throws Exception {
+        try {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.timepoorprogrammer.saml.security;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for the per thread JCA engine cache.
+ *
+ * @author Jim Ball
+ */
+public class JCAEnginesTest {
+    /**
+     * A thread gets the same engine each time, reset in the case of a digest, and another thread gets its own
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testEngines_perThread() throws Exception {
+        final MessageDigest digest = JCAEngines.getMessageDigest("SHA-256");
+        digest.update(new byte[]{1, 2, 3});
+        assertThat(JCAEngines.getMessageDigest("SHA-256"), is(sameInstance(digest)));
+        assertThat(toHex(JCAEngines.getMessageDigest("SHA-256").digest(new byte[0])),
+                is(toHex(MessageDigest.getInstance("SHA-256").digest(new byte[0]))));
+        assertThat(JCAEngines.getKeyGenerator("AES", 128), is(sameInstance(JCAEngines.getKeyGenerator("AES", 128))));
+        assertThat(JCAEngines.getKeyGenerator("AES", 128), is(not(sameInstance(JCAEngines.getKeyGenerator("AES", 256)))));
+
+        final AtomicReference<MessageDigest> other = new AtomicReference<MessageDigest>();
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                other.set(JCAEngines.getMessageDigest("SHA-256"));
+            }
+        });
+        thread.start();
+        thread.join();
+        assertThat(other.get(), is(not(sameInstance(digest))));
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -4,6 +4,7 @@ import com.timepoorprogrammer.saml.TestHelper;
 import com.timepoorprogrammer.saml.TestHelper;
 import com.timepoorprogrammer.saml.core.SAML2Handler;
 import com.timepoorprogrammer.saml.core.IOHelper;
+import com.timepoorprogrammer.saml.security.CredentialRegistry;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
@@ -125,6 +126,23 @@ public class AsymmetricalSessionKeySAMLDecrypterTest  {
         handler.printToFile(gotAssertion, null);
     }
 
+    /**
+     * An encrypted session key we have already decrypted is taken from the session key cache the next time
+     */
+    @Test
+    public void testDecryptAssertion_sessionKeyCached() {
+        SAML2Handler handler = new SAML2Handler();
+        IOHelper ioHelper = new IOHelper();
+        final String keyStorePath = TestHelper.getFullPath("^.*fixtures\\\\keystores\\\\serviceKeyStore.jks$");
+        final DecryptionEngine engine = new DecryptionEngine(CredentialRegistry.getHandler(keyStorePath, "rmi+ssl")
+                .getPrivateCredentials("remoteservice", "remoteservice"));
+        final Assertion first = engine.decryptAssertion(getValidEncryptedAuthenticationAssertion(handler, ioHelper));
+        final Assertion second = engine.decryptAssertion(getValidEncryptedAuthenticationAssertion(handler, ioHelper));
+        assertThat(second.getSubject().getNameID().getValue(), is(first.getSubject().getNameID().getValue()));
+        assertThat(engine.getSessionKeyCache().getMisses(), is(1L));
+        assertThat(engine.getSessionKeyCache().getHits(), is(1L));
+        assertThat(engine.getSessionKeyCache().size(), is(1));
+    }
 
     /**
      * Go look at the sample encrypted SAML Authentication assertion in fixtures/canned_saml/Assertion
@@ -7,6 +7,19 @@ import com.timepoorprogrammer.saml.security.encryption.AsymmetricalSessionKeySAM
 import org.junit.Test;
 import org.opensaml.saml1.core.NameIdentifier;
 import org.opensaml.saml2.core.*;
+import org.opensaml.xml.encryption.EncryptionConstants;
+import org.opensaml.xml.security.credential.Credential;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
 
 public class AsymmetricalSessionKeySAMLEncrypterTest {
     @Test
@@ -24,6 +37,118 @@ public class AsymmetricalSessionKeySAMLEncrypterTest {
         handler.printToFile(samlResponse, null);
     }
 
+    /**
+     * One encrypter can encrypt any number of assertions, and each gets a session key of its own
+     */
+    @Test
+    public void testEncryptAssertion_sessionKeyPerAssertion() {
+        SAML2Handler handler = new SAML2Handler("MC");
+        final String keyStorePath = TestHelper.getFullPath("^.*fixtures\\\\keystores\\\\clientKeyStore.jks$");
+        final AsymmetricalSessionKeySAMLEncrypter encrypter =
+                new AsymmetricalSessionKeySAMLEncrypter(keyStorePath, "rmi+ssl", "remoteservice");
+        final EncryptedAssertion first = encrypter.encryptAssertion(getValidAuthenticationAssertion(handler));
+        final EncryptedAssertion second = encrypter.encryptAssertion(getValidAuthenticationAssertion(handler));
+        assertThat(getEncryptedSessionKey(first), is(not(getEncryptedSessionKey(second))));
+    }
+
+    /**
+     * The best content encryption algorithm both sides support is picked, and 4K and 16K assertions encrypted with
+     * every content encryption algorithm supported here decrypt back to what went in.
+     */
+    @Test
+    public void testEncryptAssertion_contentAlgorithms() throws Exception {
+        final List<String> advertised = Arrays.asList(EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSA15,
+                EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128, EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES256,
+                EncryptionAlgorithms.ALGO_ID_BLOCKCIPHER_AES128_GCM, EncryptionAlgorithms.ALGO_ID_BLOCKCIPHER_AES256_GCM);
+        String expected = EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128;
+        for (String algorithm : new String[]{EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES256,
+                EncryptionAlgorithms.ALGO_ID_BLOCKCIPHER_AES128_GCM, EncryptionAlgorithms.ALGO_ID_BLOCKCIPHER_AES256_GCM}) {
+            if (EncryptionAlgorithms.isSupported(algorithm)) {
+                expected = algorithm;
+            }
+        }
+        assertThat(EncryptionAlgorithms.selectContentAlgorithm(advertised), is(expected));
+        assertThat(EncryptionAlgorithms.selectContentAlgorithm(Arrays.asList("urn:unknown")),
+                is(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128));
+
+        SAML2Handler handler = new SAML2Handler("MC");
+        final String keyStorePath = TestHelper.getFullPath("^.*fixtures\\\\keystores\\\\clientKeyStore.jks$");
+        final Credential publicCredentials = new AsymmetricalSessionKeySAMLEncrypter(keyStorePath, "rmi+ssl",
+                "remoteservice").encryptionContext.getEncryptionCredentials();
+        final AsymmetricalSessionKeySAMLDecrypter decrypter = new AsymmetricalSessionKeySAMLDecrypter(
+                TestHelper.getFullPath("^.*fixtures\\\\keystores\\\\serviceKeyStore.jks$"), "rmi+ssl", "remoteservice",
+                "remoteservice");
+        for (String algorithm : advertised) {
+            if (EncryptionAlgorithms.isContentAlgorithm(algorithm) && EncryptionAlgorithms.isSupported(algorithm)) {
+                final EncryptionContext context = new EncryptionContext(publicCredentials,
+                        EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSA15, algorithm);
+                for (int size : new int[]{4096, 16384}) {
+                    final Assertion assertion = getSizedAttributeAssertion(handler, size);
+                    final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+                    handler.printToStream(context.encryptAssertion(assertion), wire);
+                    final EncryptedAssertion encrypted = (EncryptedAssertion) handler.readFromStream(
+                            new ByteArrayInputStream(wire.toByteArray()));
+                    assertThat(encrypted.getEncryptedData().getEncryptionMethod().getAlgorithm(), is(algorithm));
+                    final Assertion decrypted = decrypter.decryptAssertion(encrypted);
+                    assertThat(decrypted.getID(), is(assertion.getID()));
+                    assertThat(decrypted.getSubject().getNameID().getValue(), is("189502"));
+                    assertThat(decrypted.getAttributeStatements().get(0).getAttributes().size(),
+                            is(assertion.getAttributeStatements().get(0).getAttributes().size()));
+                }
+            }
+        }
+    }
+
+    /**
+     * A session key is reused for as many assertions as the reuse policy allows and then replaced, and assertions
+     * sharing a session key still don't share ciphertext
+     */
+    @Test
+    public void testEncryptAssertion_sessionKeyReuse() {
+        SAML2Handler handler = new SAML2Handler("MC");
+        final String keyStorePath = TestHelper.getFullPath("^.*fixtures\\\\keystores\\\\clientKeyStore.jks$");
+        final Credential publicCredentials = new AsymmetricalSessionKeySAMLEncrypter(keyStorePath, "rmi+ssl",
+                "remoteservice").encryptionContext.getEncryptionCredentials();
+        final EncryptionContext context = new EncryptionContext(publicCredentials,
+                EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSA15, EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128,
+                new SessionKeyReusePolicy(3, 60));
+        final AsymmetricalSessionKeySAMLEncrypter encrypter = new AsymmetricalSessionKeySAMLEncrypter(context);
+        final EncryptedAssertion first = encrypter.encryptAssertion(getValidAuthenticationAssertion(handler));
+        final EncryptedAssertion second = encrypter.encryptAssertion(getValidAuthenticationAssertion(handler));
+        final EncryptedAssertion third = encrypter.encryptAssertion(getValidAuthenticationAssertion(handler));
+        final EncryptedAssertion fourth = encrypter.encryptAssertion(getValidAuthenticationAssertion(handler));
+        assertThat(getEncryptedSessionKey(second), is(getEncryptedSessionKey(first)));
+        assertThat(getEncryptedSessionKey(third), is(getEncryptedSessionKey(first)));
+        assertThat(getEncryptedSessionKey(fourth), is(not(getEncryptedSessionKey(first))));
+        assertThat(getCipherValue(second), is(not(getCipherValue(first))));
+        assertThat(context.getAssertionsEncrypted(), is(4L));
+        assertThat(context.getSessionKeysWrapped(), is(2L));
+    }
+
+    private String getCipherValue(final EncryptedAssertion encryptedAssertion) {
+        return encryptedAssertion.getEncryptedData().getCipherData().getCipherValue().getValue();
+    }
+
+    private String getEncryptedSessionKey(final EncryptedAssertion encryptedAssertion) {
+        return encryptedAssertion.getEncryptedData().getKeyInfo().getEncryptedKeys().get(0).getCipherData().getCipherValue().getValue();
+    }
+
+    /**
+     * Get an attribute assertion padded out with attributes to roughly the size given
+     *
+     * @param handler SAML handler
+     * @param size    rough size in bytes
+     * @return assertion
+     */
+    private Assertion getSizedAttributeAssertion(final SAML2Handler handler, final int size) {
+        final Map<String, String> attributes = new HashMap<String, String>();
+        for (int i = 0; i < size / 128; i++) {
+            attributes.put("attribute" + i, "value of attribute " + i + " padding out the assertion");
+        }
+        final Subject subject = handler.createSubject("189502", NameIdentifier.UNSPECIFIED, "bearer");
+        return handler.createAttributeAssertion(subject, attributes);
+    }
+
     /**
      * Go look at the sample un-encoded SAML Authentication assertion in fixtures/canned_saml/Assertion
      *
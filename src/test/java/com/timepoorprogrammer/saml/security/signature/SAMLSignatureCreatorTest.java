@@ -7,11 +7,24 @@ import com.timepoorprogrammer.saml.security.signature.X509SAMLSignatureCreator;
 import org.junit.Test;
 import org.opensaml.saml2.core.*;
 import org.opensaml.xml.Configuration;
+import org.opensaml.xml.security.BasicSecurityConfiguration;
+import org.opensaml.xml.signature.KeyInfo;
 import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureConstants;
 import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.signature.X509Certificate;
+import org.opensaml.xml.signature.X509Data;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
 /**
  * SAMLSignatureCreator Tester.
  *
@@ -71,4 +84,137 @@ public class SAMLSignatureCreatorTest {
             throw new RuntimeException(errorMessage, anyE);
         }
     }
+
+    /**
+     * Test the signing key is worked out once and each signature gets key information of its own
+     */
+    @Test
+    public void testGetSigningProfile_sharedPerKey() {
+        SAML2Handler handler = new SAML2Handler("http://timewarner.com/IDPService");
+        final String keyStorePath = TestHelper.getFullPath("^.*fixtures\\\\keystores\\\\clientKeyStore.jks$");
+        final X509SAMLSignatureCreator sigCreator = new X509SAMLSignatureCreator(keyStorePath, "rmi+ssl");
+
+        final SigningProfile profile = sigCreator.getSigningProfile("localclient", "localclient");
+        assertThat(sigCreator.getSigningProfile("localclient", "localclient"), is(sameInstance(profile)));
+
+        Signature first = (Signature) handler.create(Signature.DEFAULT_ELEMENT_NAME);
+        Signature second = (Signature) handler.create(Signature.DEFAULT_ELEMENT_NAME);
+        sigCreator.finishSignature(first, "localclient", "localclient");
+        sigCreator.finishSignature(second, "localclient", "localclient");
+        assertThat(first.getSigningCredential(), is(sameInstance(second.getSigningCredential())));
+        assertThat(first.getSignatureAlgorithm(), is(profile.getSignatureAlgorithm()));
+        assertThat(first.getKeyInfo(), is(not(sameInstance(second.getKeyInfo()))));
+        assertThat(first.getKeyInfo().getX509Datas().get(0).getX509Certificates().get(0).getValue(),
+                is(second.getKeyInfo().getX509Datas().get(0).getX509Certificates().get(0).getValue()));
+    }
+
+    /**
+     * ECDSA-SHA256 is only registered for EC keys where the platform can sign with it, which it can't on the Java 1.6
+     * stack this library targets, and registering never replaces the algorithm of a key algorithm that has one
+     */
+    @Test
+    public void testRegister_ecOnlyWhereSupported() {
+        final BasicSecurityConfiguration configuration = new BasicSecurityConfiguration();
+        configuration.registerSignatureAlgorithmURI("RSA", SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA1);
+        SignatureAlgorithms.register(configuration);
+        assertThat(configuration.getSignatureAlgorithmURI("RSA"), is(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA1));
+        assertThat(configuration.getSignatureAlgorithmURI(SignatureAlgorithms.KEY_ALGORITHM_EC),
+                is(SignatureAlgorithms.isSupported(SignatureAlgorithms.ALGO_ID_SIGNATURE_ECDSA_SHA256)
+                        ? SignatureAlgorithms.ALGO_ID_SIGNATURE_ECDSA_SHA256 : null));
+
+        configuration.registerSignatureAlgorithmURI(SignatureAlgorithms.KEY_ALGORITHM_EC, "urn:already:registered");
+        SignatureAlgorithms.register(configuration);
+        assertThat(configuration.getSignatureAlgorithmURI(SignatureAlgorithms.KEY_ALGORITHM_EC), is("urn:already:registered"));
+        assertThat(SignatureAlgorithms.isSupported("urn:unknown"), is(false));
+    }
+
+    /**
+     * Test signing with an EC P-256 key gives an ECDSA-SHA256 signature that checks out against its certificate, on
+     * runtimes newer than the Java 1.6 stack this library targets where the ECDSA mapping gets registered
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testFinishSignature_ecKey() throws Exception {
+        SAML2Handler handler = new SAML2Handler("http://timewarner.com/IDPService");
+        final String keyStorePath = TestHelper.getFullPath("^.*fixtures\\\\keystores\\\\clientECKeyStore.jks$");
+        final X509SAMLSignatureCreator sigCreator = new X509SAMLSignatureCreator(keyStorePath, "rmi+ssl");
+        // ECDSA needs Java 7 or later and an XML security library that knows the algorithm
+        assumeTrue(sigCreator.getSecurityConfiguration().getSignatureAlgorithmURI(SignatureAlgorithms.KEY_ALGORITHM_EC) != null);
+
+        final Response response = createSignedResponse(handler, sigCreator, "localclientec");
+        assertThat(response.getSignature().getSignatureAlgorithm(), is(SignatureAlgorithms.ALGO_ID_SIGNATURE_ECDSA_SHA256));
+
+        // Check it in a thread of its own, see SignedResponseValidator
+        final boolean[] valid = new boolean[1];
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                valid[0] = new SAMLSignatureValidator(keyStorePath, "rmi+ssl", "localclientec", "localclientec").isValid(response);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertThat(valid[0], is(true));
+    }
+
+    /**
+     * Test a validator made from a whole trust keystore checks a signature with the key registered for the issuer,
+     * and refuses a signature that names a trusted certificate other than the issuer's or that it can't decode
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testIsValid_keyPickedFromTrustKeyStore() throws Exception {
+        SAML2Handler handler = new SAML2Handler("localclient");
+        final X509SAMLSignatureCreator sigCreator = new X509SAMLSignatureCreator(
+                TestHelper.getFullPath("^.*fixtures\\\\keystores\\\\clientKeyStore.jks$"), "rmi+ssl");
+        final Response response = createSignedResponse(handler, sigCreator, "localclient");
+
+        final TrustedCertificateIndex trustedCertificates = new TrustedCertificateIndex(
+                TestHelper.getFullPath("^.*fixtures\\\\keystores\\\\serviceKeyStore.jks$"), "rmi+ssl");
+        assertThat(trustedCertificates.size() > 1, is(true));
+        assertThat(trustedCertificates.select(response.getSignature(), "localclient"), is(notNullValue()));
+        assertThat(trustedCertificates.select(response.getSignature(), null), is(nullValue()));
+        // Signed by localclient, so can't pass as from another partner whose certificate we hold
+        assertThat(trustedCertificates.select(response.getSignature(), "tw"), is(nullValue()));
+
+        final Signature undecodable = (Signature) handler.create(Signature.DEFAULT_ELEMENT_NAME);
+        final KeyInfo keyInfo = (KeyInfo) handler.create(KeyInfo.DEFAULT_ELEMENT_NAME);
+        final X509Data x509Data = (X509Data) handler.create(X509Data.DEFAULT_ELEMENT_NAME);
+        final X509Certificate certificate = (X509Certificate) handler.create(X509Certificate.DEFAULT_ELEMENT_NAME);
+        certificate.setValue("not*base64");
+        x509Data.getX509Certificates().add(certificate);
+        keyInfo.getX509Datas().add(x509Data);
+        undecodable.setKeyInfo(keyInfo);
+        assertThat(trustedCertificates.select(undecodable, "localclient"), is(nullValue()));
+
+        // Check it in a thread of its own, see SignedResponseValidator
+        final boolean[] valid = new boolean[2];
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                final SAMLSignatureValidator validator = new SAMLSignatureValidator(trustedCertificates);
+                valid[0] = validator.isValid(response);
+                response.getIssuer().setValue("tw");
+                valid[1] = validator.isValid(response);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertThat(valid[0], is(true));
+        assertThat(valid[1], is(false));
+    }
+
+    private static Response createSignedResponse(final SAML2Handler handler, final X509SAMLSignatureCreator sigCreator,
+                                                 final String keyAlias) throws Exception {
+        final Subject subject = handler.createSubject("1895021000", NameIDType.PERSISTENT, "sender-vouches");
+        final Assertion assertion = handler.createAuthnAssertion(subject, AuthnContext.PPT_AUTHN_CTX, 30, 600000);
+        Response response = handler.createResponse(StatusCode.SUCCESS_URI, "AccessRequest", null);
+        response.getAssertions().add(assertion);
+        Signature signature = (Signature) handler.create(Signature.DEFAULT_ELEMENT_NAME);
+        sigCreator.finishSignature(signature, keyAlias, keyAlias);
+        response.setSignature(signature);
+        Configuration.getMarshallerFactory().getMarshaller(response).marshall(response);
+        Signer.signObject(signature);
+        return response;
+    }
 }